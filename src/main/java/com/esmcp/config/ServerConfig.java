@@ -0,0 +1,151 @@
+package com.esmcp.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 服务器配置
+ * 从classpath中的application.yml加载，按点分路径（如"services.storage.dataDir"）读取配置项
+ */
+public class ServerConfig {
+    private static final Logger logger = LoggerFactory.getLogger(ServerConfig.class);
+    private static final String DEFAULT_RESOURCE = "application.yml";
+
+    private final Map<String, Object> values;
+
+    private ServerConfig(Map<String, Object> values) {
+        this.values = values;
+    }
+
+    /**
+     * 加载默认配置文件
+     */
+    public static ServerConfig load() {
+        return load(DEFAULT_RESOURCE);
+    }
+
+    /**
+     * 从classpath加载配置文件，文件不存在时返回空配置
+     */
+    public static ServerConfig load(String resource) {
+        try (InputStream in = ServerConfig.class.getClassLoader().getResourceAsStream(resource)) {
+            if (in == null) {
+                logger.warn("Configuration {} not found, using defaults", resource);
+                return empty();
+            }
+            Map<String, Object> loaded = new Yaml().load(in);
+            return new ServerConfig(loaded != null ? loaded : Collections.emptyMap());
+        } catch (IOException e) {
+            logger.error("Failed to load configuration {}", resource, e);
+            return empty();
+        }
+    }
+
+    public static ServerConfig empty() {
+        return new ServerConfig(Collections.emptyMap());
+    }
+
+    /**
+     * 由键值对构造配置（主要用于测试）
+     */
+    public static ServerConfig of(Map<String, Object> values) {
+        return new ServerConfig(new HashMap<>(values));
+    }
+
+    /**
+     * 复制配置并覆盖一个顶层配置项
+     */
+    public ServerConfig with(String key, Object value) {
+        Map<String, Object> copy = new HashMap<>(values);
+        copy.put(key, value);
+        return new ServerConfig(copy);
+    }
+
+    /**
+     * 获取子配置节
+     */
+    @SuppressWarnings("unchecked")
+    public ServerConfig section(String path) {
+        Object value = lookup(path);
+        if (value instanceof Map) {
+            return new ServerConfig((Map<String, Object>) value);
+        }
+        return empty();
+    }
+
+    public boolean has(String path) {
+        return lookup(path) != null;
+    }
+
+    public String getString(String path, String defaultValue) {
+        Object value = lookup(path);
+        return value != null ? value.toString() : defaultValue;
+    }
+
+    public int getInt(String path, int defaultValue) {
+        Object value = lookup(path);
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        return value != null ? Integer.parseInt(value.toString().trim()) : defaultValue;
+    }
+
+    public long getLong(String path, long defaultValue) {
+        Object value = lookup(path);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return value != null ? Long.parseLong(value.toString().trim()) : defaultValue;
+    }
+
+    public double getDouble(String path, double defaultValue) {
+        Object value = lookup(path);
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        return value != null ? Double.parseDouble(value.toString().trim()) : defaultValue;
+    }
+
+    public boolean getBoolean(String path, boolean defaultValue) {
+        Object value = lookup(path);
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        return value != null ? Boolean.parseBoolean(value.toString().trim()) : defaultValue;
+    }
+
+    /**
+     * 读取映射类型的配置项，键中可以包含点（如域名）
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, String> getStringMap(String path) {
+        Object value = lookup(path);
+        Map<String, String> map = new LinkedHashMap<>();
+        if (value instanceof Map) {
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                map.put(String.valueOf(entry.getKey()), String.valueOf(entry.getValue()));
+            }
+        }
+        return map;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object lookup(String path) {
+        Object current = values;
+        for (String key : path.split("\\.")) {
+            if (!(current instanceof Map)) {
+                return null;
+            }
+            current = ((Map<String, Object>) current).get(key);
+        }
+        return current;
+    }
+}
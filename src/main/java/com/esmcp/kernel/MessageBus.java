@@ -17,8 +17,20 @@ public class MessageBus implements Microkernel {
     private final Map<String, Service> services = new ConcurrentHashMap<>();
     private final Map<String, CompletableFuture<Message>> pendingRequests = new ConcurrentHashMap<>();
     private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final long timeoutMillis;
     private volatile boolean running = false;
     
+    public MessageBus() {
+        this(10000);
+    }
+    
+    /**
+     * @param timeoutMillis 请求等待回复的超时时间
+     */
+    public MessageBus(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+    
     @Override
     public void registerService(String serviceName, Service service) {
         service.setKernel(this);
@@ -64,10 +76,18 @@ public class MessageBus implements Microkernel {
         });
         
         try {
-            // 等待响应（超时10秒）
-            return future.get(10, TimeUnit.SECONDS);
+            // 等待响应
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
         } catch (TimeoutException e) {
             pendingRequests.remove(message.getMessageId());
+            // 回复恰好在超时时到达则照常返回；否则标记超时，之后到达的回复由completeRequest释放
+            if (!future.completeExceptionally(e)) {
+                try {
+                    return future.join();
+                } catch (CompletionException ignored) {
+                    // 投递失败，按超时处理
+                }
+            }
             logger.warn("Message timeout: {}", message.getMessageId());
             return createErrorResponse(message, "Request timeout");
         } catch (ExecutionException e) {
@@ -121,11 +141,27 @@ public class MessageBus implements Microkernel {
     
     /**
      * 完成待处理的请求（由服务调用）
+     * 请求已经超时时没有人接收回复，回复中携带的流等资源在这里关闭
      */
     public void completeRequest(String messageId, Message response) {
         CompletableFuture<Message> future = pendingRequests.remove(messageId);
-        if (future != null) {
-            future.complete(response);
+        if (future == null || !future.complete(response)) {
+            logger.debug("Discarding late reply to {}", messageId);
+            closeResources(response.getPayload());
+        }
+    }
+    
+    private void closeResources(Object payload) {
+        if (payload instanceof Map) {
+            for (Object value : ((Map<?, ?>) payload).values()) {
+                closeResources(value);
+            }
+        } else if (payload instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) payload).close();
+            } catch (Exception e) {
+                logger.warn("Failed to close resource of late reply", e);
+            }
         }
     }
     
@@ -89,12 +89,8 @@ public abstract class Service implements Runnable {
                 Message message = inbox.take();
                 Message response = handleMessage(message);
                 
-                if (response != null && kernel instanceof MessageBus) {
-                    // 直接完成请求，避免递归
-                    String replyTo = (String) response.getHeader("replyTo");
-                    if (replyTo != null) {
-                        ((MessageBus) kernel).completeRequest(replyTo, response);
-                    }
+                if (response != null) {
+                    reply(response);
                 }
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
@@ -105,6 +101,20 @@ public abstract class Service implements Runnable {
         }
     }
     
+    /**
+     * 完成响应对应的请求
+     * handleMessage返回null时，服务可以在其他线程处理完毕后调用此方法回复
+     */
+    protected void reply(Message response) {
+        if (kernel instanceof MessageBus) {
+            // 直接完成请求，避免递归
+            String replyTo = (String) response.getHeader("replyTo");
+            if (replyTo != null) {
+                ((MessageBus) kernel).completeRequest(replyTo, response);
+            }
+        }
+    }
+    
     /**
      * 发送消息到其他服务
      */
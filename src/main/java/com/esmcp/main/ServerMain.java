@@ -1,5 +1,6 @@
 package com.esmcp.main;
 
+import com.esmcp.config.ServerConfig;
 import com.esmcp.kernel.MessageBus;
 import com.esmcp.kernel.Microkernel;
 import com.esmcp.services.auth.AuthenticationService;
@@ -19,16 +20,18 @@ public class ServerMain {
     public static void main(String[] args) {
         logger.info("Starting ESMCP Server...");
         
+        ServerConfig config = ServerConfig.load();
+        
         // 1. 创建微内核
-        Microkernel kernel = new MessageBus();
+        Microkernel kernel = new MessageBus(config.getLong("microkernel.messageTimeout", 10000));
         kernel.start();
         logger.info("Microkernel started");
         
         // 2. 注册基础服务
         kernel.registerService("AuthenticationService", new AuthenticationService());
-        kernel.registerService("MailStorageService", new MailStorageService());
-        kernel.registerService("MailTransferService", new MailTransferService());
-        kernel.registerService("ProtocolHandlerService", new ProtocolHandlerService());
+        kernel.registerService("MailStorageService", new MailStorageService(config.section("services.storage")));
+        kernel.registerService("MailTransferService", new MailTransferService(config.section("services.transfer")));
+        kernel.registerService("ProtocolHandlerService", new ProtocolHandlerService(config.section("services.protocol")));
         
         logger.info("All services registered and started");
         logger.info("ESMCP Server is ready on port 2525");
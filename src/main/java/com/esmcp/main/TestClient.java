@@ -7,7 +7,7 @@ import java.net.Socket;
 
 /**
  * ESMCP测试客户端
- * 用于测试服务器功能
+ * 用于测试服务器功能。交互模式下DATA命令收到354后逐行读取正文，以单独一行"."结束
  */
 public class TestClient {
     private static final String HOST = "localhost";
@@ -33,9 +33,14 @@ public class TestClient {
             String command;
             while ((command = console.readLine()) != null) {
                 out.println(command);
-                String response = readResponse(in);
+                String response = readResponse(in, command);
                 System.out.println("Server: " + response);
                 
+                if (response.startsWith("354")) {
+                    sendData(console, out);
+                    System.out.println("Server: " + readResponse(in, command));
+                }
+                
                 if (command.trim().equalsIgnoreCase("QUIT")) {
                     break;
                 }
@@ -68,7 +73,22 @@ public class TestClient {
         System.out.println("\n=== Workflow Complete ===\n");
     }
     
+    /**
+     * 从控制台读取正文直到单独一行"."，点填充后发送
+     */
+    private static void sendData(BufferedReader console, PrintWriter out) throws Exception {
+        String line;
+        while ((line = console.readLine()) != null && !line.equals(".")) {
+            out.println(line.startsWith(".") ? "." + line : line);
+        }
+        out.println(".");
+    }
+    
     private static String readResponse(BufferedReader in) throws Exception {
+        return readResponse(in, "");
+    }
+    
+    private static String readResponse(BufferedReader in, String command) throws Exception {
         StringBuilder response = new StringBuilder();
         String line = in.readLine();
         
@@ -78,6 +98,14 @@ public class TestClient {
         
         response.append(line);
         
+        // RETR成功时首行之后是点填充的正文，以单独一行"."结束
+        if (command.trim().toUpperCase().startsWith("RETR") && line.startsWith("250 ")) {
+            while ((line = in.readLine()) != null && !line.equals(".")) {
+                response.append("\n").append(line.startsWith(".") ? line.substring(1) : line);
+            }
+            return response.toString();
+        }
+        
         // 处理多行响应
         if (line.startsWith("250-")) {
             while ((line = in.readLine()) != null) {
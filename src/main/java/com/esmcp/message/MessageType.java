@@ -15,11 +15,17 @@ public class MessageType {
     public static final String MAIL_LIST = "MAIL_LIST";
     public static final String MAIL_DELETE = "MAIL_DELETE";
     public static final String MAIL_MARK = "MAIL_MARK";
+    public static final String MAIL_MARK_ALL = "MAIL_MARK_ALL";
+    public static final String MAIL_STAT = "MAIL_STAT";
+    public static final String MAIL_SEARCH = "MAIL_SEARCH";
+    public static final String MAIL_QUOTA = "MAIL_QUOTA";
+    public static final String STORAGE_STATS = "STORAGE_STATS";
     
     // 邮件传输相关
     public static final String MAIL_SEND = "MAIL_SEND";
     public static final String MAIL_QUEUE = "MAIL_QUEUE";
     public static final String MAIL_STATUS = "MAIL_STATUS";
+    public static final String TRANSFER_STATS = "TRANSFER_STATS";
     
     // 协议处理相关
     public static final String PROTOCOL_REQUEST = "PROTOCOL_REQUEST";
@@ -0,0 +1,114 @@
+package com.esmcp.services.protocol;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 认证限流器
+ * 基于GCRA（等价于令牌桶）的无锁限流表，按键（用户名或远程地址）限制认证尝试频率。
+ * 表容量固定，空闲（令牌已回满）的桶可被直接复用，因此内存占用有上界且无需后台清理。
+ * 探测范围内没有空槽或空闲桶时拒绝本次尝试，不淘汰仍在计数中的桶：
+ * 否则攻击者轮换少量冲突的键就能把受限的桶挤出表，让被限流的键重新获得完整的令牌。
+ */
+public class AuthThrottle {
+    private static final int MAX_PROBES = 8;
+
+    private final AtomicReferenceArray<Bucket> slots;
+    private final int mask;
+    private final long intervalNanos;
+    private final long toleranceNanos;
+
+    /**
+     * @param capacity 槽位数量（向上取整为2的幂）
+     * @param burst 允许的突发尝试次数
+     * @param refillMillis 每恢复一次尝试所需的毫秒数
+     */
+    public AuthThrottle(int capacity, int burst, long refillMillis) {
+        if (capacity <= 0 || burst <= 0 || refillMillis <= 0) {
+            throw new IllegalArgumentException("capacity, burst and refillMillis must be positive");
+        }
+        int size = Integer.highestOneBit(Math.max(capacity, MAX_PROBES) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(refillMillis);
+        this.toleranceNanos = intervalNanos * burst;
+    }
+
+    /**
+     * 尝试消耗一个令牌，令牌不足时返回false
+     */
+    public boolean tryAcquire(String key) {
+        int home = spread(key.hashCode());
+
+        while (true) {
+            long now = System.nanoTime();
+            int found = -1;
+            int victim = -1;
+            Bucket victimBucket = null;
+
+            for (int i = 0; i < MAX_PROBES; i++) {
+                int idx = (home + i) & mask;
+                Bucket bucket = slots.get(idx);
+                if (bucket != null && bucket.key.equals(key)) {
+                    found = idx;
+                    victimBucket = bucket;
+                    break;
+                }
+                // 只复用空槽或已回满的桶
+                if (victim < 0 && (bucket == null || bucket.tat <= now)) {
+                    victim = idx;
+                    victimBucket = bucket;
+                }
+            }
+
+            if (found >= 0) {
+                long tat = Math.max(victimBucket.tat, now) + intervalNanos;
+                if (tat - now > toleranceNanos) {
+                    return false;
+                }
+                if (slots.compareAndSet(found, victimBucket, new Bucket(key, tat))) {
+                    return true;
+                }
+            } else if (victim < 0) {
+                // 探测范围内的桶都在计数中，失败即关闭
+                return false;
+            } else if (slots.compareAndSet(victim, victimBucket, new Bucket(key, now + intervalNanos))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 归还一个令牌（例如认证成功后不计入失败次数）
+     */
+    public void release(String key) {
+        int home = spread(key.hashCode());
+
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int idx = (home + i) & mask;
+            while (true) {
+                Bucket bucket = slots.get(idx);
+                if (bucket == null || !bucket.key.equals(key)) {
+                    break;
+                }
+                if (slots.compareAndSet(idx, bucket, new Bucket(key, bucket.tat - intervalNanos))) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Bucket {
+        final String key;
+        final long tat; // 理论到达时间（GCRA）
+
+        Bucket(String key, long tat) {
+            this.key = key;
+            this.tat = tat;
+        }
+    }
+}
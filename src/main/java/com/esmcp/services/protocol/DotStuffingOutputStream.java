@@ -0,0 +1,59 @@
+package com.esmcp.services.protocol;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 多行数据的点填充编码
+ * 以"."开头的行前面再加一个"."，单独的LF换成CRLF；finish()写出结束行"."。
+ * 按块扫描写入，不缓存整个正文。
+ */
+public class DotStuffingOutputStream extends FilterOutputStream {
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] TERMINATOR = {'.', '\r', '\n'};
+
+    private boolean lineStart = true;
+    private int previous = -1;
+
+    public DotStuffingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int start = off;
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            byte c = b[i];
+            if (c == '\n' && previous != '\r') {
+                out.write(b, start, i - start);
+                out.write('\r');
+                start = i;
+            } else if (c == '.' && lineStart) {
+                out.write(b, start, i - start);
+                out.write('.');
+                start = i;
+            }
+            lineStart = c == '\n';
+            previous = c;
+        }
+        out.write(b, start, end - start);
+    }
+
+    /**
+     * 补齐最后一行并写出结束行，不关闭底层流
+     */
+    public void finish() throws IOException {
+        if (!lineStart) {
+            out.write(CRLF);
+        }
+        out.write(TERMINATOR);
+        out.flush();
+    }
+}
@@ -0,0 +1,98 @@
+package com.esmcp.services.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * 提交邮件正文的暂存区
+ * 不超过阈值时保存在内存中，超过阈值后转存到临时文件，关闭时删除临时文件。
+ */
+public class MessageSpool extends OutputStream {
+    private final int threshold;
+    private final Path directory;
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private OutputStream file;
+    private Path path;
+    private long size;
+
+    /**
+     * @param directory 临时文件目录，为null时使用系统临时目录
+     */
+    public MessageSpool(int threshold, Path directory) {
+        this.threshold = threshold;
+        this.directory = directory;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (file == null && size + len > threshold) {
+            spill();
+        }
+        if (file != null) {
+            file.write(b, off, len);
+        } else {
+            memory.write(b, off, len);
+        }
+        size += len;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean isSpooled() {
+        return path != null;
+    }
+
+    /**
+     * 内存中的正文
+     */
+    public String text() {
+        return memory != null ? new String(memory.toByteArray(), StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * 正文所在的临时文件（写入已刷出）
+     */
+    public Path file() throws IOException {
+        if (file != null) {
+            file.flush();
+        }
+        return path;
+    }
+
+    /**
+     * 关闭并删除临时文件
+     */
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            file.close();
+            file = null;
+        }
+        if (path != null) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private void spill() throws IOException {
+        if (directory != null) {
+            Files.createDirectories(directory);
+            path = Files.createTempFile(directory, "data", ".eml");
+        } else {
+            path = Files.createTempFile("esmcp-data", ".eml");
+        }
+        file = Files.newOutputStream(path);
+        memory.writeTo(file);
+        memory = null;
+    }
+}
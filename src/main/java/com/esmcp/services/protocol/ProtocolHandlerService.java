@@ -1,5 +1,6 @@
 package com.esmcp.services.protocol;
 
+import com.esmcp.config.ServerConfig;
 import com.esmcp.kernel.Service;
 import com.esmcp.message.Message;
 import com.esmcp.message.MessageType;
@@ -7,11 +8,18 @@ import com.esmcp.message.MessageType;
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
 /**
  * 协议处理服务
@@ -19,30 +27,73 @@ import java.util.concurrent.Executors;
  */
 public class ProtocolHandlerService extends Service {
     private static final int DEFAULT_PORT = 2525;
+    private static final int CHUNK_SIZE = 8192;
+    private final int port;
+    private final int maxCommandLength;
+    private final long maxMessageSize;
+    private final int spoolThreshold;
+    private final Path spoolDir;
+    private final RecipientRouter router;
     private ServerSocket serverSocket;
     private ExecutorService clientExecutor;
     private volatile boolean accepting = true;
     
+    // 认证限流：默认每个用户名最多5次突发、每12秒恢复1次；每个远程地址最多20次突发、每3秒恢复1次
+    private final AuthThrottle userThrottle;
+    private final AuthThrottle addressThrottle;
+    
     public ProtocolHandlerService() {
+        this(ServerConfig.empty());
+    }
+    
+    /**
+     * @param config services.protocol配置节
+     */
+    public ProtocolHandlerService(ServerConfig config) {
         super("ProtocolHandlerService");
+        this.port = config.getInt("port", DEFAULT_PORT);
+        this.maxCommandLength = config.getInt("maxCommandLength", 8192);
+        this.maxMessageSize = config.getLong("maxMessageSize", 10L * 1024 * 1024);
+        this.spoolThreshold = config.getInt("spoolThreshold", 1024 * 1024);
+        this.spoolDir = config.has("spoolDir") ? Paths.get(config.getString("spoolDir", "data/spool")) : null;
+        this.router = new RecipientRouter(config.getString("localDomains", ""));
+        this.userThrottle = throttle(config.section("authThrottle.user"), 5, 12000);
+        this.addressThrottle = throttle(config.section("authThrottle.address"), 20, 3000);
+    }
+    
+    /**
+     * @param config 限流配置节：capacity（槽位数）、burst（突发次数）、refillMillis（恢复一次的毫秒数）
+     */
+    private static AuthThrottle throttle(ServerConfig config, int burst, long refillMillis) {
+        return new AuthThrottle(
+            config.getInt("capacity", 4096),
+            config.getInt("burst", burst),
+            config.getLong("refillMillis", refillMillis));
     }
     
     @Override
     public void initialize() {
         try {
-            serverSocket = new ServerSocket(DEFAULT_PORT);
+            serverSocket = new ServerSocket(port);
             clientExecutor = Executors.newCachedThreadPool();
             
             // 启动接受连接的线程
             new Thread(this::acceptConnections, "ProtocolAcceptor").start();
             
-            logger.info("ProtocolHandlerService listening on port {}", DEFAULT_PORT);
+            logger.info("ProtocolHandlerService listening on port {}", serverSocket.getLocalPort());
         } catch (IOException e) {
             logger.error("Failed to start protocol handler", e);
             throw new RuntimeException(e);
         }
     }
     
+    /**
+     * 实际监听的端口（配置port为0时由系统分配）
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+    
     @Override
     public Message handleMessage(Message message) {
         // 此服务主要处理TCP连接，不处理内部消息
@@ -64,16 +115,32 @@ public class ProtocolHandlerService extends Service {
     }
     
     private void handleClient(Socket socket) {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+        try (InputStream input = new BufferedInputStream(socket.getInputStream(), CHUNK_SIZE);
+             OutputStream output = new BufferedOutputStream(socket.getOutputStream(), CHUNK_SIZE);
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), true)) {
             
             ClientSession session = new ClientSession();
+            session.remoteAddress = socket.getInetAddress().getHostAddress();
+            session.input = new ProtocolReader(input);
+            session.output = output;
             out.println("220 ESMCP Server Ready");
             
-            String line;
-            while ((line = in.readLine()) != null) {
+            while (!session.quit) {
+                String line;
+                try {
+                    line = session.input.readLine(maxCommandLength);
+                } catch (ProtocolReader.LineTooLongException e) {
+                    out.println("500 Line too long, limit " + maxCommandLength + " bytes");
+                    continue;
+                }
+                if (line == null) {
+                    break;
+                }
                 String response = processCommand(line.trim(), session);
-                out.println(response);
+                // 返回null表示命令已直接写出多行回复
+                if (response != null) {
+                    out.println(response);
+                }
                 
                 if (session.quit) {
                     break;
@@ -106,12 +173,22 @@ public class ProtocolHandlerService extends Service {
                     return handleAuth(args, session);
                 case "SEND":
                     return handleSend(args, session);
+                case "DATA":
+                    return handleData(args, session);
                 case "LIST":
                     return handleList(args, session);
                 case "RETR":
                     return handleRetr(args, session);
                 case "DELE":
                     return handleDele(args, session);
+                case "SEARCH":
+                    return handleSearch(args, session);
+                case "QUOTA":
+                    return handleQuota(session);
+                case "STAT":
+                    return handleStat(session);
+                case "MARK":
+                    return handleMark(args, session);
                 case "QUIT":
                     session.quit = true;
                     return "221 Goodbye";
@@ -130,6 +207,15 @@ public class ProtocolHandlerService extends Service {
             return "501 Syntax: AUTH <username> <password>";
         }
         
+        // 先限流再访问总线，被限流的尝试不产生任何内部消息
+        if (!userThrottle.tryAcquire(parts[0])) {
+            return "454 Too many authentication attempts, try again later";
+        }
+        if (!addressThrottle.tryAcquire(session.remoteAddress)) {
+            userThrottle.release(parts[0]);
+            return "454 Too many authentication attempts, try again later";
+        }
+        
         Map<String, String> credentials = new HashMap<>();
         credentials.put("username", parts[0]);
         credentials.put("password", parts[1]);
@@ -152,6 +238,9 @@ public class ProtocolHandlerService extends Service {
                 session.authenticated = true;
                 session.username = parts[0];
                 session.sessionId = (String) result.get("sessionId");
+                // 认证成功不计入失败次数
+                userThrottle.release(parts[0]);
+                addressThrottle.release(session.remoteAddress);
                 return "250 Authentication successful";
             } else {
                 return "535 Authentication failed";
@@ -166,10 +255,10 @@ public class ProtocolHandlerService extends Service {
             return "530 Authentication required";
         }
         
-        // 格式: SEND <to> <subject> <body>
+        // 格式: SEND <to>[,<to>...] <subject> <body>
         String[] parts = args.split("\\s+", 3);
         if (parts.length < 3) {
-            return "501 Syntax: SEND <to> <subject> <body>";
+            return "501 Syntax: SEND <to>[,<to>...] <subject> <body>";
         }
         
         Map<String, Object> mailData = new HashMap<>();
@@ -178,6 +267,82 @@ public class ProtocolHandlerService extends Service {
         mailData.put("subject", parts[1]);
         mailData.put("body", parts[2]);
         
+        return submitMail(mailData);
+    }
+    
+    /**
+     * 多行提交：DATA <to>[,<to>...] <subject>，随后逐行发送正文（点填充），以单独一行"."结束。
+     * 正文边接收边去除点填充写入暂存区，超过阈值转存到磁盘，超过maxMessageSize时拒绝。
+     */
+    private String handleData(String args, ClientSession session) throws IOException, InterruptedException {
+        if (!session.authenticated) {
+            return "530 Authentication required";
+        }
+        
+        String[] parts = args.split("\\s+", 2);
+        if (parts.length < 2 || parts[0].isEmpty()) {
+            return "501 Syntax: DATA <to>[,<to>...] <subject>";
+        }
+        
+        session.output.write("354 Enter mail, end with \".\" on a line by itself\r\n".getBytes(StandardCharsets.UTF_8));
+        session.output.flush();
+        
+        try (MessageSpool spool = new MessageSpool(spoolThreshold, spoolDir)) {
+            long size = session.input.readData(spool, maxMessageSize);
+            if (size < 0) {
+                session.quit = true;
+                return null;
+            }
+            if (size > maxMessageSize) {
+                return "552 Message exceeds maximum size of " + maxMessageSize + " bytes";
+            }
+            
+            Map<String, Object> mailData = new HashMap<>();
+            mailData.put("from", session.username);
+            mailData.put("to", parts[0]);
+            mailData.put("subject", parts[1]);
+            if (spool.isSpooled()) {
+                // 大正文以文件交给存储服务，在收到存储回复之后才删除
+                mailData.put("bodyFile", spool.file().toAbsolutePath().toString());
+                mailData.put("size", size);
+            } else {
+                mailData.put("body", spool.text());
+            }
+            return submitMail(mailData);
+        }
+    }
+    
+    /**
+     * 存储邮件，收件人不是本地用户时再交给传输服务
+     * to可以是逗号分隔的多个收件人，此时见submitMulti
+     */
+    private String submitMail(Map<String, Object> mailData) throws InterruptedException {
+        String to = (String) mailData.get("to");
+        if (to.indexOf(',') >= 0) {
+            Set<String> recipients = new LinkedHashSet<>();
+            for (String recipient : to.split(",")) {
+                recipient = recipient.trim();
+                if (!recipient.isEmpty()) {
+                    recipients.add(router.isLocal(recipient) ? router.mailbox(recipient) : recipient);
+                }
+            }
+            if (recipients.isEmpty()) {
+                return "501 No recipients";
+            }
+            if (recipients.size() > 1) {
+                mailData.remove("to");
+                return submitMulti(mailData, new ArrayList<>(recipients));
+            }
+            to = recipients.iterator().next();
+            mailData.put("to", to);
+        }
+        
+        // 本地收件人存入邮箱即完成投递，不占用传输队列
+        boolean local = router.isLocal(to);
+        if (local) {
+            mailData.put("to", router.mailbox(to));
+        }
+        
         // 存储邮件
         Message storeRequest = Message.builder()
             .from(serviceName)
@@ -191,17 +356,22 @@ public class ProtocolHandlerService extends Service {
         if (storeResponse != null && storeResponse.getType().equals(MessageType.MAIL_STORE)) {
             @SuppressWarnings("unchecked")
             Map<String, Object> result = (Map<String, Object>) storeResponse.getPayload();
-            String mailId = (String) result.get("mailId");
-            
-            // 发送邮件（异步）
-            Message sendRequest = Message.builder()
-                .from(serviceName)
-                .to("MailTransferService")
-                .type(MessageType.MAIL_SEND)
-                .payload(mailData)
-                .build();
+            if (Boolean.TRUE.equals(result.get("quotaExceeded"))) {
+                return "552 Mailbox quota exceeded";
+            }
+            Object mailId = result.get("mailId");
             
-            sendMessage(sendRequest);
+            if (!local) {
+                // 交给传输服务，落盘的大正文只传递邮件ID，由传输服务从存储读取
+                Map<String, Object> transferData = new HashMap<>(mailData);
+                transferData.remove("bodyFile");
+                transferData.put("mailId", mailId);
+                String error = transfer(transferData);
+                if (error != null) {
+                    discard(List.of(mailId));
+                    return error;
+                }
+            }
             
             return "250 Mail accepted, ID: " + mailId;
         }
@@ -209,23 +379,142 @@ public class ProtocolHandlerService extends Service {
         return "451 Mail storage failed";
     }
     
+    /**
+     * 多收件人提交：一次存储请求为每个收件人存一封邮件，正文在存储中只保存一份；
+     * 远程收件人一次交给传输服务，由它按域名拆分任务。超出配额的收件人被拒绝，其余照常投递
+     */
+    private String submitMulti(Map<String, Object> mailData, List<String> recipients) throws InterruptedException {
+        mailData.put("recipients", recipients);
+        Message storeRequest = Message.builder()
+            .from(serviceName)
+            .to("MailStorageService")
+            .type(MessageType.MAIL_STORE)
+            .payload(mailData)
+            .build();
+        
+        Message storeResponse = sendMessage(storeRequest);
+        
+        if (storeResponse == null || !storeResponse.getType().equals(MessageType.MAIL_STORE)) {
+            return "451 Mail storage failed";
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> result = (Map<String, Object>) storeResponse.getPayload();
+        @SuppressWarnings("unchecked")
+        Map<String, Object> mailIds = (Map<String, Object>) result.get("mailIds");
+        if (mailIds == null) {
+            return "451 Mail storage failed";
+        }
+        if (mailIds.isEmpty()) {
+            return "552 Mailbox quota exceeded";
+        }
+        
+        List<Object> ids = new ArrayList<>();
+        List<String> remote = new ArrayList<>();
+        for (String recipient : recipients) {
+            Object mailId = mailIds.get(recipient);
+            if (mailId != null) {
+                ids.add(mailId);
+                if (!router.isLocal(recipient)) {
+                    remote.add(recipient);
+                }
+            }
+        }
+        
+        String error = null;
+        if (!remote.isEmpty()) {
+            Map<String, Object> transferData = new HashMap<>(mailData);
+            transferData.remove("bodyFile");
+            transferData.put("recipients", remote);
+            transferData.put("mailId", mailIds.get(remote.get(0)));
+            error = transfer(transferData);
+            if (error != null) {
+                // 本地收件人已经投递，只撤回远程收件人的邮件
+                List<Object> rejected = new ArrayList<>();
+                for (String recipient : remote) {
+                    rejected.add(mailIds.get(recipient));
+                }
+                discard(rejected);
+                ids.removeAll(rejected);
+            }
+        }
+        
+        String accepted = "accepted for " + ids.size() + " of " + recipients.size() + " recipients, IDs: "
+            + ids.stream().map(String::valueOf).collect(Collectors.joining(","));
+        return error != null ? error + ", mail " + accepted : "250 Mail " + accepted;
+    }
+    
+    /**
+     * 把远程收件人的邮件交给传输服务，传输服务接收（启用暂存时已刷盘）返回null，否则返回给客户端的错误回复
+     */
+    private String transfer(Map<String, Object> transferData) throws InterruptedException {
+        Message sendRequest = Message.builder()
+            .from(serviceName)
+            .to("MailTransferService")
+            .type(MessageType.MAIL_SEND)
+            .payload(transferData)
+            .build();
+        
+        Message sendResponse = sendMessage(sendRequest);
+        
+        if (sendResponse != null && sendResponse.getType().equals(MessageType.MAIL_SEND)) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> result = (Map<String, Object>) sendResponse.getPayload();
+            if (Boolean.TRUE.equals(result.get("success"))) {
+                return null;
+            }
+            // 发送队列已满，让客户端稍后重试，把压力传回发送方
+            if ("REJECTED".equals(result.get("status"))) {
+                return "452 Transfer queue full";
+            }
+        }
+        logger.warn("Mail transfer not accepted: {}", sendResponse != null ? sendResponse.getPayload() : null);
+        return "451 Mail transfer unavailable";
+    }
+    
+    /**
+     * 撤回传输服务没有接收的邮件，客户端重试时不会留下重复的邮件
+     */
+    private void discard(List<Object> mailIds) throws InterruptedException {
+        for (Object mailId : mailIds) {
+            Message deleteRequest = Message.builder()
+                .from(serviceName)
+                .to("MailStorageService")
+                .type(MessageType.MAIL_DELETE)
+                .payload(mailId)
+                .build();
+            sendMessage(deleteRequest);
+        }
+    }
+    
     private String handleList(String args, ClientSession session) throws InterruptedException {
         if (!session.authenticated) {
             return "530 Authentication required";
         }
         
+        // 格式: LIST [limit] [cursor]，cursor为上一页返回的NEXT值
         int limit = 10;
+        Long cursor = null;
         if (!args.isEmpty()) {
+            String[] parts = args.split("\\s+");
             try {
-                limit = Integer.parseInt(args);
+                limit = Integer.parseInt(parts[0]);
             } catch (NumberFormatException e) {
                 return "501 Invalid limit";
             }
+            if (parts.length > 1) {
+                cursor = parseMailId(parts[1]);
+                if (cursor == null) {
+                    return "501 Invalid cursor";
+                }
+            }
         }
         
         Map<String, Object> params = new HashMap<>();
         params.put("username", session.username);
         params.put("limit", limit);
+        if (cursor != null) {
+            params.put("cursor", cursor);
+        }
         
         Message request = Message.builder()
             .from(serviceName)
@@ -252,6 +541,10 @@ public class ProtocolHandlerService extends Service {
                   .append("\r\n");
             }
             
+            Object nextCursor = result.get("nextCursor");
+            if (nextCursor != null) {
+                sb.append("250-NEXT:").append(nextCursor).append("\r\n");
+            }
             sb.append("250 End of list");
             return sb.toString();
         }
@@ -267,12 +560,17 @@ public class ProtocolHandlerService extends Service {
         if (args.isEmpty()) {
             return "501 Syntax: RETR <mail_id>";
         }
+        Long mailId = parseMailId(args);
+        if (mailId == null) {
+            return "501 Invalid mail id";
+        }
         
         Message request = Message.builder()
             .from(serviceName)
             .to("MailStorageService")
             .type(MessageType.MAIL_RETRIEVE)
-            .payload(args)
+            .payload(mailId)
+            .header("stream", true)
             .build();
         
         Message response = sendMessage(request);
@@ -280,14 +578,42 @@ public class ProtocolHandlerService extends Service {
         if (response != null && response.getType().equals(MessageType.MAIL_RETRIEVE)) {
             @SuppressWarnings("unchecked")
             Map<String, Object> mail = (Map<String, Object>) response.getPayload();
-            
-            return String.format("250 FROM:%s TO:%s SUBJ:%s BODY:%s",
-                mail.get("from"), mail.get("to"), mail.get("subject"), mail.get("body"));
+            writeMail(mail, session);
+            return null;
         }
         
         return "550 Mail not found";
     }
     
+    /**
+     * 写出检索结果：首行为邮件头，随后是点填充的正文，以单独一行"."结束。
+     * 大正文以输入流形式给出，按固定大小的块读取写出，不在内存中组装完整回复。
+     */
+    private void writeMail(Map<String, Object> mail, ClientSession session) {
+        InputStream content = (InputStream) mail.get("content");
+        byte[] body = content == null ? String.valueOf(mail.get("body")).getBytes(StandardCharsets.UTF_8) : null;
+        long size = content != null ? ((Number) mail.get("length")).longValue() : body.length;
+        
+        try (InputStream in = content != null ? content : new ByteArrayInputStream(body)) {
+            OutputStream output = session.output;
+            String header = String.format("250 FROM:%s TO:%s SUBJ:%s SIZE:%d\r\n",
+                mail.get("from"), mail.get("to"), mail.get("subject"), size);
+            output.write(header.getBytes(StandardCharsets.UTF_8));
+            
+            DotStuffingOutputStream data = new DotStuffingOutputStream(output);
+            byte[] chunk = new byte[CHUNK_SIZE];
+            int n;
+            while ((n = in.read(chunk)) > 0) {
+                data.write(chunk, 0, n);
+            }
+            data.finish();
+        } catch (IOException e) {
+            // 回复已部分写出，无法再发送错误码，断开连接让客户端感知传输失败
+            logger.error("Error streaming mail {}", mail.get("mailId"), e);
+            session.quit = true;
+        }
+    }
+    
     private String handleDele(String args, ClientSession session) throws InterruptedException {
         if (!session.authenticated) {
             return "530 Authentication required";
@@ -296,12 +622,16 @@ public class ProtocolHandlerService extends Service {
         if (args.isEmpty()) {
             return "501 Syntax: DELE <mail_id>";
         }
+        Long mailId = parseMailId(args);
+        if (mailId == null) {
+            return "501 Invalid mail id";
+        }
         
         Message request = Message.builder()
             .from(serviceName)
             .to("MailStorageService")
             .type(MessageType.MAIL_DELETE)
-            .payload(args)
+            .payload(mailId)
             .build();
         
         Message response = sendMessage(request);
@@ -319,6 +649,177 @@ public class ProtocolHandlerService extends Service {
         return "550 Delete failed";
     }
     
+    private String handleSearch(String args, ClientSession session) throws InterruptedException {
+        if (!session.authenticated) {
+            return "530 Authentication required";
+        }
+        
+        if (args.isEmpty()) {
+            return "501 Syntax: SEARCH <keywords>";
+        }
+        
+        Map<String, Object> params = new HashMap<>();
+        params.put("username", session.username);
+        params.put("query", args);
+        
+        Message request = Message.builder()
+            .from(serviceName)
+            .to("MailStorageService")
+            .type(MessageType.MAIL_SEARCH)
+            .payload(params)
+            .build();
+        
+        Message response = sendMessage(request);
+        
+        if (response != null && response.getType().equals(MessageType.MAIL_SEARCH)) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> result = (Map<String, Object>) response.getPayload();
+            @SuppressWarnings("unchecked")
+            List<Map<String, Object>> mails = (List<Map<String, Object>>) result.get("mails");
+            
+            StringBuilder sb = new StringBuilder();
+            sb.append("250-").append(result.get("total")).append(" matches\r\n");
+            
+            for (Map<String, Object> mail : mails) {
+                sb.append("250-ID:").append(mail.get("mailId"))
+                  .append(" FROM:").append(mail.get("from"))
+                  .append(" SUBJ:").append(mail.get("subject"))
+                  .append("\r\n");
+            }
+            
+            sb.append("250 End of search");
+            return sb.toString();
+        }
+        
+        return "451 Search failed";
+    }
+    
+    private String handleQuota(ClientSession session) throws InterruptedException {
+        if (!session.authenticated) {
+            return "530 Authentication required";
+        }
+        
+        Message request = Message.builder()
+            .from(serviceName)
+            .to("MailStorageService")
+            .type(MessageType.MAIL_QUOTA)
+            .payload(session.username)
+            .build();
+        
+        Message response = sendMessage(request);
+        
+        if (response != null && response.getType().equals(MessageType.MAIL_QUOTA)) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> result = (Map<String, Object>) response.getPayload();
+            return String.format("250 QUOTA MAILS:%s/%s BYTES:%s/%s",
+                result.get("count"), result.get("maxCount"), result.get("bytes"), result.get("maxBytes"));
+        }
+        
+        return "451 Quota unavailable";
+    }
+    
+    private String handleStat(ClientSession session) throws InterruptedException {
+        if (!session.authenticated) {
+            return "530 Authentication required";
+        }
+        
+        Message request = Message.builder()
+            .from(serviceName)
+            .to("MailStorageService")
+            .type(MessageType.MAIL_STAT)
+            .payload(session.username)
+            .build();
+        
+        Message response = sendMessage(request);
+        
+        if (response != null && response.getType().equals(MessageType.MAIL_STAT)) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> result = (Map<String, Object>) response.getPayload();
+            return String.format("250 STAT TOTAL:%s UNREAD:%s FLAGGED:%s DELETED:%s BYTES:%s",
+                result.get("total"), result.get("unread"), result.get("flagged"),
+                result.get("deleted"), result.get("bytes"));
+        }
+        
+        return "451 Stat unavailable";
+    }
+    
+    private String handleMark(String args, ClientSession session) throws InterruptedException {
+        if (!session.authenticated) {
+            return "530 Authentication required";
+        }
+        
+        // 格式: MARK <mail_id|ALL> <READ|UNREAD|FLAG|UNFLAG|DELETE|UNDELETE>
+        String[] parts = args.split("\\s+");
+        if (parts.length != 2) {
+            return "501 Syntax: MARK <mail_id|ALL> <READ|UNREAD|FLAG|UNFLAG|DELETE|UNDELETE>";
+        }
+        String action = parts[1].toUpperCase();
+        String flag;
+        boolean value;
+        switch (action) {
+            case "READ": flag = "read"; value = true; break;
+            case "UNREAD": flag = "read"; value = false; break;
+            case "FLAG": flag = "flagged"; value = true; break;
+            case "UNFLAG": flag = "flagged"; value = false; break;
+            case "DELETE": flag = "deleted"; value = true; break;
+            case "UNDELETE": flag = "deleted"; value = false; break;
+            default:
+                return "501 Unknown flag: " + parts[1];
+        }
+        
+        Map<String, Object> params = new HashMap<>();
+        params.put(flag, value);
+        String type;
+        if (parts[0].equalsIgnoreCase("ALL")) {
+            // 批量操作只支持已读/未读
+            if (!flag.equals("read")) {
+                return "501 MARK ALL supports READ or UNREAD only";
+            }
+            params.put("username", session.username);
+            type = MessageType.MAIL_MARK_ALL;
+        } else {
+            Long mailId = parseMailId(parts[0]);
+            if (mailId == null) {
+                return "501 Invalid mail id";
+            }
+            params.put("mailId", mailId);
+            type = MessageType.MAIL_MARK;
+        }
+        
+        Message request = Message.builder()
+            .from(serviceName)
+            .to("MailStorageService")
+            .type(type)
+            .payload(params)
+            .build();
+        
+        Message response = sendMessage(request);
+        
+        if (response != null && response.getType().equals(type)) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> result = (Map<String, Object>) response.getPayload();
+            if (Boolean.TRUE.equals(result.get("success"))) {
+                return result.containsKey("changed")
+                    ? "250 " + result.get("changed") + " messages marked"
+                    : "250 Mail marked";
+            }
+        }
+        
+        return "550 Mark failed";
+    }
+    
+    /**
+     * 邮件ID在协议边界解析一次，内部消息只传递数值ID
+     */
+    private static Long parseMailId(String text) {
+        try {
+            long id = Long.parseLong(text.trim());
+            return id > 0 ? id : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+    
     @Override
     public void shutdown() {
         accepting = false;
@@ -342,6 +843,9 @@ public class ProtocolHandlerService extends Service {
         boolean authenticated = false;
         String username;
         String sessionId;
+        String remoteAddress;
+        ProtocolReader input;
+        OutputStream output;
         boolean quit = false;
     }
 }
@@ -0,0 +1,174 @@
+package com.esmcp.services.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 客户端输入读取器
+ * 命令行有长度上限，超长的行被丢弃而不是整行缓存；
+ * DATA数据按块去除点填充后直接写入目标流，读到单独一行"."为止。
+ */
+public class ProtocolReader {
+    private static final int BUFFER_SIZE = 8192;
+
+    // DATA解析状态
+    private static final int LINE_START = 0;
+    private static final int DOT = 1;
+    private static final int DOT_CR = 2;
+    private static final int TEXT = 3;
+    private static final int CR = 4;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+
+    public ProtocolReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * 读取一行命令（不含行尾），连接关闭时返回null
+     * 超过maxLength字节的行读到行尾后丢弃，抛出LineTooLongException
+     */
+    public String readLine(int maxLength) throws IOException {
+        byte[] line = new byte[Math.min(maxLength, 256)];
+        int length = 0;
+        boolean overflow = false;
+        while (true) {
+            if (position == limit && !fill()) {
+                if (length == 0 && !overflow) {
+                    return null;
+                }
+                break;
+            }
+            byte b = buffer[position++];
+            if (b == '\n') {
+                break;
+            }
+            if (overflow) {
+                continue;
+            }
+            if (length == maxLength) {
+                overflow = true;
+                continue;
+            }
+            if (length == line.length) {
+                line = Arrays.copyOf(line, Math.min(maxLength, line.length * 2));
+            }
+            line[length++] = b;
+        }
+        if (overflow) {
+            throw new LineTooLongException(maxLength);
+        }
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 读取DATA数据直到单独一行"."，去除点填充后写入out，最后一行的行尾不写入
+     * 超过maxSize字节后继续读到结束行但不再写入，返回值大于maxSize表示超限
+     * @return 去除点填充后的数据字节数；连接在结束行之前关闭时返回-1
+     */
+    public long readData(OutputStream out, long maxSize) throws IOException {
+        byte[] chunk = new byte[BUFFER_SIZE];
+        int chunkLength = 0;
+        long size = 0;
+        int state = LINE_START;
+        int pendingBreak = 0; // 尚未写出的上一行行尾：0无，1为LF，2为CRLF
+
+        while (true) {
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            byte b = buffer[position++];
+
+            // 行首：判断结束行和点填充，其余情况先补写上一行的行尾
+            if (state == LINE_START) {
+                if (b == '.') {
+                    state = DOT;
+                    continue;
+                }
+            } else if (state == DOT || state == DOT_CR) {
+                if (b == '\n') {
+                    break;
+                }
+                if (b == '\r' && state == DOT) {
+                    state = DOT_CR;
+                    continue;
+                }
+            } else if (state == CR) {
+                if (b == '\n') {
+                    pendingBreak = 2;
+                    state = LINE_START;
+                    continue;
+                }
+            }
+
+            // 需要写出的字节：上一行行尾、被延迟的CR，然后是当前字节
+            if (state == LINE_START || state == DOT || state == DOT_CR) {
+                if (pendingBreak == 2) {
+                    chunk[chunkLength++] = '\r';
+                }
+                if (pendingBreak > 0) {
+                    chunk[chunkLength++] = '\n';
+                }
+                size += pendingBreak;
+                pendingBreak = 0;
+            }
+            if (state == DOT_CR || state == CR) {
+                chunk[chunkLength++] = '\r';
+                size++;
+            }
+
+            if (b == '\r') {
+                state = CR;
+            } else if (b == '\n') {
+                pendingBreak = 1;
+                state = LINE_START;
+            } else {
+                chunk[chunkLength++] = b;
+                size++;
+                state = TEXT;
+            }
+
+            if (chunkLength > chunk.length - 4) {
+                if (size <= maxSize) {
+                    out.write(chunk, 0, chunkLength);
+                }
+                chunkLength = 0;
+            }
+        }
+
+        if (size <= maxSize) {
+            out.write(chunk, 0, chunkLength);
+        }
+        return size;
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(buffer);
+        if (n <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = n;
+        return true;
+    }
+
+    /**
+     * 命令行超过长度上限
+     */
+    public static class LineTooLongException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public LineTooLongException(int maxLength) {
+            super("Line exceeds " + maxLength + " bytes");
+        }
+    }
+}
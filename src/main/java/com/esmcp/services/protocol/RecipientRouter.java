@@ -0,0 +1,37 @@
+package com.esmcp.services.protocol;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * 收件人路由
+ * 不带域名或域名属于本地域名的收件人是本地用户，直接投递到邮箱；其余收件人交给传输服务。
+ */
+public class RecipientRouter {
+    private final Set<String> localDomains = new HashSet<>();
+
+    /**
+     * @param localDomains 逗号分隔的本地域名，可以为空
+     */
+    public RecipientRouter(String localDomains) {
+        for (String domain : localDomains.split(",")) {
+            if (!domain.isBlank()) {
+                this.localDomains.add(domain.trim().toLowerCase(Locale.ROOT));
+            }
+        }
+    }
+
+    public boolean isLocal(String recipient) {
+        int at = recipient.lastIndexOf('@');
+        return at < 0 || localDomains.contains(recipient.substring(at + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * 本地收件人对应的邮箱名：去掉本地域名，user2@localhost与user2是同一个邮箱
+     */
+    public String mailbox(String recipient) {
+        int at = recipient.lastIndexOf('@');
+        return at < 0 ? recipient : recipient.substring(0, at);
+    }
+}
@@ -0,0 +1,177 @@
+package com.esmcp.services.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 正文热数据缓存
+ * 按字节数限定容量的分段LRU：新写入或首次读取的正文进入试用段，
+ * 在试用段中再次命中后晋升到保护段；保护段溢出时降级回试用段，
+ * 试用段溢出时淘汰最久未使用的正文（正文始终保存在日志中，淘汰只释放内存）。
+ * 正文内容保存在堆外内存中，堆中只保留摘要键和句柄。
+ */
+public class BodyCache {
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final int SLAB_SIZE = 4 * 1024 * 1024;
+    private static final double FRAGMENTATION_THRESHOLD = 0.25;
+
+    private final long capacity;
+    private final long protectedCapacity;
+    private final StorageMetrics metrics;
+    private final OffHeapArena arena;
+    private final LinkedHashMap<MailBody.Key, Long> probation = new LinkedHashMap<>(256, 0.75f, true);
+    private final LinkedHashMap<MailBody.Key, Long> protectedSegment = new LinkedHashMap<>(256, 0.75f, true);
+    private long probationBytes;
+    private long protectedBytes;
+
+    public BodyCache(long capacity, StorageMetrics metrics) {
+        this.capacity = capacity;
+        this.protectedCapacity = capacity * 4 / 5;
+        this.metrics = metrics;
+        // 尺寸级别取整最多浪费25%，预留对应的余量
+        int slabSize = (int) Math.max(4096, Math.min(SLAB_SIZE, capacity));
+        this.arena = new OffHeapArena(capacity + capacity / 4, slabSize);
+    }
+
+    /**
+     * 查找正文，返回UTF-8编码的内容
+     */
+    public synchronized byte[] get(MailBody.Key key) {
+        Long handle = protectedSegment.get(key);
+        if (handle == null) {
+            handle = probation.remove(key);
+            if (handle == null) {
+                metrics.cacheMisses.increment();
+                return null;
+            }
+            probationBytes -= weight(handle);
+            protectedSegment.put(key, handle);
+            protectedBytes += weight(handle);
+            demoteOverflow();
+        }
+        metrics.cacheHits.increment();
+        return arena.read(handle);
+    }
+
+    /**
+     * 放入正文（进入试用段）
+     */
+    public synchronized void put(MailBody.Key key, byte[] content) {
+        long weight = content.length + ENTRY_OVERHEAD;
+        // 超过slab的正文不可能分配成功，不为它淘汰已缓存的正文
+        if (capacity <= 0 || weight > capacity || !arena.fits(content.length)) {
+            return;
+        }
+        if (protectedSegment.containsKey(key) || probation.containsKey(key)) {
+            return;
+        }
+
+        long handle = arena.allocate(content);
+        while (handle < 0) {
+            // 分配失败：碎片过多时先整理，否则淘汰最旧的正文腾出空间
+            if (arena.isFragmented(FRAGMENTATION_THRESHOLD)) {
+                defragment();
+            } else if (!evictOne()) {
+                return;
+            }
+            handle = arena.allocate(content);
+        }
+
+        probation.put(key, handle);
+        probationBytes += weight;
+        evictOverflow();
+    }
+
+    public synchronized void invalidate(MailBody.Key key) {
+        Long handle = probation.remove(key);
+        if (handle != null) {
+            probationBytes -= weight(handle);
+            arena.free(handle);
+        }
+        handle = protectedSegment.remove(key);
+        if (handle != null) {
+            protectedBytes -= weight(handle);
+            arena.free(handle);
+        }
+    }
+
+    /**
+     * 空闲块占比超过阈值时整理堆外内存（由维护线程定期调用）
+     */
+    public synchronized void defragmentIfNeeded() {
+        if (arena.isFragmented(FRAGMENTATION_THRESHOLD)) {
+            defragment();
+        }
+    }
+
+    public synchronized long size() {
+        return probationBytes + protectedBytes;
+    }
+
+    public synchronized long offHeapBytes() {
+        return arena.reservedBytes();
+    }
+
+    private void defragment() {
+        long start = System.nanoTime();
+        long[] handles = new long[probation.size() + protectedSegment.size()];
+        int i = 0;
+        for (Long handle : probation.values()) {
+            handles[i++] = handle;
+        }
+        for (Long handle : protectedSegment.values()) {
+            handles[i++] = handle;
+        }
+
+        arena.defragment(handles);
+
+        // 按相同顺序写回新句柄，replaceAll不改变访问顺序
+        int[] next = {0};
+        probation.replaceAll((key, old) -> handles[next[0]++]);
+        protectedSegment.replaceAll((key, old) -> handles[next[0]++]);
+
+        metrics.defragmentations.increment();
+        metrics.defragmentNanos.add(System.nanoTime() - start);
+    }
+
+    private boolean evictOne() {
+        LinkedHashMap<MailBody.Key, Long> segment = !probation.isEmpty() ? probation : protectedSegment;
+        Iterator<Map.Entry<MailBody.Key, Long>> it = segment.entrySet().iterator();
+        if (!it.hasNext()) {
+            return false;
+        }
+        Map.Entry<MailBody.Key, Long> eldest = it.next();
+        it.remove();
+        if (segment == probation) {
+            probationBytes -= weight(eldest.getValue());
+        } else {
+            protectedBytes -= weight(eldest.getValue());
+        }
+        arena.free(eldest.getValue());
+        metrics.cacheEvictions.increment();
+        return true;
+    }
+
+    private void demoteOverflow() {
+        Iterator<Map.Entry<MailBody.Key, Long>> it = protectedSegment.entrySet().iterator();
+        while (protectedBytes > protectedCapacity && it.hasNext()) {
+            Map.Entry<MailBody.Key, Long> eldest = it.next();
+            it.remove();
+            protectedBytes -= weight(eldest.getValue());
+            probation.put(eldest.getKey(), eldest.getValue());
+            probationBytes += weight(eldest.getValue());
+        }
+        evictOverflow();
+    }
+
+    private void evictOverflow() {
+        while (probationBytes + protectedBytes > capacity && evictOne()) {
+            // 持续淘汰直到回到容量以内
+        }
+    }
+
+    private static long weight(long handle) {
+        return (handle & 0xFFFFFF) + ENTRY_OVERHEAD;
+    }
+}
@@ -0,0 +1,93 @@
+package com.esmcp.services.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * 正文编解码器
+ * 编解码器标识随正文记录一起写入日志，读取时据此选择解码方式
+ */
+public interface BodyCodec {
+    byte NONE_ID = 0;
+    byte DEFLATE_ID = 1;
+
+    /** 不压缩 */
+    BodyCodec NONE = new BodyCodec() {
+        @Override
+        public byte id() {
+            return NONE_ID;
+        }
+
+        @Override
+        public byte[] encode(byte[] raw) {
+            return raw;
+        }
+
+        @Override
+        public byte[] decode(byte[] data, int offset, int length, int rawLength) {
+            return Arrays.copyOfRange(data, offset, offset + length);
+        }
+
+        @Override
+        public InputStream decode(InputStream in) {
+            return in;
+        }
+
+        @Override
+        public OutputStream encode(OutputStream out) {
+            return out;
+        }
+    };
+
+    byte id();
+
+    /**
+     * 编码正文
+     */
+    byte[] encode(byte[] raw);
+
+    /**
+     * 流式编码正文，关闭返回的流时同时关闭输出流
+     */
+    OutputStream encode(OutputStream out);
+
+    /**
+     * 解码正文
+     */
+    byte[] decode(byte[] data, int offset, int length, int rawLength) throws IOException;
+
+    /**
+     * 流式解码正文，关闭返回的流时同时关闭输入流
+     */
+    InputStream decode(InputStream in);
+
+    /**
+     * 按名称获取编解码器（配置项storage.compressionCodec）
+     */
+    static BodyCodec forName(String name) {
+        switch (name.toLowerCase()) {
+            case "none":
+                return NONE;
+            case "deflate":
+                return DeflateBodyCodec.INSTANCE;
+            default:
+                throw new IllegalArgumentException("Unknown body codec: " + name);
+        }
+    }
+
+    /**
+     * 按记录中的标识获取编解码器
+     */
+    static BodyCodec forId(byte id) {
+        switch (id) {
+            case NONE_ID:
+                return NONE;
+            case DEFLATE_ID:
+                return DeflateBodyCodec.INSTANCE;
+            default:
+                throw new IllegalArgumentException("Unknown body codec id: " + id);
+        }
+    }
+}
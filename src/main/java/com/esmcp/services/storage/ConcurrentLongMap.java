@@ -0,0 +1,239 @@
+package com.esmcp.services.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * 基本类型long键的并发哈希表
+ * 按键分段，每段是一个线性探测的开放寻址表（键数组+值数组），查找不装箱、不分配。
+ * 读操作先乐观读，校验失败再加读锁；写操作持有段写锁，删除时向前回填探测链，不留墓碑。
+ * 键0保留为空槽标记（邮件ID从1开始）。
+ */
+public class ConcurrentLongMap<V> {
+    private static final long EMPTY = 0L;
+    private static final int SEGMENT_BITS = 4;
+    private static final int MIN_CAPACITY = 16;
+
+    private final Segment<V>[] segments;
+
+    public ConcurrentLongMap() {
+        this(1024);
+    }
+
+    @SuppressWarnings("unchecked")
+    public ConcurrentLongMap(int expectedSize) {
+        segments = (Segment<V>[]) new Segment<?>[1 << SEGMENT_BITS];
+        // 每段容量取2的幂，并保证预期元素数不超过3/4负载
+        int perSegment = (expectedSize >> SEGMENT_BITS) * 4 / 3 + 1;
+        int capacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(perSegment - 1) << 1);
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment<>(capacity);
+        }
+    }
+
+    public V get(long key) {
+        int hash = hash(key);
+        return segmentFor(hash).get(key, hash);
+    }
+
+    /**
+     * 放入键值，返回被替换的旧值
+     */
+    public V put(long key, V value) {
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("Key 0 is reserved");
+        }
+        int hash = hash(key);
+        return segmentFor(hash).put(key, hash, value);
+    }
+
+    public V remove(long key) {
+        int hash = hash(key);
+        return segmentFor(hash).remove(key, hash);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    /**
+     * 所有值的快照
+     */
+    public List<V> values() {
+        List<V> values = new ArrayList<>(size());
+        for (Segment<V> segment : segments) {
+            segment.collect(values);
+        }
+        return values;
+    }
+
+    private Segment<V> segmentFor(int hash) {
+        return segments[hash >>> (32 - SEGMENT_BITS)];
+    }
+
+    /**
+     * 连续的邮件ID经过乘法散列后均匀分布：高位选段，低位选槽
+     */
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static final class Segment<V> {
+        final StampedLock lock = new StampedLock();
+        long[] keys;
+        Object[] values;
+        volatile int size;
+
+        Segment(int capacity) {
+            keys = new long[capacity];
+            values = new Object[capacity];
+        }
+
+        V get(long key, int hash) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp != 0) {
+                V value = find(key, hash);
+                if (lock.validate(stamp)) {
+                    return value;
+                }
+            }
+            stamp = lock.readLock();
+            try {
+                return find(key, hash);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private V find(long key, int hash) {
+            long[] k = keys;
+            Object[] v = values;
+            if (k.length != v.length) {
+                return null; // 扩容中读到了不一致的数组，由调用方校验后重试
+            }
+            int mask = k.length - 1;
+            int index = hash & mask;
+            for (int probes = 0; probes < k.length; probes++) {
+                long current = k[index];
+                if (current == key) {
+                    return (V) v[index];
+                }
+                if (current == EMPTY) {
+                    return null;
+                }
+                index = (index + 1) & mask;
+            }
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        V put(long key, int hash, V value) {
+            long stamp = lock.writeLock();
+            try {
+                int mask = keys.length - 1;
+                int index = hash & mask;
+                while (keys[index] != EMPTY) {
+                    if (keys[index] == key) {
+                        V previous = (V) values[index];
+                        values[index] = value;
+                        return previous;
+                    }
+                    index = (index + 1) & mask;
+                }
+                keys[index] = key;
+                values[index] = value;
+                size++;
+                if (size > keys.length * 3 / 4) {
+                    resize();
+                }
+                return null;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        V remove(long key, int hash) {
+            long stamp = lock.writeLock();
+            try {
+                int mask = keys.length - 1;
+                int index = hash & mask;
+                while (keys[index] != key) {
+                    if (keys[index] == EMPTY) {
+                        return null;
+                    }
+                    index = (index + 1) & mask;
+                }
+                V previous = (V) values[index];
+
+                // 把后续探测链上可以前移的键回填到空位，保持查找链连续
+                int gap = index;
+                int next = index;
+                while (true) {
+                    next = (next + 1) & mask;
+                    long candidate = keys[next];
+                    if (candidate == EMPTY) {
+                        break;
+                    }
+                    int home = hash(candidate) & mask;
+                    boolean between = gap <= next
+                        ? gap < home && home <= next
+                        : gap < home || home <= next;
+                    if (!between) {
+                        keys[gap] = candidate;
+                        values[gap] = values[next];
+                        gap = next;
+                    }
+                }
+                keys[gap] = EMPTY;
+                values[gap] = null;
+                size--;
+                return previous;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void collect(List<V> out) {
+            long stamp = lock.readLock();
+            try {
+                for (int i = 0; i < keys.length; i++) {
+                    if (keys[i] != EMPTY) {
+                        out.add((V) values[i]);
+                    }
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            long[] newKeys = new long[oldKeys.length * 2];
+            Object[] newValues = new Object[oldKeys.length * 2];
+            int mask = newKeys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                long key = oldKeys[i];
+                if (key != EMPTY) {
+                    int index = hash(key) & mask;
+                    while (newKeys[index] != EMPTY) {
+                        index = (index + 1) & mask;
+                    }
+                    newKeys[index] = key;
+                    newValues[index] = oldValues[i];
+                }
+            }
+            keys = newKeys;
+            values = newValues;
+        }
+    }
+}
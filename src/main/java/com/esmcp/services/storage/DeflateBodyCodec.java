@@ -0,0 +1,103 @@
+package com.esmcp.services.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 基于JDK Deflater的正文编解码器，使用最快压缩级别
+ */
+public class DeflateBodyCodec implements BodyCodec {
+    static final DeflateBodyCodec INSTANCE = new DeflateBodyCodec();
+
+    @Override
+    public byte id() {
+        return DEFLATE_ID;
+    }
+
+    @Override
+    public byte[] encode(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            byte[] out = new byte[raw.length + 64];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            return Arrays.copyOf(out, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public OutputStream encode(OutputStream out) {
+        return new DeflaterOutputStream(out, new Deflater(Deflater.BEST_SPEED, true), 8192) {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    try {
+                        super.close();
+                    } finally {
+                        def.end();
+                    }
+                }
+            }
+        };
+    }
+
+    @Override
+    public byte[] decode(byte[] data, int offset, int length, int rawLength) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data, offset, length);
+            byte[] out = new byte[rawLength];
+            int n = 0;
+            while (n < rawLength) {
+                int read = inflater.inflate(out, n, rawLength - n);
+                if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                n += read;
+            }
+            if (n != rawLength) {
+                throw new IOException("Corrupted compressed body: expected " + rawLength + " bytes, got " + n);
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted compressed body", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public InputStream decode(InputStream in) {
+        return new InflaterInputStream(in, new Inflater(true), 8192) {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    inf.end();
+                    super.close();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,35 @@
+package com.esmcp.services.storage;
+
+/**
+ * 邮件元数据
+ * 正文不驻留在堆中，指向按内容共享的MailBody，按需从日志读取；
+ * 已读等标志由MailboxIndex按邮箱集中保存
+ */
+public class Mail {
+    final long mailId;
+    final String from;
+    final String to;
+    final String subject;
+    final long timestamp;
+    final int recordSize;
+    final MailBody body;
+    volatile long address; // 压缩时会被重定位
+
+    Mail(long mailId, String from, String to, String subject, long timestamp,
+         MailBody body, long address, int recordSize) {
+        this.mailId = mailId;
+        this.from = from;
+        this.to = to;
+        this.subject = subject;
+        this.timestamp = timestamp;
+        this.body = body;
+        this.address = address;
+        this.recordSize = recordSize;
+    }
+
+    public long getMailId() { return mailId; }
+    public String getFrom() { return from; }
+    public String getTo() { return to; }
+    public String getSubject() { return subject; }
+    public long getTimestamp() { return timestamp; }
+}
@@ -0,0 +1,111 @@
+package com.esmcp.services.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * 共享邮件正文
+ * 正文按内容寻址（SHA-256），相同内容只存储一份，由引用计数管理生命周期
+ */
+public class MailBody {
+    static final int DIGEST_LENGTH = 32;
+
+    final Key key;
+    int length;           // UTF-8编码后的字节数（回放时可能延后填充）
+    volatile long address = -1; // 正文记录在日志中的地址，压缩时会被重定位
+    volatile int recordSize;
+    int refCount;         // 由MailStore的锁保护
+
+    MailBody(Key key, int length) {
+        this.key = key;
+        this.length = length;
+    }
+
+    public int getLength() { return length; }
+
+    /**
+     * 计算正文内容的摘要
+     */
+    static Key digest(byte[] content) {
+        try {
+            return new Key(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * 分块读取文件计算摘要
+     */
+    static Key digest(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] chunk = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(chunk)) > 0) {
+                digest.update(chunk, 0, n);
+            }
+            return new Key(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * 计算字符串的UTF-8编码长度，不分配内存
+     */
+    static long utf8Length(String text) {
+        if (text == null) {
+            return 0;
+        }
+        long length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    static byte[] encode(String body) {
+        return body != null ? body.getBytes(StandardCharsets.UTF_8) : new byte[0];
+    }
+
+    /**
+     * 内容摘要键
+     */
+    static final class Key {
+        final byte[] digest;
+        private final int hash;
+
+        Key(byte[] digest) {
+            this.digest = digest;
+            this.hash = Arrays.hashCode(digest);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(digest, ((Key) o).digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,600 @@
+package com.esmcp.services.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * 分段追加日志
+ * 记录按顺序追加到固定大小的段文件中，通过FileChannel写入。
+ * 记录地址由段号和段内偏移组成（高24位为段号，低40位为偏移）。
+ * 记录格式: [int 负载长度][int CRC32][byte 类型][负载]
+ */
+public class MailLog implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(MailLog.class);
+
+    private static final int MAGIC = 0x45534D4C; // "ESML"
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER = 8;
+    static final int RECORD_HEADER = 9;
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+    private static final String SUFFIX = ".log";
+
+    /**
+     * 刷盘策略
+     */
+    public enum FsyncPolicy {
+        /** 每次追加后刷盘（并发写入合并为一次刷盘） */
+        ALWAYS,
+        /** 由后台定时刷盘 */
+        INTERVAL,
+        /** 不主动刷盘，仅在段滚动和关闭时刷盘 */
+        NEVER
+    }
+
+    /**
+     * 记录访问器
+     */
+    public interface RecordVisitor {
+        void visit(long address, byte type, byte[] payload) throws IOException;
+    }
+
+    private final Path directory;
+    private final long segmentSize;
+    private final FsyncPolicy fsyncPolicy;
+    private final ConcurrentNavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private final Object syncLock = new Object();
+    private volatile Segment active;
+    private volatile long durableAddress = -1;
+
+    public MailLog(Path directory, long segmentSize, FsyncPolicy fsyncPolicy) throws IOException {
+        if (segmentSize <= FILE_HEADER || segmentSize > OFFSET_MASK) {
+            throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.fsyncPolicy = fsyncPolicy;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * 打开已有段并按顺序回放所有记录，截断末尾的残缺记录
+     * 必须在第一次追加前调用
+     */
+    public synchronized void open(RecordVisitor visitor) throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    ids.add(Integer.parseInt(name.substring(0, name.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring unexpected file in mail log: {}", path);
+                }
+            }
+        }
+        ids.sort(null);
+
+        for (int i = 0; i < ids.size(); i++) {
+            Segment segment = openSegment(ids.get(i), false);
+            segments.put(segment.id, segment);
+            recover(segment, visitor, i == ids.size() - 1);
+        }
+
+        Segment last = ids.isEmpty() ? null : segments.get(ids.get(ids.size() - 1));
+        if (last != null && last.writePosition < segmentSize) {
+            active = last;
+        } else {
+            active = openSegment(last != null ? last.id + 1 : 1, true);
+            segments.put(active.id, active);
+        }
+        durableAddress = address(active.id, active.writePosition);
+
+        logger.info("Mail log opened at {} with {} segments", directory, segments.size());
+    }
+
+    /**
+     * 追加一条记录，返回记录地址
+     */
+    public long append(byte type, byte[] payload) throws IOException {
+        ByteBuffer buffer = encode(type, payload);
+        synchronized (this) {
+            Segment segment = active;
+            if (segment.writePosition > FILE_HEADER
+                    && segment.writePosition + buffer.remaining() > segmentSize) {
+                segment = roll();
+            }
+            long position = segment.writePosition;
+            while (buffer.hasRemaining()) {
+                position += segment.channel.write(buffer, position);
+            }
+            long address = address(segment.id, segment.writePosition);
+            segment.totalBytes.addAndGet(position - segment.writePosition);
+            segment.writePosition = position;
+            return address;
+        }
+    }
+
+    /**
+     * 以流的方式追加一条记录，负载按块写入，返回记录地址
+     * 先写负载再回填记录头（含CRC），写入中途失败的残缺记录不会被当作有效记录
+     */
+    public long append(byte type, int length, InputStream payload) throws IOException {
+        synchronized (this) {
+            Segment segment = active;
+            if (segment.writePosition > FILE_HEADER
+                    && segment.writePosition + RECORD_HEADER + length > segmentSize) {
+                segment = roll();
+            }
+            long start = segment.writePosition;
+            long position = start + RECORD_HEADER;
+            CRC32 crc = new CRC32();
+            crc.update(type);
+            byte[] chunk = new byte[64 * 1024];
+            long remaining = length;
+            while (remaining > 0) {
+                int n = payload.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+                if (n < 0) {
+                    throw new EOFException("Record payload shorter than " + length + " bytes");
+                }
+                crc.update(chunk, 0, n);
+                ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, n);
+                while (buffer.hasRemaining()) {
+                    position += segment.channel.write(buffer, position);
+                }
+                remaining -= n;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+            header.putInt(length);
+            header.putInt((int) crc.getValue());
+            header.put(type);
+            header.flip();
+            long headerPosition = start;
+            while (header.hasRemaining()) {
+                headerPosition += segment.channel.write(header, headerPosition);
+            }
+
+            segment.totalBytes.addAndGet(position - start);
+            segment.writePosition = position;
+            return address(segment.id, start);
+        }
+    }
+
+    /**
+     * 按刷盘策略提交到指定地址为止的写入
+     * ALWAYS策略下，并发调用者共享同一次force（组提交）
+     */
+    public void commit(long address) throws IOException {
+        if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+            sync(address);
+        }
+    }
+
+    /**
+     * 强制刷盘，保证到指定地址为止的写入已持久化
+     */
+    public void sync(long address) throws IOException {
+        if (address < durableAddress) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (address < durableAddress) {
+                return;
+            }
+            Segment segment;
+            long tail;
+            synchronized (this) {
+                segment = active;
+                tail = segment.writePosition;
+            }
+            segment.channel.force(false);
+            durableAddress = address(segment.id, tail);
+        }
+    }
+
+    /**
+     * 刷盘当前所有写入
+     */
+    public void sync() throws IOException {
+        Segment segment = active;
+        if (segment != null) {
+            sync(address(segment.id, segment.writePosition) - 1);
+        }
+    }
+
+    /**
+     * 读取记录负载
+     */
+    public byte[] read(long address) throws IOException {
+        Segment segment = segments.get(segmentId(address));
+        if (segment == null) {
+            throw new IOException("Segment not found for address " + address);
+        }
+        long offset = offset(address);
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        readFully(segment.channel, header, offset);
+        header.flip();
+        int length = header.getInt();
+        int crc = header.getInt();
+        byte type = header.get();
+
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(segment.channel, payload, offset + RECORD_HEADER);
+        if (checksum(type, payload.array()) != crc) {
+            throw new IOException("Checksum mismatch at address " + address);
+        }
+        return payload.array();
+    }
+
+    /**
+     * 以流的方式读取记录负载，不把整条记录读入内存
+     * 流使用独立打开的文件句柄，读取期间段被压缩回收也不受影响；读到末尾时校验CRC
+     */
+    public InputStream openRecord(long address) throws IOException {
+        Segment segment = segments.get(segmentId(address));
+        if (segment == null) {
+            throw new IOException("Segment not found for address " + address);
+        }
+        FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ);
+        try {
+            long offset = offset(address);
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+            readFully(channel, header, offset);
+            header.flip();
+            int length = header.getInt();
+            int crc = header.getInt();
+            byte type = header.get();
+            if (length < 0 || offset + RECORD_HEADER + length > channel.size()) {
+                throw new IOException("Invalid record at address " + address);
+            }
+            return new RecordInputStream(channel, offset + RECORD_HEADER, length, type, crc, address);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 记录失效的字节数，用于压缩候选段的选择
+     */
+    public void markDead(long address, int recordSize) {
+        Segment segment = segments.get(segmentId(address));
+        if (segment != null) {
+            segment.deadBytes.addAndGet(recordSize);
+        }
+    }
+
+    /**
+     * 返回失效比例超过阈值的已封存段
+     */
+    public List<Integer> compactionCandidates(double threshold) {
+        List<Integer> candidates = new ArrayList<>();
+        Segment current = active;
+        for (Segment segment : segments.values()) {
+            if (segment == current) {
+                continue;
+            }
+            long total = segment.totalBytes.get();
+            if (total == 0 || (double) segment.deadBytes.get() / total >= threshold) {
+                candidates.add(segment.id);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * 返回所有已封存段的段号，按从旧到新排列
+     */
+    public List<Integer> sealedSegments() {
+        List<Integer> sealed = new ArrayList<>();
+        Segment current = active;
+        for (Segment segment : segments.values()) {
+            if (segment != current) {
+                sealed.add(segment.id);
+            }
+        }
+        return sealed;
+    }
+
+    /**
+     * 顺序扫描一个段中的所有记录
+     */
+    public void scan(int segmentId, RecordVisitor visitor) throws IOException {
+        Segment segment = segments.get(segmentId);
+        if (segment == null) {
+            return;
+        }
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(segment.path), 64 * 1024)) {
+            DataInputStream data = new DataInputStream(in);
+            data.skipBytes(FILE_HEADER);
+            long position = FILE_HEADER;
+            while (position < segment.writePosition) {
+                int length = data.readInt();
+                data.readInt();
+                byte type = data.readByte();
+                byte[] payload = new byte[length];
+                data.readFully(payload);
+                visitor.visit(address(segmentId, position), type, payload);
+                position += RECORD_HEADER + length;
+            }
+        }
+    }
+
+    /**
+     * 删除一个已封存的段
+     */
+    public void dropSegment(int segmentId) throws IOException {
+        Segment segment = segments.get(segmentId);
+        if (segment == null || segment == active) {
+            return;
+        }
+        segments.remove(segmentId);
+        segment.channel.close();
+        Files.deleteIfExists(segment.path);
+        logger.info("Mail log segment {} reclaimed", segmentId);
+    }
+
+    /**
+     * 是否存在段号不大于给定值的段（不计排除的段）
+     */
+    public boolean hasSegmentAtOrBelow(int segmentId, int excluded) {
+        for (int id : segments.keySet()) {
+            if (id > segmentId) {
+                return false;
+            }
+            if (id != excluded) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int segmentCount() {
+        return segments.size();
+    }
+
+    public long sizeOnDisk() {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.writePosition;
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (Segment segment : segments.values()) {
+            if (segment == active) {
+                segment.channel.force(false);
+            }
+            segment.channel.close();
+        }
+        segments.clear();
+    }
+
+    public static int segmentId(long address) {
+        return (int) (address >>> OFFSET_BITS);
+    }
+
+    static long offset(long address) {
+        return address & OFFSET_MASK;
+    }
+
+    static long address(int segmentId, long offset) {
+        return ((long) segmentId << OFFSET_BITS) | offset;
+    }
+
+    private Segment roll() throws IOException {
+        // 封存前刷盘，保证所有已封存段均已持久化
+        Segment sealed = active;
+        sealed.channel.force(false);
+        Segment next = openSegment(sealed.id + 1, true);
+        segments.put(next.id, next);
+        active = next;
+        return next;
+    }
+
+    private Segment openSegment(int id, boolean create) throws IOException {
+        Path path = directory.resolve(String.format("%08d%s", id, SUFFIX));
+        FileChannel channel = create
+            ? FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)
+            : FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(id, path, channel);
+        if (create) {
+            writeHeader(segment);
+        }
+        return segment;
+    }
+
+    /**
+     * 写入段文件头并刷盘，新段的文件头在第一条记录之前持久化
+     */
+    private static void writeHeader(Segment segment) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER).putInt(MAGIC).putInt(VERSION);
+        header.flip();
+        while (header.hasRemaining()) {
+            segment.channel.write(header, FILE_HEADER - header.remaining());
+        }
+        segment.channel.force(true);
+        segment.writePosition = FILE_HEADER;
+    }
+
+    /**
+     * 最新的段可能在滚动后、文件头落盘前崩溃，留下不足8字节或全零的文件头，
+     * 这样的段没有任何记录，重写文件头后继续使用
+     */
+    private static boolean tornHeader(Segment segment, long size) throws IOException {
+        if (size < FILE_HEADER) {
+            return true;
+        }
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+        readFully(segment.channel, header, 0);
+        header.flip();
+        return header.getLong() == 0;
+    }
+
+    private void recover(Segment segment, RecordVisitor visitor, boolean newest) throws IOException {
+        long size = segment.channel.size();
+        long position = FILE_HEADER;
+
+        if (newest && tornHeader(segment, size)) {
+            logger.warn("Rewriting torn header of newest segment {} ({} bytes discarded)", segment.id, size);
+            segment.channel.truncate(0);
+            writeHeader(segment);
+            segment.totalBytes.set(0);
+            return;
+        }
+
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(segment.path), 64 * 1024)) {
+            DataInputStream data = new DataInputStream(in);
+            if (size < FILE_HEADER || data.readInt() != MAGIC || data.readInt() != VERSION) {
+                throw new IOException("Not a mail log segment: " + segment.path);
+            }
+            while (position + RECORD_HEADER <= size) {
+                int length = data.readInt();
+                int crc = data.readInt();
+                byte type = data.readByte();
+                if (length < 0 || position + RECORD_HEADER + length > size) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                data.readFully(payload);
+                if (checksum(type, payload) != crc) {
+                    break;
+                }
+                visitor.visit(address(segment.id, position), type, payload);
+                position += RECORD_HEADER + length;
+            }
+        } catch (EOFException e) {
+            // 残缺记录，按截断处理
+        }
+
+        if (position < size) {
+            logger.warn("Truncating torn tail of segment {} at offset {} ({} bytes discarded)",
+                segment.id, position, size - position);
+            segment.channel.truncate(position);
+            segment.channel.force(true);
+        }
+        segment.writePosition = position;
+        segment.totalBytes.set(position - FILE_HEADER);
+    }
+
+    private static ByteBuffer encode(byte type, byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putInt(checksum(type, payload));
+        buffer.put(type);
+        buffer.put(payload);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int checksum(byte type, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new EOFException("Unexpected end of segment at " + position);
+            }
+        }
+    }
+
+    /**
+     * 按位置读取一条记录负载的输入流
+     */
+    private static final class RecordInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long end;
+        private final int expectedCrc;
+        private final long address;
+        private final CRC32 crc = new CRC32();
+        private long position;
+
+        RecordInputStream(FileChannel channel, long position, int length, byte type, int expectedCrc, long address) {
+            this.channel = channel;
+            this.position = position;
+            this.end = position + length;
+            this.expectedCrc = expectedCrc;
+            this.address = address;
+            crc.update(type);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, end - position));
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of segment at " + position);
+            }
+            crc.update(b, off, n);
+            position += n;
+            if (position == end && (int) crc.getValue() != expectedCrc) {
+                throw new IOException("Checksum mismatch at address " + address);
+            }
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static final class Segment {
+        final int id;
+        final Path path;
+        final FileChannel channel;
+        final AtomicLong totalBytes = new AtomicLong();
+        final AtomicLong deadBytes = new AtomicLong();
+        volatile long writePosition;
+
+        Segment(int id, Path path, FileChannel channel) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+}
@@ -1,30 +1,101 @@
 package com.esmcp.services.storage;
 
+import com.esmcp.config.ServerConfig;
 import com.esmcp.kernel.Service;
 import com.esmcp.message.Message;
 import com.esmcp.message.MessageType;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.stream.Collectors;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 邮件存储服务
- * 负责邮件的存储、检索和管理
+ * 负责邮件的存储、检索和管理。
+ * 存储按邮箱所有者划分为多个分区，服务线程只负责路由：按收件人哈希或邮件ID（ID对分区数取模）
+ * 把请求转交给对应分区的工作线程处理，由分区直接回复。
+ * 多收件人的存储请求按分区拆分，每个分区为本分区的收件人存储一份正文，全部分区回复后合并回复。
+ * 保留清理由后台定时触发，在各分区工作线程上按时间片增量执行。
  */
 public class MailStorageService extends Service {
-    private final Map<String, Mail> mailStore = new ConcurrentHashMap<>();
-    private final Map<String, List<String>> userMailIndex = new ConcurrentHashMap<>();
-    private final AtomicLong mailIdGenerator = new AtomicLong(1);
+    private static final String PARTITIONS_FILE = "PARTITIONS";
+    
+    private final ServerConfig config;
+    private final int partitionCount;
+    private final StorageMetrics metrics = new StorageMetrics();
+    private StoragePartition[] partitions;
+    private final Map<String, Gather> gathers = new ConcurrentHashMap<>();
+    private ScheduledExecutorService retentionScheduler;
     
     public MailStorageService() {
+        this(ServerConfig.empty());
+    }
+    
+    /**
+     * @param config services.storage配置节，未配置dataDir时使用临时目录
+     */
+    public MailStorageService(ServerConfig config) {
         super("MailStorageService");
+        this.config = config;
+        this.partitionCount = Math.max(1, config.getInt("partitions", 1));
     }
     
     @Override
     public void initialize() {
-        logger.info("MailStorageService initialized");
+        partitions = new StoragePartition[partitionCount];
+        try {
+            checkPartitionLayout();
+            long cacheSize = config.getLong("bodyCacheSize", 64L * 1024 * 1024);
+            for (int i = 0; i < partitionCount; i++) {
+                ServerConfig partitionConfig = config
+                    .with("partitions", partitionCount)
+                    .with("partition", i)
+                    .with("bodyCacheSize", cacheSize / partitionCount);
+                if (config.has("dataDir") && partitionCount > 1) {
+                    partitionConfig = partitionConfig.with("dataDir",
+                        Paths.get(config.getString("dataDir", "data/mail"), "p" + i).toString());
+                }
+                partitions[i] = new StoragePartition(i, serviceName, partitionConfig, metrics, this::partitionReply);
+                partitions[i].open();
+            }
+        } catch (IOException e) {
+            logger.error("Failed to open mail store", e);
+            shutdown();
+            throw new UncheckedIOException(e);
+        }
+        
+        startRetention(RetentionPolicy.from(config.section("retention")));
+        logger.info("MailStorageService initialized, {} partitions, {} mails in store",
+            partitionCount, totalMails());
+    }
+    
+    /**
+     * 定时请求各分区开始一轮保留清理
+     */
+    private void startRetention(RetentionPolicy policy) {
+        long interval = policy.getIntervalMillis();
+        if (!policy.isEnabled() || interval <= 0) {
+            return;
+        }
+        retentionScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "MailRetention");
+            thread.setDaemon(true);
+            return thread;
+        });
+        retentionScheduler.scheduleWithFixedDelay(() -> {
+            for (StoragePartition partition : partitions) {
+                partition.startRetention();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
     }
     
     @Override
@@ -33,155 +104,237 @@ public class MailStorageService extends Service {
         
         switch (type) {
             case MessageType.MAIL_STORE:
-                return handleMailStore(message);
-            case MessageType.MAIL_RETRIEVE:
-                return handleMailRetrieve(message);
+                return routeStore(message);
             case MessageType.MAIL_LIST:
-                return handleMailList(message);
+            case MessageType.MAIL_SEARCH:
+            case MessageType.MAIL_MARK_ALL:
+                return route(message, partitionOf((String) payload(message).get("username")));
+            case MessageType.MAIL_QUOTA:
+            case MessageType.MAIL_STAT:
+                return route(message, partitionOf((String) message.getPayload()));
+            case MessageType.MAIL_RETRIEVE:
             case MessageType.MAIL_DELETE:
-                return handleMailDelete(message);
+                return route(message, partitionOf((Long) message.getPayload()));
             case MessageType.MAIL_MARK:
-                return handleMailMark(message);
+                return route(message, partitionOf((Long) payload(message).get("mailId")));
+            case MessageType.STORAGE_STATS:
+                return handleStorageStats(message);
             default:
                 return createErrorResponse(message, "Unknown message type: " + type);
         }
     }
     
-    private Message handleMailStore(Message message) {
+    /**
+     * 转交给分区处理，由分区工作线程回复
+     */
+    private Message route(Message message, StoragePartition partition) {
+        partition.submit(message);
+        return null;
+    }
+    
+    /**
+     * 单收件人按收件人路由；多收件人按分区拆分，各分区只存储本分区的收件人
+     */
+    private Message routeStore(Message message) {
+        Map<String, Object> mailData = payload(message);
         @SuppressWarnings("unchecked")
-        Map<String, Object> mailData = (Map<String, Object>) message.getPayload();
-        
-        String mailId = String.valueOf(mailIdGenerator.getAndIncrement());
-        Mail mail = new Mail(
-            mailId,
-            (String) mailData.get("from"),
-            (String) mailData.get("to"),
-            (String) mailData.get("subject"),
-            (String) mailData.get("body"),
-            System.currentTimeMillis()
-        );
-        
-        mailStore.put(mailId, mail);
-        
-        // 索引到收件人
-        userMailIndex.computeIfAbsent(mail.to, k -> new ArrayList<>()).add(mailId);
-        
-        logger.info("Mail stored: {} from {} to {}", mailId, mail.from, mail.to);
+        List<String> recipients = (List<String>) mailData.get("recipients");
+        if (recipients == null) {
+            return route(message, partitionOf((String) mailData.get("to")));
+        }
+        Map<StoragePartition, List<String>> groups = new LinkedHashMap<>();
+        for (String recipient : recipients) {
+            groups.computeIfAbsent(partitionOf(recipient), partition -> new ArrayList<>()).add(recipient);
+        }
+        if (groups.size() <= 1) {
+            return route(message, groups.isEmpty() ? partitions[0] : groups.keySet().iterator().next());
+        }
         
-        return Message.builder()
-            .from(serviceName)
-            .to(message.getFrom())
-            .type(MessageType.MAIL_STORE)
-            .payload(Map.of("success", true, "mailId", mailId))
-            .header("replyTo", message.getMessageId())
-            .build();
+        Gather gather = new Gather(message, groups.size());
+        for (Map.Entry<StoragePartition, List<String>> group : groups.entrySet()) {
+            Map<String, Object> part = new HashMap<>(mailData);
+            part.put("recipients", group.getValue());
+            Message request = Message.builder()
+                .from(message.getFrom())
+                .to(serviceName)
+                .type(MessageType.MAIL_STORE)
+                .payload(part)
+                .build();
+            gathers.put(request.getMessageId(), gather);
+            group.getKey().submit(request);
+        }
+        return null;
     }
     
-    private Message handleMailRetrieve(Message message) {
-        String mailId = (String) message.getPayload();
-        Mail mail = mailStore.get(mailId);
-        
-        if (mail == null) {
-            return createErrorResponse(message, "Mail not found: " + mailId);
+    /**
+     * 分区的回复：拆分出的请求先合并，其余直接回复请求方
+     */
+    private void partitionReply(Message response) {
+        Gather gather = gathers.remove(String.valueOf(response.getHeader("replyTo")));
+        if (gather == null) {
+            reply(response);
+            return;
+        }
+        Message merged = gather.add(response);
+        if (merged != null) {
+            reply(merged);
         }
-        
-        mail.read = true;
-        
-        Map<String, Object> mailData = Map.of(
-            "mailId", mail.mailId,
-            "from", mail.from,
-            "to", mail.to,
-            "subject", mail.subject,
-            "body", mail.body,
-            "timestamp", mail.timestamp,
-            "read", mail.read
-        );
-        
-        return Message.builder()
-            .from(serviceName)
-            .to(message.getFrom())
-            .type(MessageType.MAIL_RETRIEVE)
-            .payload(mailData)
-            .header("replyTo", message.getMessageId())
-            .build();
     }
     
-    private Message handleMailList(Message message) {
-        @SuppressWarnings("unchecked")
-        Map<String, Object> params = (Map<String, Object>) message.getPayload();
-        String username = (String) params.get("username");
-        Integer limit = (Integer) params.getOrDefault("limit", 10);
-        
-        List<String> userMails = userMailIndex.getOrDefault(username, Collections.emptyList());
+    /**
+     * 邮箱所有者所在的分区（String.hashCode在不同JVM间稳定，重启后分区不变）
+     */
+    private StoragePartition partitionOf(String owner) {
+        return partitions[owner != null ? Math.floorMod(owner.hashCode(), partitionCount) : 0];
+    }
+    
+    /**
+     * 邮件ID所在的分区，ID = 分区内序号 * 分区数 + 分区号
+     */
+    private StoragePartition partitionOf(Long mailId) {
+        return partitions[mailId != null ? (int) Math.floorMod(mailId, (long) partitionCount) : 0];
+    }
+    
+    /**
+     * 分区数决定了邮箱和ID到分区的映射，已有数据的目录不能改变分区数
+     */
+    private void checkPartitionLayout() throws IOException {
+        if (!config.has("dataDir")) {
+            return;
+        }
+        Path root = Paths.get(config.getString("dataDir", "data/mail"));
+        Path marker = root.resolve(PARTITIONS_FILE);
+        if (Files.exists(marker)) {
+            int existing = Integer.parseInt(new String(Files.readAllBytes(marker), StandardCharsets.UTF_8).trim());
+            if (existing != partitionCount) {
+                throw new IOException("Data directory " + root + " was created with " + existing
+                    + " partitions, configured " + partitionCount);
+            }
+            return;
+        }
+        if (partitionCount > 1 && Files.isDirectory(root)) {
+            try (DirectoryStream<Path> logs = Files.newDirectoryStream(root, "*.log")) {
+                if (logs.iterator().hasNext()) {
+                    throw new IOException("Data directory " + root
+                        + " contains unpartitioned mail, configure partitions: 1");
+                }
+            }
+        }
+        Files.createDirectories(root);
+        Files.write(marker, String.valueOf(partitionCount).getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private Message handleStorageStats(Message message) {
+        long mails = 0;
+        long uniqueBodies = 0;
+        long segments = 0;
+        long diskBytes = 0;
+        long cacheBytes = 0;
+        long cacheOffHeapBytes = 0;
+        for (StoragePartition partition : partitions) {
+            MailStore store = partition.store();
+            mails += store.size();
+            uniqueBodies += store.uniqueBodies();
+            segments += store.segmentCount();
+            diskBytes += store.sizeOnDisk();
+            cacheBytes += store.cachedBytes();
+            cacheOffHeapBytes += store.cacheOffHeapBytes();
+        }
         
-        List<Map<String, Object>> mailList = userMails.stream()
-            .limit(limit)
-            .map(mailStore::get)
-            .filter(Objects::nonNull)
-            .map(mail -> {
-                Map<String, Object> mailInfo = new HashMap<>();
-                mailInfo.put("mailId", mail.mailId);
-                mailInfo.put("from", mail.from);
-                mailInfo.put("subject", mail.subject);
-                mailInfo.put("timestamp", mail.timestamp);
-                mailInfo.put("read", mail.read);
-                return mailInfo;
-            })
-            .collect(Collectors.toList());
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("partitions", partitionCount);
+        stats.put("mails", mails);
+        stats.put("uniqueBodies", uniqueBodies);
+        stats.put("segments", segments);
+        stats.put("diskBytes", diskBytes);
+        stats.put("cacheBytes", cacheBytes);
+        stats.put("cacheOffHeapBytes", cacheOffHeapBytes);
+        stats.putAll(metrics.snapshot());
         
         return Message.builder()
             .from(serviceName)
             .to(message.getFrom())
-            .type(MessageType.MAIL_LIST)
-            .payload(Map.of("mails", mailList, "total", userMails.size()))
+            .type(MessageType.STORAGE_STATS)
+            .payload(stats)
             .header("replyTo", message.getMessageId())
             .build();
     }
     
-    private Message handleMailDelete(Message message) {
-        String mailId = (String) message.getPayload();
-        Mail mail = mailStore.remove(mailId);
-        
-        if (mail != null) {
-            List<String> userMails = userMailIndex.get(mail.to);
-            if (userMails != null) {
-                userMails.remove(mailId);
+    private long totalMails() {
+        long total = 0;
+        for (StoragePartition partition : partitions) {
+            total += partition.store().size();
+        }
+        return total;
+    }
+    
+    @Override
+    public void shutdown() {
+        if (retentionScheduler != null) {
+            retentionScheduler.shutdownNow();
+        }
+        if (partitions == null) {
+            return;
+        }
+        for (StoragePartition partition : partitions) {
+            if (partition == null) {
+                continue;
+            }
+            try {
+                partition.close();
+            } catch (IOException e) {
+                logger.error("Error closing mail store", e);
             }
-            logger.info("Mail deleted: {}", mailId);
         }
-        
-        return Message.builder()
-            .from(serviceName)
-            .to(message.getFrom())
-            .type(MessageType.MAIL_DELETE)
-            .payload(Map.of("success", mail != null))
-            .header("replyTo", message.getMessageId())
-            .build();
+        logger.info("MailStorageService shutdown");
     }
     
-    private Message handleMailMark(Message message) {
-        @SuppressWarnings("unchecked")
-        Map<String, Object> params = (Map<String, Object>) message.getPayload();
-        String mailId = (String) params.get("mailId");
-        Boolean read = (Boolean) params.get("read");
+    /**
+     * 一个拆分到多个分区的存储请求，收齐各分区的回复后合并
+     */
+    private final class Gather {
+        private final Message request;
+        private final Map<String, Long> mailIds = new LinkedHashMap<>();
+        private final List<String> rejected = new ArrayList<>();
+        private int remaining;
+        private String error;
         
-        Mail mail = mailStore.get(mailId);
-        if (mail != null) {
-            mail.read = read;
+        Gather(Message request, int parts) {
+            this.request = request;
+            this.remaining = parts;
         }
         
-        return Message.builder()
-            .from(serviceName)
-            .to(message.getFrom())
-            .type(MessageType.MAIL_MARK)
-            .payload(Map.of("success", mail != null))
-            .header("replyTo", message.getMessageId())
-            .build();
+        /**
+         * 记录一个分区的回复，最后一个分区回复时返回合并后的回复
+         */
+        @SuppressWarnings("unchecked")
+        synchronized Message add(Message response) {
+            if (MessageType.ERROR.equals(response.getType())) {
+                error = String.valueOf(response.getPayload());
+            } else {
+                Map<String, Object> result = payload(response);
+                mailIds.putAll((Map<String, Long>) result.get("mailIds"));
+                rejected.addAll((List<String>) result.get("rejected"));
+            }
+            if (--remaining > 0) {
+                return null;
+            }
+            if (error != null) {
+                return createErrorResponse(request, error);
+            }
+            return Message.builder()
+                .from(serviceName)
+                .to(request.getFrom())
+                .type(MessageType.MAIL_STORE)
+                .payload(Map.of("success", true, "mailIds", mailIds, "rejected", rejected))
+                .header("replyTo", request.getMessageId())
+                .build();
+        }
     }
     
-    @Override
-    public void shutdown() {
-        logger.info("MailStorageService shutdown, {} mails in store", mailStore.size());
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> payload(Message message) {
+        return (Map<String, Object>) message.getPayload();
     }
     
     private Message createErrorResponse(Message request, String error) {
@@ -193,24 +346,4 @@ public class MailStorageService extends Service {
             .header("replyTo", request.getMessageId())
             .build();
     }
-    
-    private static class Mail {
-        final String mailId;
-        final String from;
-        final String to;
-        final String subject;
-        final String body;
-        final long timestamp;
-        boolean read;
-        
-        Mail(String mailId, String from, String to, String subject, String body, long timestamp) {
-            this.mailId = mailId;
-            this.from = from;
-            this.to = to;
-            this.subject = subject;
-            this.body = body;
-            this.timestamp = timestamp;
-            this.read = false;
-        }
-    }
 }
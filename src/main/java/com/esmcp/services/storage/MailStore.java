@@ -0,0 +1,707 @@
+package com.esmcp.services.storage;
+
+import com.esmcp.config.ServerConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * 持久化邮件存储引擎
+ * 邮件写入分段追加日志，内存中仅保留元数据和日志地址（偏移索引），
+ * 启动时回放日志重建索引，后台定期压缩已删除邮件占用的段。
+ * 正文按内容寻址单独存储，相同正文只写一次，按引用计数回收；
+ * 超过阈值的正文经编解码器压缩后写入，元数据始终不压缩。
+ * 近期写入和频繁读取的正文保存在按字节限定容量的内存缓存中，其余正文只在日志中。
+ */
+public class MailStore implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(MailStore.class);
+
+    static final byte RECORD_MAIL = 1;
+    static final byte RECORD_DELETE = 2;
+    static final byte RECORD_BODY = 3;
+
+    // 正文记录: [摘要32字节][byte 编解码器][int 原始长度][编码后的正文]
+    private static final int BODY_HEADER = MailBody.DIGEST_LENGTH + 5;
+
+    private final MailLog log;
+    private final ConcurrentLongMap<Mail> mails = new ConcurrentLongMap<>();
+    private final Map<MailBody.Key, MailBody> bodies = new ConcurrentHashMap<>();
+    private final AtomicLong mailIdGenerator = new AtomicLong(1); // 本分区内的序号
+    private final int idStride;
+    private final int idOffset;
+    private final ScheduledExecutorService maintenance;
+    private final double compactionThreshold;
+    private final Path ephemeralDirectory;
+    private final BodyCodec codec;
+    private final int compressionThreshold;
+    private final StorageMetrics metrics;
+    private final BodyCache bodyCache;
+
+    private MailStore(MailLog log, double compactionThreshold, Path ephemeralDirectory,
+                      BodyCodec codec, int compressionThreshold, long bodyCacheSize,
+                      int idStride, int idOffset, StorageMetrics metrics) {
+        this.log = log;
+        this.idStride = idStride;
+        this.idOffset = idOffset;
+        this.metrics = metrics;
+        this.compactionThreshold = compactionThreshold;
+        this.ephemeralDirectory = ephemeralDirectory;
+        this.codec = codec;
+        this.compressionThreshold = compressionThreshold;
+        this.bodyCache = new BodyCache(bodyCacheSize, metrics);
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, idStride > 1 ? "MailStoreMaintenance-" + idOffset : "MailStoreMaintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 按配置打开存储，未配置dataDir时使用临时目录并在关闭时删除
+     */
+    public static MailStore open(ServerConfig config) throws IOException {
+        return open(config, new StorageMetrics());
+    }
+
+    /**
+     * 打开存储，指标计数器可由多个分区共享
+     * 配置了partitions/partition时，邮件ID为 序号*partitions+partition，由ID即可定位所属分区
+     */
+    public static MailStore open(ServerConfig config, StorageMetrics metrics) throws IOException {
+        int partitions = config.getInt("partitions", 1);
+        int partition = config.getInt("partition", 0);
+        if (partitions < 1 || partition < 0 || partition >= partitions) {
+            throw new IllegalArgumentException("Invalid partition " + partition + " of " + partitions);
+        }
+
+        Path directory;
+        Path ephemeral = null;
+        if (config.has("dataDir")) {
+            directory = Paths.get(config.getString("dataDir", "data/mail"));
+        } else {
+            directory = Files.createTempDirectory("esmcp-mail");
+            ephemeral = directory;
+        }
+
+        MailLog.FsyncPolicy policy = MailLog.FsyncPolicy.valueOf(
+            config.getString("fsyncPolicy", "INTERVAL").toUpperCase());
+        MailLog log = new MailLog(directory, config.getLong("segmentSize", 64L * 1024 * 1024), policy);
+        MailStore store = new MailStore(log, config.getDouble("compactionThreshold", 0.5), ephemeral,
+            BodyCodec.forName(config.getString("compressionCodec", "deflate")),
+            config.getInt("compressionThreshold", 1024),
+            config.getLong("bodyCacheSize", 64L * 1024 * 1024),
+            partitions, partition, metrics);
+        log.open(store::replay);
+        store.releaseUnreferencedBodies();
+        logger.info("MailStore recovered {} mails ({} unique bodies) from {}",
+            store.mails.size(), store.bodies.size(), directory);
+
+        if (policy == MailLog.FsyncPolicy.INTERVAL) {
+            long interval = config.getLong("fsyncInterval", 1000);
+            store.maintenance.scheduleWithFixedDelay(store::syncQuietly, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        long compactionInterval = config.getLong("compactionInterval", 60000);
+        store.maintenance.scheduleWithFixedDelay(store::compactQuietly,
+            compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+        long defragmentInterval = config.getLong("cacheDefragmentInterval", 30000);
+        store.maintenance.scheduleWithFixedDelay(store.bodyCache::defragmentIfNeeded,
+            defragmentInterval, defragmentInterval, TimeUnit.MILLISECONDS);
+        return store;
+    }
+
+    /**
+     * 存储邮件，按刷盘策略提交后返回
+     * 正文已存在时只增加引用计数，不重复写入
+     */
+    public Mail store(String from, String to, String subject, String body, long timestamp) throws IOException {
+        return store(from, List.of(to), subject, body, timestamp).get(0);
+    }
+
+    /**
+     * 为每个收件人各存储一封邮件，正文只摘要、编码和写入一次，所有邮件引用同一份正文，
+     * 最后一次性按刷盘策略提交
+     */
+    public List<Mail> store(String from, List<String> recipients, String subject, String body,
+                            long timestamp) throws IOException {
+        byte[] content = MailBody.encode(body);
+        MailBody.Key key = MailBody.digest(content);
+        // 压缩在锁外完成；仅当正文尚未存在时才需要编码
+        byte[] encoded = bodies.containsKey(key) ? null : encodeBody(key, content);
+
+        return link(from, recipients, subject, timestamp, key, () -> {
+            byte[] bodyRecord = encoded != null ? encoded : encodeBody(key, content);
+            MailBody shared = new MailBody(key, content.length);
+            shared.address = log.append(RECORD_BODY, bodyRecord);
+            shared.recordSize = MailLog.RECORD_HEADER + bodyRecord.length;
+            bodyCache.put(key, content);
+            countStoredBody(content.length, bodyRecord.length - BODY_HEADER, bodyRecord[MailBody.DIGEST_LENGTH]);
+            return shared;
+        });
+    }
+
+    /**
+     * 存储正文在文件中的邮件（大正文提交时的落盘文件）
+     * 摘要、压缩和写入日志都按块进行，正文不会整体读入内存，也不放入缓存；调用方负责删除文件
+     */
+    public Mail store(String from, String to, String subject, Path bodyFile, long timestamp) throws IOException {
+        return store(from, List.of(to), subject, bodyFile, timestamp).get(0);
+    }
+
+    /**
+     * 为每个收件人各存储一封正文在文件中的邮件，正文只写入一次
+     */
+    public List<Mail> store(String from, List<String> recipients, String subject, Path bodyFile,
+                            long timestamp) throws IOException {
+        long length = Files.size(bodyFile);
+        if (length > Integer.MAX_VALUE - BODY_HEADER) {
+            throw new IOException("Mail body too large: " + length + " bytes");
+        }
+        MailBody.Key key = MailBody.digest(bodyFile);
+        Path compressed = bodies.containsKey(key) ? null : compress(bodyFile, length);
+
+        try {
+            return link(from, recipients, subject, timestamp, key, () -> {
+                Path data = compressed != null ? compressed : bodyFile;
+                byte codecId = compressed != null ? codec.id() : BodyCodec.NONE_ID;
+                long dataLength = Files.size(data);
+                ByteBuffer header = ByteBuffer.allocate(BODY_HEADER);
+                header.put(key.digest);
+                header.put(codecId);
+                header.putInt((int) length);
+
+                MailBody shared = new MailBody(key, (int) length);
+                try (InputStream payload = new SequenceInputStream(
+                        new ByteArrayInputStream(header.array()), Files.newInputStream(data))) {
+                    shared.address = log.append(RECORD_BODY, (int) (BODY_HEADER + dataLength), payload);
+                }
+                shared.recordSize = (int) (MailLog.RECORD_HEADER + BODY_HEADER + dataLength);
+                countStoredBody(length, dataLength, codecId);
+                return shared;
+            });
+        } finally {
+            if (compressed != null) {
+                Files.deleteIfExists(compressed);
+            }
+        }
+    }
+
+    /**
+     * 正文记录写入器，在存储锁内且正文尚不存在时调用
+     */
+    private interface BodyWriter {
+        MailBody write() throws IOException;
+    }
+
+    /**
+     * 为每个收件人写入邮件记录并关联共享正文，正文不存在时先由writer写入；
+     * 写入中途失败时已写入的邮件保留，异常抛给调用方
+     */
+    private List<Mail> link(String from, List<String> recipients, String subject, long timestamp,
+                            MailBody.Key key, BodyWriter writer) throws IOException {
+        List<Mail> stored = new ArrayList<>(recipients.size());
+        try {
+            for (String to : recipients) {
+                long id = mailIdGenerator.getAndIncrement() * idStride + idOffset;
+                byte[] record = encodeMail(id, from, to, subject, key, timestamp);
+
+                synchronized (this) {
+                    MailBody shared = bodies.get(key);
+                    if (shared == null) {
+                        shared = writer.write();
+                        bodies.put(key, shared);
+                    }
+                    long address;
+                    try {
+                        address = log.append(RECORD_MAIL, record);
+                    } catch (IOException e) {
+                        if (shared.refCount == 0) {
+                            bodies.remove(key);
+                            bodyCache.invalidate(key);
+                            log.markDead(shared.address, shared.recordSize);
+                        }
+                        throw e;
+                    }
+                    shared.refCount++;
+                    Mail mail = new Mail(id, from, to, subject, timestamp,
+                        shared, address, MailLog.RECORD_HEADER + record.length);
+                    mails.put(mail.mailId, mail);
+                    stored.add(mail);
+                }
+            }
+        } finally {
+            // 提交最后一封即提交了它之前的所有记录
+            if (!stored.isEmpty()) {
+                log.commit(stored.get(stored.size() - 1).address);
+            }
+        }
+        return stored;
+    }
+
+    private void countStoredBody(long rawLength, long storedLength, byte codecId) {
+        metrics.bodiesStored.increment();
+        metrics.rawBodyBytes.add(rawLength);
+        metrics.storedBodyBytes.add(storedLength);
+        if (codecId != BodyCodec.NONE_ID) {
+            metrics.bodiesCompressed.increment();
+        }
+    }
+
+    /**
+     * 把正文文件流式压缩到同目录的临时文件，未达到阈值或压缩后不更小时返回null
+     */
+    private Path compress(Path bodyFile, long length) throws IOException {
+        if (length < compressionThreshold || codec == BodyCodec.NONE) {
+            return null;
+        }
+        Path parent = bodyFile.toAbsolutePath().getParent();
+        Path compressed = Files.createTempFile(parent, "body", ".z");
+        long start = System.nanoTime();
+        try (OutputStream out = codec.encode(Files.newOutputStream(compressed))) {
+            Files.copy(bodyFile, out);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(compressed);
+            throw e;
+        }
+        metrics.compressions.increment();
+        metrics.compressNanos.add(System.nanoTime() - start);
+        if (Files.size(compressed) >= length) {
+            Files.deleteIfExists(compressed);
+            return null;
+        }
+        return compressed;
+    }
+
+    public Mail get(long mailId) {
+        return mails.get(mailId);
+    }
+
+    /**
+     * 读取邮件正文：先查内存缓存，未命中时从日志读取并放入缓存
+     * 读取期间若记录被压缩重定位则按新地址重试
+     */
+    public String readBody(Mail mail) throws IOException {
+        MailBody body = mail.body;
+        byte[] cached = bodyCache.get(body.key);
+        if (cached != null) {
+            return new String(cached, StandardCharsets.UTF_8);
+        }
+        while (true) {
+            long address = body.address;
+            try {
+                byte[] content = decodeBody(log.read(address));
+                bodyCache.put(body.key, content);
+                return new String(content, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                if (body.address == address) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * 以流的方式读取邮件正文（UTF-8字节），用于大正文：
+     * 缓存命中时直接读取缓存副本，否则从日志文件分块读取并流式解压，不填充缓存
+     */
+    public InputStream openBody(Mail mail) throws IOException {
+        MailBody body = mail.body;
+        byte[] cached = bodyCache.get(body.key);
+        if (cached != null) {
+            return new ByteArrayInputStream(cached);
+        }
+        while (true) {
+            long address = body.address;
+            InputStream record = null;
+            try {
+                record = log.openRecord(address);
+                byte[] header = new byte[BODY_HEADER];
+                new DataInputStream(record).readFully(header);
+                metrics.bodiesRead.increment();
+                return BodyCodec.forId(header[MailBody.DIGEST_LENGTH]).decode(record);
+            } catch (IOException e) {
+                if (record != null) {
+                    record.close();
+                }
+                if (body.address == address) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * 读取正文开头至多maxBytes字节，用于索引大正文
+     */
+    public String readBodyPrefix(Mail mail, int maxBytes) throws IOException {
+        try (InputStream in = openBody(mail)) {
+            byte[] prefix = new byte[Math.min(maxBytes, mail.body.length)];
+            int n = 0;
+            while (n < prefix.length) {
+                int read = in.read(prefix, n, prefix.length - n);
+                if (read < 0) {
+                    break;
+                }
+                n += read;
+            }
+            return new String(prefix, 0, n, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * 删除邮件，写入墓碑记录
+     */
+    public Mail delete(long mailId) throws IOException {
+        long address;
+        Mail mail;
+        synchronized (this) {
+            mail = mails.get(mailId);
+            if (mail == null) {
+                return null;
+            }
+            byte[] record = encodeDelete(mailId, mail.address);
+            address = log.append(RECORD_DELETE, record);
+            mails.remove(mailId);
+            log.markDead(mail.address, mail.recordSize);
+            log.markDead(address, MailLog.RECORD_HEADER + record.length);
+            release(mail.body);
+        }
+        log.commit(address);
+        return mail;
+    }
+
+    public Collection<Mail> mails() {
+        return mails.values();
+    }
+
+    public int size() {
+        return mails.size();
+    }
+
+    public int uniqueBodies() {
+        return bodies.size();
+    }
+
+    public StorageMetrics metrics() {
+        return metrics;
+    }
+
+    public long cachedBytes() {
+        return bodyCache.size();
+    }
+
+    public long cacheOffHeapBytes() {
+        return bodyCache.offHeapBytes();
+    }
+
+    public int segmentCount() {
+        return log.segmentCount();
+    }
+
+    public long sizeOnDisk() {
+        return log.sizeOnDisk();
+    }
+
+    /**
+     * 压缩失效比例超过阈值的段：存活记录追加到当前段，然后删除旧段
+     */
+    public void compact() throws IOException {
+        for (int segmentId : log.compactionCandidates(compactionThreshold)) {
+            compactSegment(segmentId);
+        }
+    }
+
+    private void compactSegment(int segmentId) throws IOException {
+        long[] moved = new long[1];
+        log.scan(segmentId, (address, type, payload) -> {
+            if (type == RECORD_MAIL) {
+                long mailId = readLong(payload);
+                synchronized (this) {
+                    Mail mail = mails.get(mailId);
+                    if (mail != null && mail.address == address) {
+                        mail.address = log.append(type, payload);
+                        moved[0]++;
+                    }
+                }
+            } else if (type == RECORD_BODY) {
+                MailBody.Key key = new MailBody.Key(Arrays.copyOf(payload, MailBody.DIGEST_LENGTH));
+                synchronized (this) {
+                    MailBody body = bodies.get(key);
+                    if (body != null && body.address == address) {
+                        body.address = log.append(type, payload);
+                        moved[0]++;
+                    }
+                }
+            } else if (type == RECORD_DELETE) {
+                // 只要更早的段中仍可能存在被删除邮件的副本，墓碑就必须保留
+                long target = decodeDeleteTarget(payload);
+                if (log.hasSegmentAtOrBelow(MailLog.segmentId(target), segmentId)) {
+                    long copy = log.append(type, payload);
+                    log.markDead(copy, MailLog.RECORD_HEADER + payload.length);
+                }
+            }
+        });
+        // 重定位的记录持久化后才能删除旧段
+        log.sync();
+        log.dropSegment(segmentId);
+        logger.info("Compacted segment {}, {} live records relocated", segmentId, moved[0]);
+    }
+
+    @Override
+    public void close() throws IOException {
+        maintenance.shutdownNow();
+        try {
+            maintenance.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.close();
+
+        if (ephemeralDirectory != null) {
+            try (Stream<Path> paths = Files.walk(ephemeralDirectory)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                    try {
+                        Files.deleteIfExists(path);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+        }
+    }
+
+    private void replay(long address, byte type, byte[] payload) throws IOException {
+        switch (type) {
+            case RECORD_MAIL: {
+                MailRecord record = decodeMail(payload);
+                long mailId = record.id;
+                // 压缩后正文记录可能位于引用它的邮件记录之后，先占位，正文记录到达时再填充
+                MailBody body = bodies.computeIfAbsent(record.bodyKey, k -> new MailBody(k, 0));
+                Mail mail = new Mail(mailId, record.from, record.to, record.subject, record.timestamp,
+                    body, address, MailLog.RECORD_HEADER + payload.length);
+                Mail previous = mails.put(mailId, mail);
+                if (previous != null) {
+                    log.markDead(previous.address, previous.recordSize);
+                    previous.body.refCount--;
+                }
+                body.refCount++;
+                bumpMailId(record.id);
+                break;
+            }
+            case RECORD_BODY: {
+                MailBody.Key key = new MailBody.Key(Arrays.copyOf(payload, MailBody.DIGEST_LENGTH));
+                MailBody body = bodies.computeIfAbsent(key, k -> new MailBody(k, 0));
+                if (body.address >= 0) {
+                    log.markDead(body.address, body.recordSize);
+                }
+                body.length = readInt(payload, MailBody.DIGEST_LENGTH + 1);
+                body.address = address;
+                body.recordSize = MailLog.RECORD_HEADER + payload.length;
+                break;
+            }
+            case RECORD_DELETE: {
+                long id = readLong(payload);
+                Mail removed = mails.remove(id);
+                if (removed != null) {
+                    log.markDead(removed.address, removed.recordSize);
+                    removed.body.refCount--;
+                }
+                log.markDead(address, MailLog.RECORD_HEADER + payload.length);
+                bumpMailId(id);
+                break;
+            }
+            default:
+                logger.warn("Unknown record type {} at address {}", type, address);
+        }
+    }
+
+    /**
+     * 回放结束后回收没有邮件引用的正文
+     */
+    private void releaseUnreferencedBodies() {
+        bodies.values().removeIf(body -> {
+            if (body.refCount > 0 && body.address < 0) {
+                logger.error("Body record missing for {} mails", body.refCount);
+            }
+            if (body.refCount <= 0) {
+                if (body.address >= 0) {
+                    log.markDead(body.address, body.recordSize);
+                }
+                return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * 释放一次正文引用，引用归零时正文记录失效（调用方持有锁）
+     */
+    private void release(MailBody body) {
+        if (--body.refCount == 0) {
+            bodies.remove(body.key);
+            bodyCache.invalidate(body.key);
+            log.markDead(body.address, body.recordSize);
+        }
+    }
+
+    private void bumpMailId(long id) {
+        mailIdGenerator.accumulateAndGet(id / idStride + 1, Math::max);
+    }
+
+    /**
+     * 在维护线程上尽快执行一次压缩（大批量删除后调用，不阻塞调用方）
+     */
+    public void compactSoon() {
+        try {
+            maintenance.execute(this::compactQuietly);
+        } catch (RejectedExecutionException e) {
+            // 存储已关闭
+        }
+    }
+
+    private void syncQuietly() {
+        try {
+            log.sync();
+        } catch (IOException e) {
+            logger.error("Mail log sync failed", e);
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (Exception e) {
+            logger.error("Mail log compaction failed", e);
+        }
+    }
+
+    private static byte[] encodeMail(long id, String from, String to, String subject,
+                                     MailBody.Key bodyKey, long timestamp) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(id);
+        out.writeLong(timestamp);
+        out.writeUTF(from != null ? from : "");
+        out.writeUTF(to != null ? to : "");
+        out.writeUTF(subject != null ? subject : "");
+        out.write(bodyKey.digest);
+        return bytes.toByteArray();
+    }
+
+    private static MailRecord decodeMail(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        MailRecord record = new MailRecord();
+        record.id = in.readLong();
+        record.timestamp = in.readLong();
+        record.from = in.readUTF();
+        record.to = in.readUTF();
+        record.subject = in.readUTF();
+        byte[] digest = new byte[MailBody.DIGEST_LENGTH];
+        in.readFully(digest);
+        record.bodyKey = new MailBody.Key(digest);
+        return record;
+    }
+
+    /**
+     * 编码正文记录，达到阈值且压缩后更小时使用配置的编解码器
+     */
+    private byte[] encodeBody(MailBody.Key key, byte[] content) {
+        BodyCodec used = BodyCodec.NONE;
+        byte[] data = content;
+        if (content.length >= compressionThreshold && codec != BodyCodec.NONE) {
+            long start = System.nanoTime();
+            byte[] compressed = codec.encode(content);
+            metrics.compressions.increment();
+            metrics.compressNanos.add(System.nanoTime() - start);
+            if (compressed.length < content.length) {
+                used = codec;
+                data = compressed;
+            }
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(BODY_HEADER + data.length);
+        record.put(key.digest);
+        record.put(used.id());
+        record.putInt(content.length);
+        record.put(data);
+        return record.array();
+    }
+
+    private byte[] decodeBody(byte[] payload) throws IOException {
+        byte codecId = payload[MailBody.DIGEST_LENGTH];
+        int rawLength = readInt(payload, MailBody.DIGEST_LENGTH + 1);
+        long start = System.nanoTime();
+        byte[] content = BodyCodec.forId(codecId).decode(payload, BODY_HEADER, payload.length - BODY_HEADER, rawLength);
+        if (codecId != BodyCodec.NONE_ID) {
+            metrics.decompressNanos.add(System.nanoTime() - start);
+            metrics.decompressions.increment();
+        }
+        metrics.bodiesRead.increment();
+        return content;
+    }
+
+    private static byte[] encodeDelete(long id, long target) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(id);
+        out.writeLong(target);
+        return bytes.toByteArray();
+    }
+
+    private static long decodeDeleteTarget(byte[] payload) {
+        long target = 0;
+        for (int i = 8; i < 16; i++) {
+            target = (target << 8) | (payload[i] & 0xFF);
+        }
+        return target;
+    }
+
+    private static int readInt(byte[] payload, int offset) {
+        return ((payload[offset] & 0xFF) << 24) | ((payload[offset + 1] & 0xFF) << 16)
+            | ((payload[offset + 2] & 0xFF) << 8) | (payload[offset + 3] & 0xFF);
+    }
+
+    private static long readLong(byte[] payload) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (payload[i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static class MailRecord {
+        long id;
+        long timestamp;
+        String from;
+        String to;
+        String subject;
+        MailBody.Key bodyKey;
+    }
+}
@@ -0,0 +1,438 @@
+package com.esmcp.services.storage;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 收件箱索引
+ * 每个邮箱的邮件ID按升序存放在若干有序块中，每块最多BLOCK_SIZE个ID（基本类型long数组），
+ * 块按其最小ID放在有序映射中。增删先用O(log n)定位到块，块内移动至多BLOCK_SIZE个元素，
+ * 块满时分裂、过空时与相邻块合并，大邮箱的增删仍是O(log n)。新邮件ID递增，尾部追加时直接开新块，
+ * 已满的块不再分裂。分页从最新的块向前遍历，以上一页最后一封邮件的ID作为游标定位。
+ * 邮件标志（已读、已删除、星标）存放在与ID数组按位置对应的字节数组中，
+ * 邮件数、占用字节数以及未读、星标、待删除计数随增删和标志变化增量维护。
+ */
+public class MailboxIndex {
+    public static final int READ = 1;
+    public static final int DELETED = 1 << 1;
+    public static final int FLAGGED = 1 << 2;
+
+    static final int BLOCK_SIZE = 512;
+
+    private static final long[] EMPTY_IDS = new long[0];
+    private static final byte[] EMPTY_FLAGS = new byte[0];
+
+    private final Map<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+    public void add(Mail mail) {
+        Mailbox mailbox = mailboxes.computeIfAbsent(mail.to, k -> new Mailbox());
+        synchronized (mailbox) {
+            if (mailbox.insert(mail.mailId)) {
+                mailbox.bytes += mail.body.length;
+            }
+        }
+    }
+
+    public void remove(Mail mail) {
+        Mailbox mailbox = mailboxes.get(mail.to);
+        if (mailbox == null) {
+            return;
+        }
+        synchronized (mailbox) {
+            if (mailbox.delete(mail.mailId)) {
+                mailbox.bytes -= mail.body.length;
+            }
+        }
+    }
+
+    /**
+     * 所有邮箱所有者，弱一致视图，遍历期间可以并发增删邮箱
+     */
+    public Set<String> owners() {
+        return mailboxes.keySet();
+    }
+
+    public int count(String username) {
+        Mailbox mailbox = mailboxes.get(username);
+        if (mailbox == null) {
+            return 0;
+        }
+        synchronized (mailbox) {
+            return mailbox.size;
+        }
+    }
+
+    /**
+     * 邮箱占用的字节数（按正文原始大小计，共享正文对每个收件人分别计入）
+     */
+    public long bytes(String username) {
+        Mailbox mailbox = mailboxes.get(username);
+        if (mailbox == null) {
+            return 0;
+        }
+        synchronized (mailbox) {
+            return mailbox.bytes;
+        }
+    }
+
+    /**
+     * 邮件的标志位，邮件不存在时返回-1
+     */
+    public int flags(Mail mail) {
+        Mailbox mailbox = mailboxes.get(mail.to);
+        if (mailbox == null) {
+            return -1;
+        }
+        synchronized (mailbox) {
+            return mailbox.flagsOf(mail.mailId);
+        }
+    }
+
+    /**
+     * 设置和清除一封邮件的标志位，邮件不存在时返回false
+     */
+    public boolean updateFlags(Mail mail, int set, int clear) {
+        Mailbox mailbox = mailboxes.get(mail.to);
+        if (mailbox == null) {
+            return false;
+        }
+        synchronized (mailbox) {
+            return mailbox.update(mail.mailId, set, clear);
+        }
+    }
+
+    /**
+     * 对邮箱中所有邮件设置和清除标志位（单次顺序遍历），返回标志发生变化的邮件数
+     */
+    public int updateAllFlags(String username, int set, int clear) {
+        Mailbox mailbox = mailboxes.get(username);
+        if (mailbox == null) {
+            return 0;
+        }
+        synchronized (mailbox) {
+            // 同一次遍历中更新标志并重新累计计数
+            int changed = 0;
+            mailbox.unread = 0;
+            mailbox.flagged = 0;
+            mailbox.deleted = 0;
+            for (Block block : mailbox.blocks.values()) {
+                byte[] flags = block.flags;
+                for (int i = 0; i < block.size; i++) {
+                    int updated = (flags[i] | set) & ~clear;
+                    if (updated != flags[i]) {
+                        flags[i] = (byte) updated;
+                        changed++;
+                    }
+                    mailbox.count(updated, 1);
+                }
+            }
+            return changed;
+        }
+    }
+
+    /**
+     * 邮箱计数快照
+     */
+    public Stat stat(String username) {
+        Mailbox mailbox = mailboxes.get(username);
+        if (mailbox == null) {
+            return new Stat(0, 0, 0, 0, 0);
+        }
+        synchronized (mailbox) {
+            return new Stat(mailbox.size, mailbox.unread, mailbox.flagged, mailbox.deleted, mailbox.bytes);
+        }
+    }
+
+    /**
+     * 查询一页邮件ID（最新在前），cursor为null时从最新邮件开始
+     */
+    public Page page(String username, int limit, Long cursor) {
+        Mailbox mailbox = mailboxes.get(username);
+        if (mailbox == null || limit <= 0) {
+            return new Page(EMPTY_IDS, EMPTY_FLAGS, null, count(username));
+        }
+
+        synchronized (mailbox) {
+            // 游标之前的块，第一个（最新的）块可能还包含不早于游标的ID
+            NavigableMap<Long, Block> view = cursor != null ? mailbox.blocks.headMap(cursor, false) : mailbox.blocks;
+            int capacity = Math.min(limit, mailbox.size);
+            long[] ids = new long[capacity];
+            byte[] flags = new byte[capacity];
+            int n = 0;
+            boolean more = false;
+            boolean first = true;
+            for (Block block : view.descendingMap().values()) {
+                int i = block.size - 1;
+                if (first && cursor != null) {
+                    int found = block.search(cursor);
+                    i = (found >= 0 ? found : -found - 1) - 1;
+                }
+                first = false;
+                for (; i >= 0; i--) {
+                    if (n == limit) {
+                        more = true;
+                        break;
+                    }
+                    ids[n] = block.ids[i];
+                    flags[n] = block.flags[i];
+                    n++;
+                }
+                if (more) {
+                    break;
+                }
+            }
+            if (n < capacity) {
+                ids = Arrays.copyOf(ids, n);
+                flags = Arrays.copyOf(flags, n);
+            }
+            return new Page(ids, flags, more ? ids[n - 1] : null, mailbox.size);
+        }
+    }
+
+    /**
+     * 分页结果
+     */
+    public static class Page {
+        private final long[] mailIds;
+        private final byte[] flags;
+        private final Long nextCursor;
+        private final int total;
+
+        Page(long[] mailIds, byte[] flags, Long nextCursor, int total) {
+            this.mailIds = mailIds;
+            this.flags = flags;
+            this.nextCursor = nextCursor;
+            this.total = total;
+        }
+
+        public long[] getMailIds() { return mailIds; }
+        public byte[] getFlags() { return flags; }
+        public Long getNextCursor() { return nextCursor; }
+        public int getTotal() { return total; }
+    }
+
+    /**
+     * 邮箱计数
+     */
+    public static class Stat {
+        private final int total;
+        private final int unread;
+        private final int flagged;
+        private final int deleted;
+        private final long bytes;
+
+        Stat(int total, int unread, int flagged, int deleted, long bytes) {
+            this.total = total;
+            this.unread = unread;
+            this.flagged = flagged;
+            this.deleted = deleted;
+            this.bytes = bytes;
+        }
+
+        public int getTotal() { return total; }
+        public int getUnread() { return unread; }
+        public int getFlagged() { return flagged; }
+        public int getDeleted() { return deleted; }
+        public long getBytes() { return bytes; }
+    }
+
+    /**
+     * 单个邮箱的有序块（由邮箱对象的锁保护），块以最小ID为键
+     */
+    private static class Mailbox {
+        final TreeMap<Long, Block> blocks = new TreeMap<>();
+        int size;
+        long bytes;
+        int unread;
+        int flagged;
+        int deleted;
+
+        int flagsOf(long id) {
+            Map.Entry<Long, Block> entry = blocks.floorEntry(id);
+            if (entry == null) {
+                return -1;
+            }
+            Block block = entry.getValue();
+            int index = block.search(id);
+            return index >= 0 ? block.flags[index] : -1;
+        }
+
+        boolean insert(long id) {
+            Map.Entry<Long, Block> entry = blocks.floorEntry(id);
+            Block block;
+            if (entry != null) {
+                block = entry.getValue();
+            } else if (!blocks.isEmpty()) {
+                // 比所有ID都小，放入第一块并更新它的键
+                block = blocks.firstEntry().getValue();
+            } else {
+                block = new Block();
+                blocks.put(id, block);
+            }
+            int index = block.search(id);
+            if (index >= 0) {
+                return false;
+            }
+            index = -index - 1;
+            if (block.size == BLOCK_SIZE) {
+                if (index == BLOCK_SIZE && block == blocks.lastEntry().getValue()) {
+                    // 尾部追加开新块，已满的块保持满
+                    block = new Block();
+                    blocks.put(id, block);
+                    index = 0;
+                } else {
+                    Block upper = block.split();
+                    blocks.put(upper.ids[0], upper);
+                    if (index > block.size) {
+                        index -= block.size;
+                        block = upper;
+                    }
+                }
+            }
+            long oldKey = block.size > 0 ? block.ids[0] : id;
+            block.insert(index, id);
+            if (oldKey != id && index == 0) {
+                blocks.remove(oldKey);
+                blocks.put(id, block);
+            }
+            size++;
+            count(0, 1);
+            return true;
+        }
+
+        boolean delete(long id) {
+            Map.Entry<Long, Block> entry = blocks.floorEntry(id);
+            if (entry == null) {
+                return false;
+            }
+            Block block = entry.getValue();
+            int index = block.search(id);
+            if (index < 0) {
+                return false;
+            }
+            count(block.flags[index], -1);
+            block.remove(index);
+            size--;
+
+            long key = entry.getKey();
+            if (block.size == 0) {
+                blocks.remove(key);
+                return true;
+            }
+            if (index == 0) {
+                blocks.remove(key);
+                key = block.ids[0];
+                blocks.put(key, block);
+            }
+            if (block.size < BLOCK_SIZE / 4) {
+                // 与相邻块合并，避免大量删除后留下许多几乎为空的块
+                Map.Entry<Long, Block> next = blocks.higherEntry(key);
+                Map.Entry<Long, Block> previous = blocks.lowerEntry(key);
+                if (next != null && block.size + next.getValue().size <= BLOCK_SIZE / 2) {
+                    block.append(next.getValue());
+                    blocks.remove(next.getKey());
+                } else if (previous != null && previous.getValue().size + block.size <= BLOCK_SIZE / 2) {
+                    previous.getValue().append(block);
+                    blocks.remove(key);
+                }
+            }
+            return true;
+        }
+
+        boolean update(long id, int set, int clear) {
+            Map.Entry<Long, Block> entry = blocks.floorEntry(id);
+            if (entry == null) {
+                return false;
+            }
+            Block block = entry.getValue();
+            int index = block.search(id);
+            if (index < 0) {
+                return false;
+            }
+            int old = block.flags[index];
+            int updated = (old | set) & ~clear;
+            if (updated != old) {
+                count(old, -1);
+                block.flags[index] = (byte) updated;
+                count(updated, 1);
+            }
+            return true;
+        }
+
+        void count(int value, int delta) {
+            if ((value & READ) == 0) {
+                unread += delta;
+            }
+            if ((value & FLAGGED) != 0) {
+                flagged += delta;
+            }
+            if ((value & DELETED) != 0) {
+                deleted += delta;
+            }
+        }
+    }
+
+    /**
+     * 有序块：升序的ID数组和按位置对应的标志数组，容量按需增长到BLOCK_SIZE
+     */
+    private static class Block {
+        long[] ids = new long[8];
+        byte[] flags = new byte[8];
+        int size;
+
+        int search(long id) {
+            return Arrays.binarySearch(ids, 0, size, id);
+        }
+
+        void insert(int index, long id) {
+            if (size == ids.length) {
+                int capacity = Math.min(BLOCK_SIZE, size * 2);
+                ids = Arrays.copyOf(ids, capacity);
+                flags = Arrays.copyOf(flags, capacity);
+            }
+            System.arraycopy(ids, index, ids, index + 1, size - index);
+            System.arraycopy(flags, index, flags, index + 1, size - index);
+            ids[index] = id;
+            flags[index] = 0;
+            size++;
+        }
+
+        void remove(int index) {
+            System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+            System.arraycopy(flags, index + 1, flags, index, size - index - 1);
+            size--;
+        }
+
+        /**
+         * 把后一半移到新块，返回新块
+         */
+        Block split() {
+            Block upper = new Block();
+            int half = size / 2;
+            upper.ids = new long[BLOCK_SIZE];
+            upper.flags = new byte[BLOCK_SIZE];
+            upper.size = size - half;
+            System.arraycopy(ids, half, upper.ids, 0, upper.size);
+            System.arraycopy(flags, half, upper.flags, 0, upper.size);
+            size = half;
+            return upper;
+        }
+
+        /**
+         * 追加其后的块的全部元素
+         */
+        void append(Block next) {
+            if (size + next.size > ids.length) {
+                ids = Arrays.copyOf(ids, BLOCK_SIZE);
+                flags = Arrays.copyOf(flags, BLOCK_SIZE);
+            }
+            System.arraycopy(next.ids, 0, ids, size, next.size);
+            System.arraycopy(next.flags, 0, flags, size, next.size);
+            size += next.size;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.esmcp.services.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 堆外内存分配器
+ * 在固定大小的直接内存块（slab）上按尺寸级别分配，释放的块进入对应级别的空闲链表。
+ * 分配结果以long句柄表示（slab号 | 24位偏移 | 24位长度），堆中只保存句柄。
+ * 空闲块占比过高时整理内存：存活块整体向前滑动，消除碎片。
+ * 非线程安全，由调用方加锁。
+ */
+public class OffHeapArena {
+    private static final int MIN_SHIFT = 6; // 最小块64字节
+    private static final int SUB_CLASSES = 4; // 每个2的幂区间再细分4级，内部碎片不超过25%
+    private static final int MAX_SLAB_SIZE = 1 << 24;
+    private static final int COPY_CHUNK = 64 * 1024;
+
+    private final int slabSize;
+    private final int maxSlabs;
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+    private final LongStack[] freeLists;
+    private int bumpSlab = -1;
+    private int bumpOffset;
+    private long usedBytes;  // 已分配给存活块的字节数（按级别尺寸计）
+    private long freeBytes;  // 空闲链表中的字节数
+
+    /**
+     * @param capacity 总容量（字节），按slab大小向上取整
+     * @param slabSize 每个slab的大小，不超过16MB
+     */
+    public OffHeapArena(long capacity, int slabSize) {
+        if (slabSize < (1 << MIN_SHIFT) || slabSize > MAX_SLAB_SIZE) {
+            throw new IllegalArgumentException("Invalid slab size: " + slabSize);
+        }
+        this.slabSize = slabSize;
+        this.maxSlabs = (int) Math.min(1 << 15, Math.max(1, (capacity + slabSize - 1) / slabSize));
+        this.freeLists = new LongStack[classIndex(slabSize) + 1];
+    }
+
+    /**
+     * 该长度的内容能否放入一个slab（按尺寸级别取整后），放不下的内容无论释放多少空间都无法分配
+     */
+    public boolean fits(int length) {
+        return length < MAX_SLAB_SIZE && length <= slabSize && classSize(classIndex(length)) <= slabSize;
+    }
+
+    /**
+     * 分配并写入内容，空间不足时返回负数
+     */
+    public long allocate(byte[] content) {
+        int length = content.length;
+        if (!fits(length)) {
+            return -1;
+        }
+        int cls = classIndex(length);
+        int size = classSize(cls);
+
+        long handle;
+        LongStack free = freeLists[cls];
+        if (free != null && free.size > 0) {
+            long block = free.pop();
+            freeBytes -= size;
+            handle = handle(slab(block), offset(block), length);
+        } else {
+            if (bumpSlab < 0 || bumpOffset + size > slabSize) {
+                if (bumpSlab + 1 >= maxSlabs) {
+                    return -1;
+                }
+                bumpSlab++;
+                bumpOffset = 0;
+                if (bumpSlab == slabs.size()) {
+                    slabs.add(ByteBuffer.allocateDirect(slabSize));
+                }
+            }
+            handle = handle(bumpSlab, bumpOffset, length);
+            bumpOffset += size;
+        }
+
+        usedBytes += size;
+        ByteBuffer target = slabs.get(slab(handle)).duplicate();
+        target.position(offset(handle));
+        target.put(content);
+        return handle;
+    }
+
+    public byte[] read(long handle) {
+        byte[] content = new byte[length(handle)];
+        ByteBuffer source = slabs.get(slab(handle)).duplicate();
+        source.position(offset(handle));
+        source.get(content);
+        return content;
+    }
+
+    public void free(long handle) {
+        int cls = classIndex(length(handle));
+        if (freeLists[cls] == null) {
+            freeLists[cls] = new LongStack();
+        }
+        freeLists[cls].push(handle(slab(handle), offset(handle), 0));
+        int size = classSize(cls);
+        usedBytes -= size;
+        freeBytes += size;
+    }
+
+    /**
+     * 空闲链表中的字节占已分配区域的比例是否超过阈值
+     */
+    public boolean isFragmented(double threshold) {
+        long span = usedBytes + freeBytes;
+        return span > 0 && (double) freeBytes / span >= threshold;
+    }
+
+    /**
+     * 整理内存：按地址顺序把所有存活块滑动到前部，句柄数组被原地更新为新句柄
+     */
+    public void defragment(long[] handles) {
+        Integer[] order = new Integer[handles.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(position(handles[a]), position(handles[b])));
+
+        byte[] chunk = new byte[COPY_CHUNK];
+        int writeSlab = 0;
+        int writeOffset = 0;
+        for (int index : order) {
+            long handle = handles[index];
+            int length = length(handle);
+            int size = classSize(classIndex(length));
+            if (writeOffset + size > slabSize) {
+                writeSlab++;
+                writeOffset = 0;
+            }
+            if (writeSlab != slab(handle) || writeOffset != offset(handle)) {
+                move(slab(handle), offset(handle), writeSlab, writeOffset, length, chunk);
+            }
+            handles[index] = handle(writeSlab, writeOffset, length);
+            writeOffset += size;
+        }
+
+        Arrays.fill(freeLists, null);
+        freeBytes = 0;
+        bumpSlab = handles.length == 0 ? -1 : writeSlab;
+        bumpOffset = handles.length == 0 ? 0 : writeOffset;
+    }
+
+    public long usedBytes() {
+        return usedBytes;
+    }
+
+    public long reservedBytes() {
+        return (long) slabs.size() * slabSize;
+    }
+
+    /**
+     * 目标位置总是不晚于源位置，按块从前向后复制即可安全处理重叠
+     */
+    private void move(int fromSlab, int fromOffset, int toSlab, int toOffset, int length, byte[] chunk) {
+        ByteBuffer source = slabs.get(fromSlab).duplicate();
+        ByteBuffer target = slabs.get(toSlab).duplicate();
+        for (int done = 0; done < length; ) {
+            int n = Math.min(chunk.length, length - done);
+            source.position(fromOffset + done);
+            source.get(chunk, 0, n);
+            target.position(toOffset + done);
+            target.put(chunk, 0, n);
+            done += n;
+        }
+    }
+
+    static int classIndex(int length) {
+        if (length <= (1 << MIN_SHIFT)) {
+            return 0;
+        }
+        int shift = 31 - Integer.numberOfLeadingZeros(length - 1);
+        int base = 1 << shift;
+        int step = base / SUB_CLASSES;
+        int sub = (length - base + step - 1) / step;
+        return (shift - MIN_SHIFT) * SUB_CLASSES + sub;
+    }
+
+    static int classSize(int index) {
+        if (index == 0) {
+            return 1 << MIN_SHIFT;
+        }
+        int shift = (index - 1) / SUB_CLASSES + MIN_SHIFT;
+        int sub = (index - 1) % SUB_CLASSES + 1;
+        int base = 1 << shift;
+        return base + sub * (base / SUB_CLASSES);
+    }
+
+    private static long handle(int slab, int offset, int length) {
+        return ((long) slab << 48) | ((long) offset << 24) | length;
+    }
+
+    private static int slab(long handle) {
+        return (int) (handle >>> 48);
+    }
+
+    private static int offset(long handle) {
+        return (int) ((handle >>> 24) & 0xFFFFFF);
+    }
+
+    private static int length(long handle) {
+        return (int) (handle & 0xFFFFFF);
+    }
+
+    private static long position(long handle) {
+        return handle >>> 24;
+    }
+
+    /**
+     * 基本类型long栈，避免装箱
+     */
+    private static final class LongStack {
+        long[] values = new long[16];
+        int size;
+
+        void push(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long pop() {
+            return values[--size];
+        }
+    }
+}
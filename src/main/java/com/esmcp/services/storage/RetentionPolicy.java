@@ -0,0 +1,49 @@
+package com.esmcp.services.storage;
+
+import com.esmcp.config.ServerConfig;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 邮件保留策略
+ * 按邮件年龄、每个邮箱保留的最大邮件数过期邮件，并清除被标记为删除的邮件。
+ * 清理由后台按时间片增量执行，每个时间片最多占用分区工作线程sliceMillis毫秒。
+ */
+public class RetentionPolicy {
+    private final long maxAgeMillis;
+    private final int maxMailsPerUser;
+    private final boolean expungeDeleted;
+    private final long intervalMillis;
+    private final long sliceNanos;
+
+    RetentionPolicy(long maxAgeMillis, int maxMailsPerUser, boolean expungeDeleted,
+                    long intervalMillis, long sliceNanos) {
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxMailsPerUser = maxMailsPerUser;
+        this.expungeDeleted = expungeDeleted;
+        this.intervalMillis = intervalMillis;
+        this.sliceNanos = sliceNanos;
+    }
+
+    /**
+     * @param config services.storage.retention配置节
+     */
+    public static RetentionPolicy from(ServerConfig config) {
+        return new RetentionPolicy(
+            TimeUnit.DAYS.toMillis(config.getLong("maxAgeDays", 0)),
+            config.getInt("maxMailsPerUser", 0),
+            config.getBoolean("expungeDeleted", true),
+            config.getLong("interval", 60000),
+            TimeUnit.MILLISECONDS.toNanos(config.getLong("sliceMillis", 5)));
+    }
+
+    public boolean isEnabled() {
+        return maxAgeMillis > 0 || maxMailsPerUser > 0 || expungeDeleted;
+    }
+
+    public long getMaxAgeMillis() { return maxAgeMillis; }
+    public int getMaxMailsPerUser() { return maxMailsPerUser; }
+    public boolean isExpungeDeleted() { return expungeDeleted; }
+    public long getIntervalMillis() { return intervalMillis; }
+    public long getSliceNanos() { return sliceNanos; }
+}
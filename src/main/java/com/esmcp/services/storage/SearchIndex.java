@@ -0,0 +1,309 @@
+package com.esmcp.services.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 全文检索索引
+ * 每个邮箱维护一份倒排索引（主题、正文、发件人），倒排表按邮件ID升序以
+ * 差值+变长整数编码压缩存储。删除先记录在墓碑集合中，累积到一定比例后重写倒排表。
+ * 英文等按字母数字切词，中日韩文字按二元组切词。
+ */
+public class SearchIndex {
+    private static final int MAX_TERM_LENGTH = 64;
+    static final int MAX_INDEXED_CHARS = 64 * 1024;
+
+    private final Map<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+    /**
+     * 索引一封邮件
+     */
+    public void add(String owner, long mailId, String from, String subject, String body) {
+        Set<String> terms = new HashSet<>();
+        tokenize(from, terms);
+        tokenize(subject, terms);
+        tokenize(body, terms);
+
+        Mailbox mailbox = mailboxes.computeIfAbsent(owner, k -> new Mailbox());
+        synchronized (mailbox) {
+            mailbox.deleted.remove(mailId);
+            for (String term : terms) {
+                mailbox.postings.computeIfAbsent(term, k -> new Postings()).add(mailId);
+            }
+            mailbox.live++;
+        }
+    }
+
+    /**
+     * 从索引中移除一封邮件
+     */
+    public void remove(String owner, long mailId) {
+        Mailbox mailbox = mailboxes.get(owner);
+        if (mailbox == null) {
+            return;
+        }
+        synchronized (mailbox) {
+            if (!mailbox.deleted.add(mailId)) {
+                return;
+            }
+            mailbox.live--;
+            if (mailbox.deleted.size() > 64 + mailbox.live / 4) {
+                mailbox.purge();
+            }
+        }
+    }
+
+    /**
+     * 查询同时包含所有关键词的邮件，按ID倒序（即最新在前）返回
+     */
+    public Result search(String owner, String query, int limit) {
+        Set<String> terms = new LinkedHashSet<>();
+        tokenize(query, terms);
+        Mailbox mailbox = mailboxes.get(owner);
+        if (mailbox == null || terms.isEmpty()) {
+            return new Result(Collections.emptyList(), 0);
+        }
+
+        long[][] lists = new long[terms.size()][];
+        Set<Long> deleted;
+        synchronized (mailbox) {
+            int i = 0;
+            for (String term : terms) {
+                Postings postings = mailbox.postings.get(term);
+                if (postings == null) {
+                    return new Result(Collections.emptyList(), 0);
+                }
+                lists[i++] = postings.decode();
+            }
+            deleted = mailbox.deleted.isEmpty() ? Collections.emptySet() : new HashSet<>(mailbox.deleted);
+        }
+
+        // 从最短的倒排表开始求交集
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.length, b.length));
+        long[] matches = lists[0];
+        int size = matches.length;
+        for (int i = 1; i < lists.length && size > 0; i++) {
+            size = intersect(matches, size, lists[i]);
+        }
+
+        List<Long> ids = new ArrayList<>(Math.min(limit, size));
+        int total = 0;
+        for (int i = size - 1; i >= 0; i--) {
+            if (deleted.contains(matches[i])) {
+                continue;
+            }
+            total++;
+            if (ids.size() < limit) {
+                ids.add(matches[i]);
+            }
+        }
+        return new Result(ids, total);
+    }
+
+    /**
+     * 切词：字母数字序列转小写作为一个词，中日韩文字按相邻二元组切分
+     */
+    static void tokenize(String text, Set<String> terms) {
+        if (text == null) {
+            return;
+        }
+        int end = Math.min(text.length(), MAX_INDEXED_CHARS);
+        StringBuilder word = new StringBuilder();
+        int prevIdeograph = -1;
+
+        for (int i = 0; i < end; ) {
+            int cp = text.codePointAt(i);
+            i += Character.charCount(cp);
+
+            if (isIdeograph(cp)) {
+                flush(word, terms);
+                if (prevIdeograph >= 0) {
+                    terms.add(new StringBuilder().appendCodePoint(prevIdeograph).appendCodePoint(cp).toString());
+                } else if (i >= end || !isIdeograph(text.codePointAt(i))) {
+                    terms.add(new String(Character.toChars(cp)));
+                }
+                prevIdeograph = cp;
+            } else {
+                prevIdeograph = -1;
+                if (Character.isLetterOrDigit(cp)) {
+                    if (word.length() < MAX_TERM_LENGTH) {
+                        word.appendCodePoint(Character.toLowerCase(cp));
+                    }
+                } else {
+                    flush(word, terms);
+                }
+            }
+        }
+        flush(word, terms);
+    }
+
+    private static void flush(StringBuilder word, Set<String> terms) {
+        if (word.length() > 0) {
+            terms.add(word.toString());
+            word.setLength(0);
+        }
+    }
+
+    private static boolean isIdeograph(int cp) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(cp);
+        return script == Character.UnicodeScript.HAN
+            || script == Character.UnicodeScript.HIRAGANA
+            || script == Character.UnicodeScript.KATAKANA
+            || script == Character.UnicodeScript.HANGUL;
+    }
+
+    /**
+     * 有序数组求交集，结果写回a，返回交集长度
+     */
+    private static int intersect(long[] a, int aSize, long[] b) {
+        int i = 0, j = 0, k = 0;
+        while (i < aSize && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                a[k++] = a[i++];
+                j++;
+            }
+        }
+        return k;
+    }
+
+    /**
+     * 检索结果
+     */
+    public static class Result {
+        private final List<Long> mailIds;
+        private final int total;
+
+        Result(List<Long> mailIds, int total) {
+            this.mailIds = mailIds;
+            this.total = total;
+        }
+
+        public List<Long> getMailIds() { return mailIds; }
+        public int getTotal() { return total; }
+    }
+
+    private static class Mailbox {
+        final Map<String, Postings> postings = new HashMap<>();
+        final Set<Long> deleted = new HashSet<>();
+        int live;
+
+        /**
+         * 重写倒排表，去掉已删除的邮件
+         */
+        void purge() {
+            Iterator<Postings> it = postings.values().iterator();
+            while (it.hasNext()) {
+                Postings list = it.next();
+                list.rewrite(deleted);
+                if (list.count == 0) {
+                    it.remove();
+                }
+            }
+            deleted.clear();
+        }
+    }
+
+    /**
+     * 压缩倒排表：升序邮件ID的差值以变长整数编码
+     */
+    static final class Postings {
+        private byte[] data = new byte[4];
+        private int length;
+        private int count;
+        private long last;
+
+        void add(long id) {
+            if (count > 0 && id <= last) {
+                if (id == last) {
+                    return;
+                }
+                // 乱序插入（仅在恢复时可能出现），解码后重新编码
+                long[] ids = decode();
+                int pos = Arrays.binarySearch(ids, id);
+                if (pos >= 0) {
+                    return;
+                }
+                pos = -pos - 1;
+                long[] merged = new long[ids.length + 1];
+                System.arraycopy(ids, 0, merged, 0, pos);
+                merged[pos] = id;
+                System.arraycopy(ids, pos, merged, pos + 1, ids.length - pos);
+                encode(merged, merged.length);
+                return;
+            }
+            append(id);
+        }
+
+        long[] decode() {
+            long[] ids = new long[count];
+            long value = 0;
+            int pos = 0;
+            for (int i = 0; i < count; i++) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[pos++];
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                value += delta;
+                ids[i] = value;
+            }
+            return ids;
+        }
+
+        void rewrite(Set<Long> removed) {
+            long[] ids = decode();
+            int n = 0;
+            for (long id : ids) {
+                if (!removed.contains(id)) {
+                    ids[n++] = id;
+                }
+            }
+            if (n != ids.length) {
+                encode(ids, n);
+            }
+        }
+
+        private void encode(long[] ids, int n) {
+            data = new byte[Math.max(4, n * 2)];
+            length = 0;
+            count = 0;
+            last = 0;
+            for (int i = 0; i < n; i++) {
+                append(ids[i]);
+            }
+            if (data.length > length + 16) {
+                data = Arrays.copyOf(data, Math.max(4, length));
+            }
+        }
+
+        private void append(long id) {
+            long delta = id - last;
+            if (length + 10 > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + 10));
+            }
+            while ((delta & ~0x7FL) != 0) {
+                data[length++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            data[length++] = (byte) delta;
+            last = id;
+            count++;
+        }
+    }
+}
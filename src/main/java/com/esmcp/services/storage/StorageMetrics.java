@@ -0,0 +1,72 @@
+package com.esmcp.services.storage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 存储服务指标
+ * 计数器可被多个线程并发更新，通过STORAGE_STATS消息查询快照
+ */
+public class StorageMetrics {
+    final LongAdder bodiesStored = new LongAdder();
+    final LongAdder bodiesCompressed = new LongAdder();
+    final LongAdder rawBodyBytes = new LongAdder();
+    final LongAdder storedBodyBytes = new LongAdder();
+    final LongAdder compressions = new LongAdder(); // 达到阈值、实际执行压缩的次数
+    final LongAdder compressNanos = new LongAdder();
+    final LongAdder bodiesRead = new LongAdder(); // 从日志读取（缓存未命中）的次数
+    final LongAdder decompressions = new LongAdder(); // 读取压缩正文时解压的次数
+    final LongAdder decompressNanos = new LongAdder();
+    final LongAdder cacheHits = new LongAdder();
+    final LongAdder cacheMisses = new LongAdder();
+    final LongAdder cacheEvictions = new LongAdder();
+    final LongAdder defragmentations = new LongAdder();
+    final LongAdder defragmentNanos = new LongAdder();
+    final LongAdder retentionPasses = new LongAdder();
+    final LongAdder retentionReclaimed = new LongAdder();
+    final LongAdder retentionPassNanos = new LongAdder(); // 从开始到结束的时长
+    final LongAdder retentionBusyNanos = new LongAdder(); // 实际占用分区线程的时长
+    volatile long lastRetentionPassNanos;
+
+    /**
+     * 指标快照
+     */
+    public Map<String, Object> snapshot() {
+        long stored = bodiesStored.sum();
+        long raw = rawBodyBytes.sum();
+        long encoded = storedBodyBytes.sum();
+        long read = bodiesRead.sum();
+        long compressed = compressions.sum();
+        long decompressed = decompressions.sum();
+
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("bodiesStored", stored);
+        values.put("bodiesCompressed", bodiesCompressed.sum());
+        values.put("rawBodyBytes", raw);
+        values.put("storedBodyBytes", encoded);
+        values.put("compressionRatio", raw > 0 ? (double) encoded / raw : 1.0);
+        values.put("avgCompressMicros", compressed > 0 ? compressNanos.sum() / 1000.0 / compressed : 0.0);
+        values.put("bodiesRead", read);
+        values.put("avgDecompressMicros", decompressed > 0 ? decompressNanos.sum() / 1000.0 / decompressed : 0.0);
+
+        long hits = cacheHits.sum();
+        long lookups = hits + cacheMisses.sum();
+        values.put("cacheHits", hits);
+        values.put("cacheMisses", lookups - hits);
+        values.put("cacheHitRate", lookups > 0 ? (double) hits / lookups : 0.0);
+        values.put("cacheEvictions", cacheEvictions.sum());
+
+        long defrags = defragmentations.sum();
+        values.put("defragmentations", defrags);
+        values.put("avgDefragmentMillis", defrags > 0 ? defragmentNanos.sum() / 1e6 / defrags : 0.0);
+
+        long passes = retentionPasses.sum();
+        values.put("retentionPasses", passes);
+        values.put("retentionReclaimed", retentionReclaimed.sum());
+        values.put("avgRetentionPassMillis", passes > 0 ? retentionPassNanos.sum() / 1e6 / passes : 0.0);
+        values.put("avgRetentionBusyMillis", passes > 0 ? retentionBusyNanos.sum() / 1e6 / passes : 0.0);
+        values.put("lastRetentionPassMillis", lastRetentionPassNanos / 1e6);
+        return values;
+    }
+}
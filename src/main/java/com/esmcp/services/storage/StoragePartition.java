@@ -0,0 +1,716 @@
+package com.esmcp.services.storage;
+
+import com.esmcp.config.ServerConfig;
+import com.esmcp.message.Message;
+import com.esmcp.message.MessageType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * 存储分区
+ * 按邮箱所有者划分，每个分区拥有独立的日志、邮件表、收件箱索引、全文索引和工作线程，
+ * 分区之间不共享可变状态，也不需要跨分区加锁。
+ */
+public class StoragePartition implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(StoragePartition.class);
+    private static final Map<String, Integer> FLAG_NAMES = Map.of(
+        "read", MailboxIndex.READ,
+        "flagged", MailboxIndex.FLAGGED,
+        "deleted", MailboxIndex.DELETED);
+    /** 分区内部消息：执行一个保留清理时间片，不需要回复 */
+    static final String RETENTION_SLICE = "RETENTION_SLICE";
+    private static final String RETENTION_START = "start";
+    private static final int RETENTION_PAGE = 256; // 保留清理每次从邮箱索引取出的邮件数
+
+    private final int index;
+    private final String serviceName;
+    private final ServerConfig config;
+    private final StorageMetrics metrics;
+    private final Consumer<Message> replier;
+    private final int maxMailsPerUser;
+    private final long storageQuota;
+    private final int streamThreshold;
+    private final BlockingQueue<Message> inbox = new LinkedBlockingQueue<>();
+    private final MailboxIndex mailboxIndex = new MailboxIndex();
+    private final SearchIndex searchIndex = new SearchIndex();
+    private final RetentionPolicy retention;
+    private RetentionPass retentionPass; // 仅由工作线程访问
+    private MailStore mailStore;
+    private Thread worker;
+    private volatile boolean running;
+
+    /**
+     * @param config 本分区的存储配置（已包含partition/partitions和分区数据目录）
+     * @param replier 处理完成后回复请求
+     */
+    StoragePartition(int index, String serviceName, ServerConfig config, StorageMetrics metrics,
+                     Consumer<Message> replier) {
+        this.index = index;
+        this.serviceName = serviceName;
+        this.config = config;
+        this.metrics = metrics;
+        this.replier = replier;
+        this.maxMailsPerUser = config.getInt("maxMailsPerUser", 1000);
+        this.storageQuota = config.getLong("storageQuota", 100L * 1024 * 1024);
+        this.streamThreshold = config.getInt("streamThreshold", 64 * 1024);
+        this.retention = RetentionPolicy.from(config.section("retention"));
+    }
+
+    /**
+     * 打开分区存储，重建索引并启动工作线程
+     */
+    void open() throws IOException {
+        mailStore = MailStore.open(config, metrics);
+
+        // 从恢复的邮件重建收件人索引
+        mailStore.mails().forEach(mailboxIndex::add);
+
+        // 按ID顺序重建全文索引，使倒排表保持有序追加；正文只流式读取被索引的开头，
+        // 不整体解压大正文，也不填充正文缓存
+        List<Mail> recovered = new ArrayList<>(mailStore.mails());
+        recovered.sort(Comparator.comparingLong(mail -> mail.mailId));
+        for (Mail mail : recovered) {
+            try {
+                searchIndex.add(mail.to, mail.mailId, mail.from, mail.subject,
+                    mailStore.readBodyPrefix(mail, SearchIndex.MAX_INDEXED_CHARS * 3));
+            } catch (IOException e) {
+                logger.error("Failed to index mail {}", mail.mailId, e);
+            }
+        }
+
+        running = true;
+        worker = new Thread(this, serviceName + "-" + index);
+        worker.start();
+        logger.info("Storage partition {} opened, {} mails", index, mailStore.size());
+    }
+
+    /**
+     * 提交消息到本分区的队列
+     */
+    void submit(Message message) {
+        inbox.offer(message);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Message message = inbox.take();
+                Message response = handleMessage(message);
+                if (response != null) {
+                    replier.accept(response);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                logger.error("Error processing message in storage partition {}", index, e);
+            }
+        }
+    }
+
+    /**
+     * 请求开始一轮保留清理，上一轮尚未结束时忽略
+     */
+    void startRetention() {
+        submit(retentionSlice(RETENTION_START));
+    }
+
+    MailStore store() {
+        return mailStore;
+    }
+
+    void close() throws IOException {
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+            try {
+                worker.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (mailStore != null) {
+            mailStore.close();
+        }
+    }
+
+    private Message handleMessage(Message message) {
+        String type = message.getType();
+
+        switch (type) {
+            case MessageType.MAIL_STORE:
+                return handleMailStore(message);
+            case MessageType.MAIL_RETRIEVE:
+                return handleMailRetrieve(message);
+            case MessageType.MAIL_LIST:
+                return handleMailList(message);
+            case MessageType.MAIL_DELETE:
+                return handleMailDelete(message);
+            case MessageType.MAIL_MARK:
+                return handleMailMark(message);
+            case MessageType.MAIL_MARK_ALL:
+                return handleMailMarkAll(message);
+            case MessageType.MAIL_STAT:
+                return handleMailStat(message);
+            case MessageType.MAIL_SEARCH:
+                return handleMailSearch(message);
+            case MessageType.MAIL_QUOTA:
+                return handleMailQuota(message);
+            case RETENTION_SLICE:
+                runRetentionSlice(RETENTION_START.equals(message.getPayload()));
+                return null;
+            default:
+                return createErrorResponse(message, "Unknown message type: " + type);
+        }
+    }
+
+    /**
+     * 存储邮件；正文为body字符串，或（大正文）bodyFile落盘文件路径及其字节数size
+     * 收件人为to，或多个收件人recipients（见handleMultiStore）
+     */
+    private Message handleMailStore(Message message) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> mailData = (Map<String, Object>) message.getPayload();
+        String bodyFile = (String) mailData.get("bodyFile");
+        @SuppressWarnings("unchecked")
+        List<String> recipients = (List<String>) mailData.get("recipients");
+        if (recipients != null) {
+            return handleMultiStore(message, mailData, recipients);
+        }
+
+        // 在编码和复制正文之前检查配额
+        String to = (String) mailData.get("to");
+        long size = bodySize(mailData);
+        if (overQuota(to, size)) {
+            logger.warn("Mail to {} rejected: quota exceeded", to);
+            return Message.builder()
+                .from(serviceName)
+                .to(message.getFrom())
+                .type(MessageType.MAIL_STORE)
+                .payload(Map.of("success", false, "error", "Quota exceeded", "quotaExceeded", true))
+                .header("replyTo", message.getMessageId())
+                .build();
+        }
+
+        Mail mail;
+        try {
+            if (bodyFile != null) {
+                mail = mailStore.store(
+                    (String) mailData.get("from"),
+                    to,
+                    (String) mailData.get("subject"),
+                    Paths.get(bodyFile),
+                    System.currentTimeMillis()
+                );
+            } else {
+                mail = mailStore.store(
+                    (String) mailData.get("from"),
+                    to,
+                    (String) mailData.get("subject"),
+                    (String) mailData.get("body"),
+                    System.currentTimeMillis()
+                );
+            }
+        } catch (IOException e) {
+            logger.error("Failed to store mail", e);
+            return createErrorResponse(message, "Mail storage failed: " + e.getMessage());
+        }
+        long mailId = mail.mailId;
+
+        // 索引到收件人
+        mailboxIndex.add(mail);
+        searchIndex.add(mail.to, mailId, mail.from, mail.subject, indexedBody(mail, mailData));
+
+        logger.info("Mail stored: {} from {} to {}", mailId, mail.from, mail.to);
+
+        return Message.builder()
+            .from(serviceName)
+            .to(message.getFrom())
+            .type(MessageType.MAIL_STORE)
+            .payload(Map.of("success", true, "mailId", mailId))
+            .header("replyTo", message.getMessageId())
+            .build();
+    }
+
+    /**
+     * 多收件人存储：超出配额的收件人被拒绝，其余收件人各得一封邮件，共用同一份正文
+     * 重复的收件人只存一封，配额按存储前的邮箱用量检查，同一邮箱不会在一批中超出配额
+     * 回复mailIds（收件人到邮件ID）和rejected（因配额被拒绝的收件人）
+     */
+    private Message handleMultiStore(Message message, Map<String, Object> mailData, List<String> recipients) {
+        String bodyFile = (String) mailData.get("bodyFile");
+        String from = (String) mailData.get("from");
+        String subject = (String) mailData.get("subject");
+        long size = bodySize(mailData);
+        List<String> accepted = new ArrayList<>(recipients.size());
+        List<String> rejected = new ArrayList<>();
+        for (String to : new LinkedHashSet<>(recipients)) {
+            if (overQuota(to, size)) {
+                logger.warn("Mail to {} rejected: quota exceeded", to);
+                rejected.add(to);
+            } else {
+                accepted.add(to);
+            }
+        }
+
+        List<Mail> stored = Collections.emptyList();
+        if (!accepted.isEmpty()) {
+            try {
+                stored = bodyFile != null
+                    ? mailStore.store(from, accepted, subject, Paths.get(bodyFile), System.currentTimeMillis())
+                    : mailStore.store(from, accepted, subject, (String) mailData.get("body"), System.currentTimeMillis());
+            } catch (IOException e) {
+                logger.error("Failed to store mail", e);
+                return createErrorResponse(message, "Mail storage failed: " + e.getMessage());
+            }
+        }
+
+        Map<String, Long> mailIds = new LinkedHashMap<>();
+        String indexed = stored.isEmpty() ? null : indexedBody(stored.get(0), mailData);
+        for (Mail mail : stored) {
+            mailboxIndex.add(mail);
+            searchIndex.add(mail.to, mail.mailId, mail.from, mail.subject, indexed);
+            mailIds.put(mail.to, mail.mailId);
+        }
+
+        logger.info("Mail from {} stored for {} recipients", from, stored.size());
+
+        return Message.builder()
+            .from(serviceName)
+            .to(message.getFrom())
+            .type(MessageType.MAIL_STORE)
+            .payload(Map.of("success", true, "mailIds", mailIds, "rejected", rejected))
+            .header("replyTo", message.getMessageId())
+            .build();
+    }
+
+    private static long bodySize(Map<String, Object> mailData) {
+        return mailData.containsKey("bodyFile")
+            ? ((Number) mailData.get("size")).longValue()
+            : MailBody.utf8Length((String) mailData.get("body"));
+    }
+
+    private boolean overQuota(String owner, long size) {
+        return mailboxIndex.count(owner) + 1 > maxMailsPerUser || mailboxIndex.bytes(owner) + size > storageQuota;
+    }
+
+    /**
+     * 用于全文索引的正文：落盘提交的大正文只取开头（每个字符至多3个UTF-8字节）
+     */
+    private String indexedBody(Mail mail, Map<String, Object> mailData) {
+        if (!mailData.containsKey("bodyFile")) {
+            return (String) mailData.get("body");
+        }
+        try {
+            return mailStore.readBodyPrefix(mail, SearchIndex.MAX_INDEXED_CHARS * 3);
+        } catch (IOException e) {
+            logger.warn("Failed to read body of mail {} for indexing", mail.mailId, e);
+            return null;
+        }
+    }
+
+    /**
+     * 检索邮件；请求头stream为true且正文达到streamThreshold时，
+     * 回复中以content输入流（UTF-8字节，由接收方关闭）代替body字符串。
+     * 请求头peek为true时（传输服务读取外发正文）不标记为已读
+     */
+    private Message handleMailRetrieve(Message message) {
+        long mailId = (Long) message.getPayload();
+        Mail mail = mailStore.get(mailId);
+
+        if (mail == null) {
+            return createErrorResponse(message, "Mail not found: " + mailId);
+        }
+
+        boolean stream = Boolean.TRUE.equals(message.getHeader("stream")) && mail.body.length >= streamThreshold;
+        Map<String, Object> mailData = new HashMap<>();
+        try {
+            if (stream) {
+                mailData.put("content", mailStore.openBody(mail));
+                mailData.put("length", mail.body.length);
+            } else {
+                mailData.put("body", mailStore.readBody(mail));
+            }
+        } catch (IOException e) {
+            logger.error("Failed to read mail {}", mailId, e);
+            return createErrorResponse(message, "Mail read failed: " + mailId);
+        }
+
+        if (!Boolean.TRUE.equals(message.getHeader("peek"))) {
+            mailboxIndex.updateFlags(mail, MailboxIndex.READ, 0);
+        }
+        int flags = mailboxIndex.flags(mail);
+
+        mailData.put("mailId", mail.mailId);
+        mailData.put("from", mail.from);
+        mailData.put("to", mail.to);
+        mailData.put("subject", mail.subject);
+        mailData.put("timestamp", mail.timestamp);
+        mailData.put("read", (flags & MailboxIndex.READ) != 0);
+        mailData.put("flagged", (flags & MailboxIndex.FLAGGED) != 0);
+
+        return Message.builder()
+            .from(serviceName)
+            .to(message.getFrom())
+            .type(MessageType.MAIL_RETRIEVE)
+            .payload(mailData)
+            .header("replyTo", message.getMessageId())
+            .build();
+    }
+
+    private Message handleMailList(Message message) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> params = (Map<String, Object>) message.getPayload();
+        String username = (String) params.get("username");
+        Integer limit = (Integer) params.getOrDefault("limit", 10);
+        Long cursor = (Long) params.get("cursor");
+
+        MailboxIndex.Page page = mailboxIndex.page(username, limit, cursor);
+
+        long[] ids = page.getMailIds();
+        List<Map<String, Object>> mailList = new ArrayList<>(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            Mail mail = mailStore.get(ids[i]);
+            if (mail != null) {
+                mailList.add(summary(mail, page.getFlags()[i]));
+            }
+        }
+
+        Map<String, Object> result = new HashMap<>();
+        result.put("mails", mailList);
+        result.put("total", page.getTotal());
+        if (page.getNextCursor() != null) {
+            result.put("nextCursor", page.getNextCursor());
+        }
+
+        return Message.builder()
+            .from(serviceName)
+            .to(message.getFrom())
+            .type(MessageType.MAIL_LIST)
+            .payload(result)
+            .header("replyTo", message.getMessageId())
+            .build();
+    }
+
+    private Message handleMailDelete(Message message) {
+        long mailId = (Long) message.getPayload();
+        Mail mail;
+        try {
+            mail = expunge(mailId);
+        } catch (IOException e) {
+            logger.error("Failed to delete mail {}", mailId, e);
+            return createErrorResponse(message, "Mail delete failed: " + mailId);
+        }
+
+        if (mail != null) {
+            logger.info("Mail deleted: {}", mailId);
+        }
+
+        return Message.builder()
+            .from(serviceName)
+            .to(message.getFrom())
+            .type(MessageType.MAIL_DELETE)
+            .payload(Map.of("success", mail != null))
+            .header("replyTo", message.getMessageId())
+            .build();
+    }
+
+    private Message handleMailMark(Message message) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> params = (Map<String, Object>) message.getPayload();
+        long mailId = (Long) params.get("mailId");
+        int set = 0;
+        int clear = 0;
+        for (Map.Entry<String, Integer> flag : FLAG_NAMES.entrySet()) {
+            Object value = params.get(flag.getKey());
+            if (Boolean.TRUE.equals(value)) {
+                set |= flag.getValue();
+            } else if (Boolean.FALSE.equals(value)) {
+                clear |= flag.getValue();
+            }
+        }
+
+        Mail mail = mailStore.get(mailId);
+        boolean success = mail != null && mailboxIndex.updateFlags(mail, set, clear);
+
+        return Message.builder()
+            .from(serviceName)
+            .to(message.getFrom())
+            .type(MessageType.MAIL_MARK)
+            .payload(Map.of("success", success))
+            .header("replyTo", message.getMessageId())
+            .build();
+    }
+
+    private Message handleMailMarkAll(Message message) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> params = (Map<String, Object>) message.getPayload();
+        String username = (String) params.get("username");
+        boolean read = !Boolean.FALSE.equals(params.get("read"));
+
+        int changed = read
+            ? mailboxIndex.updateAllFlags(username, MailboxIndex.READ, 0)
+            : mailboxIndex.updateAllFlags(username, 0, MailboxIndex.READ);
+
+        return Message.builder()
+            .from(serviceName)
+            .to(message.getFrom())
+            .type(MessageType.MAIL_MARK_ALL)
+            .payload(Map.of("success", true, "changed", changed))
+            .header("replyTo", message.getMessageId())
+            .build();
+    }
+
+    private Message handleMailStat(Message message) {
+        String username = (String) message.getPayload();
+        MailboxIndex.Stat stat = mailboxIndex.stat(username);
+
+        return Message.builder()
+            .from(serviceName)
+            .to(message.getFrom())
+            .type(MessageType.MAIL_STAT)
+            .payload(Map.of(
+                "total", stat.getTotal(),
+                "unread", stat.getUnread(),
+                "flagged", stat.getFlagged(),
+                "deleted", stat.getDeleted(),
+                "bytes", stat.getBytes()
+            ))
+            .header("replyTo", message.getMessageId())
+            .build();
+    }
+
+    private Message handleMailSearch(Message message) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> params = (Map<String, Object>) message.getPayload();
+        String username = (String) params.get("username");
+        String query = (String) params.get("query");
+        Integer limit = (Integer) params.getOrDefault("limit", 20);
+
+        SearchIndex.Result result = searchIndex.search(username, query, limit);
+
+        List<Map<String, Object>> mailList = new ArrayList<>(result.getMailIds().size());
+        for (long id : result.getMailIds()) {
+            Mail mail = mailStore.get(id);
+            if (mail != null) {
+                mailList.add(summary(mail, mailboxIndex.flags(mail)));
+            }
+        }
+
+        return Message.builder()
+            .from(serviceName)
+            .to(message.getFrom())
+            .type(MessageType.MAIL_SEARCH)
+            .payload(Map.of("mails", mailList, "total", result.getTotal()))
+            .header("replyTo", message.getMessageId())
+            .build();
+    }
+
+    private Message handleMailQuota(Message message) {
+        String username = (String) message.getPayload();
+
+        return Message.builder()
+            .from(serviceName)
+            .to(message.getFrom())
+            .type(MessageType.MAIL_QUOTA)
+            .payload(Map.of(
+                "count", mailboxIndex.count(username),
+                "maxCount", maxMailsPerUser,
+                "bytes", mailboxIndex.bytes(username),
+                "maxBytes", storageQuota
+            ))
+            .header("replyTo", message.getMessageId())
+            .build();
+    }
+
+    /**
+     * 从存储和索引中删除邮件，邮件不存在时返回null
+     */
+    private Mail expunge(long mailId) throws IOException {
+        Mail mail = mailStore.delete(mailId);
+        if (mail != null) {
+            mailboxIndex.remove(mail);
+            searchIndex.remove(mail.to, mailId);
+        }
+        return mail;
+    }
+
+    /**
+     * 执行一个保留清理时间片：逐封检查邮件直到用完时间预算，
+     * 未完成时把下一个时间片排到队尾，让期间到达的请求先得到处理
+     */
+    private void runRetentionSlice(boolean start) {
+        if (start) {
+            if (retentionPass != null || !retention.isEnabled()) {
+                return;
+            }
+            retentionPass = new RetentionPass(mailboxIndex.owners().iterator(),
+                System.currentTimeMillis() - retention.getMaxAgeMillis());
+        } else if (retentionPass == null) {
+            return;
+        }
+
+        RetentionPass pass = retentionPass;
+        long sliceStart = System.nanoTime();
+        long deadline = sliceStart + retention.getSliceNanos();
+        boolean finished = false;
+        int steps = 0;
+        while (running) {
+            if (!pass.step()) {
+                finished = true;
+                break;
+            }
+            // 每检查16封邮件读取一次时钟
+            if ((++steps & 15) == 0 && System.nanoTime() - deadline >= 0) {
+                break;
+            }
+        }
+        pass.busyNanos += System.nanoTime() - sliceStart;
+        pass.slices++;
+
+        if (finished) {
+            finishRetention(pass);
+        } else if (running) {
+            submit(retentionSlice(null));
+        }
+    }
+
+    private void finishRetention(RetentionPass pass) {
+        retentionPass = null;
+        long elapsed = System.nanoTime() - pass.startNanos;
+        long reclaimed = pass.expired + pass.trimmed + pass.expunged;
+        metrics.retentionPasses.increment();
+        metrics.retentionReclaimed.add(reclaimed);
+        metrics.retentionPassNanos.add(elapsed);
+        metrics.retentionBusyNanos.add(pass.busyNanos);
+        metrics.lastRetentionPassNanos = elapsed;
+
+        if (reclaimed > 0) {
+            logger.info("Retention pass on partition {} reclaimed {} mails (expired {}, over limit {}, expunged {})"
+                    + " in {} ms, {} slices, {} ms busy", index, reclaimed, pass.expired, pass.trimmed,
+                pass.expunged, elapsed / 1_000_000, pass.slices, pass.busyNanos / 1_000_000);
+            // 大批删除产生的死字节由维护线程尽快压缩回收
+            mailStore.compactSoon();
+        } else {
+            logger.debug("Retention pass on partition {} found nothing to reclaim in {} ms",
+                index, elapsed / 1_000_000);
+        }
+    }
+
+    private Message retentionSlice(String payload) {
+        return Message.builder()
+            .from(serviceName)
+            .to(serviceName)
+            .type(RETENTION_SLICE)
+            .payload(payload)
+            .build();
+    }
+
+    /**
+     * 一轮保留清理的进度：逐个邮箱按游标分页遍历（最新在前，每页至多RETENTION_PAGE封），
+     * 每步检查一封邮件或取下一页，大邮箱也不会一次复制全部ID
+     */
+    private final class RetentionPass {
+        private final Iterator<String> owners;
+        private final long cutoff;
+        private final long startNanos = System.nanoTime();
+        private String owner;
+        private Long cursor;
+        private long[] ids = new long[0];
+        private int position;
+        private int kept;
+        long expired;
+        long trimmed;
+        long expunged;
+        long busyNanos;
+        int slices;
+
+        RetentionPass(Iterator<String> owners, long cutoff) {
+            this.owners = owners;
+            this.cutoff = cutoff;
+        }
+
+        /**
+         * 检查一封邮件（或取下一页、切换到下一个邮箱），全部完成时返回false
+         */
+        boolean step() {
+            if (position == ids.length) {
+                if (cursor == null) {
+                    if (!owners.hasNext()) {
+                        return false;
+                    }
+                    owner = owners.next();
+                    kept = 0;
+                }
+                // 游标是邮件ID，之前的邮件被删除不影响继续向前翻页
+                MailboxIndex.Page page = mailboxIndex.page(owner, RETENTION_PAGE, cursor);
+                ids = page.getMailIds();
+                cursor = page.getNextCursor();
+                position = 0;
+                return true;
+            }
+
+            Mail mail = mailStore.get(ids[position++]);
+            int flags = mail != null ? mailboxIndex.flags(mail) : -1;
+            if (flags < 0) {
+                return true;
+            }
+            if (retention.isExpungeDeleted() && (flags & MailboxIndex.DELETED) != 0) {
+                if (reclaim(mail)) {
+                    expunged++;
+                }
+            } else if (retention.getMaxAgeMillis() > 0 && mail.timestamp < cutoff) {
+                if (reclaim(mail)) {
+                    expired++;
+                }
+            } else if (retention.getMaxMailsPerUser() > 0 && ++kept > retention.getMaxMailsPerUser()) {
+                if (reclaim(mail)) {
+                    trimmed++;
+                }
+            }
+            return true;
+        }
+
+        private boolean reclaim(Mail mail) {
+            try {
+                return expunge(mail.mailId) != null;
+            } catch (IOException e) {
+                logger.error("Retention failed to delete mail {}", mail.mailId, e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 列表和检索结果中的邮件摘要
+     */
+    private Map<String, Object> summary(Mail mail, int flags) {
+        Map<String, Object> mailInfo = new HashMap<>();
+        mailInfo.put("mailId", mail.mailId);
+        mailInfo.put("from", mail.from);
+        mailInfo.put("subject", mail.subject);
+        mailInfo.put("timestamp", mail.timestamp);
+        mailInfo.put("read", (flags & MailboxIndex.READ) != 0);
+        mailInfo.put("flagged", (flags & MailboxIndex.FLAGGED) != 0);
+        mailInfo.put("deleted", (flags & MailboxIndex.DELETED) != 0);
+        return mailInfo;
+    }
+
+    private Message createErrorResponse(Message request, String error) {
+        return Message.builder()
+            .from(serviceName)
+            .to(request.getFrom())
+            .type(MessageType.ERROR)
+            .payload(error)
+            .header("replyTo", request.getMessageId())
+            .build();
+    }
+}
@@ -0,0 +1,168 @@
+package com.esmcp.services.transfer;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 按目的域名的发送节流
+ * 每个域名一个令牌桶（每秒rate封，最多积攒burst封），以及一个AIMD自适应的并发批次上限：
+ * 批次投递成功时上限加1/上限（大约每轮加1），出现临时失败或超时时减半，最低为1，最高为maxConcurrency。
+ * 同一次拥塞中陆续返回的批次只减半一次：只有在上次减半之后开始的批次才会再次触发减半。
+ * 本类不是线程安全的，由DestinationQueue在队列锁内调用。
+ */
+public class DestinationLimiter {
+    private static final int SWEEP_THRESHOLD = 1024;
+
+    private final Map<String, Double> rates;
+    private final double defaultRate;
+    private final int maxConcurrency;
+    private final Map<String, Destination> destinations = new HashMap<>();
+    private long congestionEvents;
+
+    /**
+     * @param rates 各域名每秒允许的邮件数
+     * @param defaultRate 未列出域名每秒允许的邮件数，0表示不限
+     * @param maxConcurrency 每个域名同时在途的批次上限
+     */
+    public DestinationLimiter(Map<String, Double> rates, double defaultRate, int maxConcurrency) {
+        this.rates = new HashMap<>(rates);
+        this.defaultRate = defaultRate;
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+    }
+
+    /**
+     * 距离该域名可以开始下一批还要等待的纳秒数：0表示现在可以，
+     * Long.MAX_VALUE表示并发已满，要等在途批次完成
+     */
+    public long delay(String domain, long now) {
+        Destination destination = destinations.get(domain);
+        if (destination == null) {
+            return 0;
+        }
+        if (destination.inFlight >= (int) destination.limit) {
+            return Long.MAX_VALUE;
+        }
+        destination.refill(now);
+        if (destination.rate <= 0 || destination.tokens >= 1) {
+            return 0;
+        }
+        return (long) Math.ceil((1 - destination.tokens) / destination.rate * 1e9);
+    }
+
+    /**
+     * 该域名现在最多可以开始投递的邮件数
+     */
+    public int allowance(String domain, long now) {
+        Destination destination = destinations.get(domain);
+        if (destination == null) {
+            double rate = rateOf(domain);
+            return rate > 0 ? (int) Math.min(Integer.MAX_VALUE, Math.max(1, rate)) : Integer.MAX_VALUE;
+        }
+        if (destination.rate <= 0) {
+            return Integer.MAX_VALUE;
+        }
+        destination.refill(now);
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1, (long) destination.tokens));
+    }
+
+    /**
+     * 开始投递该域名的一批邮件
+     */
+    public void acquire(String domain, int messages, long now) {
+        if (destinations.size() > SWEEP_THRESHOLD) {
+            sweep(now);
+        }
+        Destination destination = destinations.computeIfAbsent(domain, d -> new Destination(rateOf(d), now));
+        destination.refill(now);
+        destination.tokens -= messages;
+        destination.inFlight++;
+    }
+
+    /**
+     * 一批投递结束
+     * @param startedAt 这一批开始投递的时间
+     * @param congested 是否出现临时失败或超时
+     */
+    public void release(String domain, long startedAt, boolean congested, long now) {
+        Destination destination = destinations.get(domain);
+        if (destination == null) {
+            return;
+        }
+        destination.inFlight--;
+        if (!congested) {
+            destination.limit = Math.min(maxConcurrency, destination.limit + 1 / destination.limit);
+        } else if (startedAt - destination.decreasedAt >= 0) {
+            destination.limit = Math.max(1, destination.limit / 2);
+            destination.decreasedAt = now;
+            congestionEvents++;
+        }
+    }
+
+    /**
+     * 该域名当前的并发批次上限
+     */
+    public int limit(String domain) {
+        Destination destination = destinations.get(domain);
+        return destination != null ? (int) destination.limit : maxConcurrency;
+    }
+
+    public Map<String, Object> snapshot() {
+        int throttled = 0;
+        for (Destination destination : destinations.values()) {
+            if (destination.limit < maxConcurrency) {
+                throttled++;
+            }
+        }
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("congestionEvents", congestionEvents);
+        values.put("throttledDestinations", throttled);
+        return values;
+    }
+
+    private double rateOf(String domain) {
+        return rates.getOrDefault(domain, defaultRate);
+    }
+
+    /**
+     * 丢弃已经完全恢复的域名状态，重新创建时与恢复后的状态相同
+     */
+    private void sweep(long now) {
+        Iterator<Destination> iterator = destinations.values().iterator();
+        while (iterator.hasNext()) {
+            Destination destination = iterator.next();
+            destination.refill(now);
+            if (destination.inFlight == 0 && destination.limit >= maxConcurrency
+                && (destination.rate <= 0 || destination.tokens >= destination.burst)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private class Destination {
+        final double rate;
+        final double burst;
+        double tokens;
+        long refilledAt;
+        double limit = maxConcurrency;
+        int inFlight;
+        long decreasedAt;
+
+        Destination(double rate, long now) {
+            this.rate = rate;
+            // 最多积攒一秒的配额
+            this.burst = Math.max(1, rate);
+            this.tokens = burst;
+            this.refilledAt = now;
+            this.decreasedAt = now - 1;
+        }
+
+        void refill(long now) {
+            if (rate > 0) {
+                tokens = Math.min(burst, tokens + (now - refilledAt) * rate / 1e9);
+            }
+            refilledAt = now;
+        }
+    }
+}
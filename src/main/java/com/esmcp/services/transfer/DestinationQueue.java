@@ -0,0 +1,223 @@
+package com.esmcp.services.transfer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按发送方公平调度、按目的域名分组的发送队列
+ * 每个发送方的任务再按目的域名分成FIFO队列，投递线程每次取出同一发送方、同一域名的一批任务，
+ * 在一个连接会话中连续发送。发送方之间按差额轮询（DRR）调度：轮到一个发送方时
+ * 它的额度增加 权重 * max 个任务，额度用完或任务取完后轮到下一个发送方，
+ * 群发大量邮件的账户不会让其他账户的邮件排在它的全部任务之后。
+ * 同一发送方内有待发任务的域名按轮转顺序排队。
+ * 有空闲线程在等待时每批只取均分的份额，避免一个线程串行发送其他线程本可以并行发送的任务。
+ * 被DestinationLimiter限速或并发已满的域名暂时跳过，任务留在队列中，投递线程转而处理其他域名；
+ * 没有可以开始的批次时投递线程等到最早的令牌补充时间，或在途批次完成时被唤醒。
+ */
+public class DestinationQueue {
+    private final Map<String, Integer> weights;
+    private final DestinationLimiter limiter;
+    private final Map<String, Sender> senders = new HashMap<>();
+    private final ArrayDeque<Sender> active = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private int size;
+    private int destinations;
+    private int waiting;
+    private long throttledWaits;
+
+    public DestinationQueue() {
+        this(Collections.emptyMap(), new DestinationLimiter(Collections.emptyMap(), 0, 16));
+    }
+
+    /**
+     * @param weights 发送方账户的调度权重，未列出的账户权重为1
+     * @param limiter 目的域名节流，只在队列锁内访问
+     */
+    public DestinationQueue(Map<String, Integer> weights, DestinationLimiter limiter) {
+        this.weights = new HashMap<>(weights);
+        this.limiter = limiter;
+    }
+
+    public void add(TransferTask task) {
+        lock.lock();
+        try {
+            String account = task.from != null ? task.from : "";
+            Sender sender = senders.get(account);
+            if (sender == null) {
+                sender = new Sender(account, Math.max(1, weights.getOrDefault(account, 1)));
+                senders.put(account, sender);
+                active.addLast(sender);
+            }
+            ArrayDeque<TransferTask> queue = sender.queues.get(task.domain);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                sender.queues.put(task.domain, queue);
+                sender.ready.addLast(task.domain);
+                destinations++;
+            }
+            queue.addLast(task);
+            size++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 阻塞直到有可以开始的任务，取出同一发送方、同一域名最多max个任务
+     * 调用方在这一批投递结束后必须调用release
+     */
+    public List<TransferTask> takeBatch(int max) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                long delay = Long.MAX_VALUE;
+                for (Sender sender : active) {
+                    for (String domain : sender.ready) {
+                        long wait = limiter.delay(domain, now);
+                        if (wait == 0) {
+                            return take(sender, domain, max, now);
+                        }
+                        delay = Math.min(delay, wait);
+                    }
+                }
+                if (size > 0) {
+                    throttledWaits++;
+                }
+                waiting++;
+                try {
+                    if (delay == Long.MAX_VALUE) {
+                        notEmpty.await();
+                    } else {
+                        notEmpty.awaitNanos(delay);
+                    }
+                } finally {
+                    waiting--;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 一批投递结束，归还该域名的并发额度并唤醒等待的投递线程
+     * @param startedAt 这一批开始投递的时间（System.nanoTime）
+     * @param congested 是否出现临时失败或超时
+     */
+    public void release(String domain, long startedAt, boolean congested) {
+        lock.lock();
+        try {
+            limiter.release(domain, startedAt, congested, System.nanoTime());
+            if (size > 0) {
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<TransferTask> take(Sender sender, String domain, int max, long now) {
+        if (sender.deficit <= 0) {
+            sender.deficit += (long) sender.weight * max;
+        }
+        sender.ready.remove(domain);
+        ArrayDeque<TransferTask> queue = sender.queues.get(domain);
+        int share = (queue.size() + waiting) / (waiting + 1);
+        long limit = Math.min(Math.min(max, share), Math.min(sender.deficit, limiter.allowance(domain, now)));
+        List<TransferTask> batch = new ArrayList<>();
+        while (batch.size() < Math.max(1, limit) && !queue.isEmpty()) {
+            batch.add(queue.pollFirst());
+        }
+        size -= batch.size();
+        sender.deficit -= batch.size();
+        limiter.acquire(domain, batch.size(), now);
+        if (queue.isEmpty()) {
+            sender.queues.remove(domain);
+            destinations--;
+        } else {
+            sender.ready.addLast(domain);
+        }
+        if (sender.queues.isEmpty()) {
+            // 没有任务的发送方不保留额度
+            active.remove(sender);
+            senders.remove(sender.account);
+        } else if (sender.deficit <= 0) {
+            active.remove(sender);
+            active.addLast(sender);
+        }
+        if (size > 0) {
+            notEmpty.signal();
+        }
+        return batch;
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 有待发任务的（发送方，域名）队列数
+     */
+    public int destinations() {
+        lock.lock();
+        try {
+            return destinations;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 有待发任务的发送方数
+     */
+    public int senders() {
+        lock.lock();
+        try {
+            return senders.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 节流统计：有待发任务却没有可以开始的批次、投递线程只能等待的次数，以及DestinationLimiter的统计
+     */
+    public Map<String, Object> throttleSnapshot() {
+        lock.lock();
+        try {
+            Map<String, Object> values = new LinkedHashMap<>(limiter.snapshot());
+            values.put("throttledWaits", throttledWaits);
+            return values;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class Sender {
+        final String account;
+        final int weight;
+        final Map<String, ArrayDeque<TransferTask>> queues = new HashMap<>();
+        final ArrayDeque<String> ready = new ArrayDeque<>();
+        long deficit;
+
+        Sender(String account, int weight) {
+            this.account = account;
+            this.weight = weight;
+        }
+    }
+}
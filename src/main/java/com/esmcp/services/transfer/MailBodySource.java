@@ -0,0 +1,17 @@
+package com.esmcp.services.transfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 外发邮件正文的来源
+ * 正文已保存在存储服务中的任务只记录邮件ID，投递时由投递线程按ID打开正文流，
+ * 不在服务线程中读取，也不把正文复制到任务和暂存中。
+ */
+public interface MailBodySource {
+
+    /**
+     * 打开邮件正文（UTF-8编码），由调用方关闭
+     */
+    InputStream open(long mailId) throws IOException;
+}
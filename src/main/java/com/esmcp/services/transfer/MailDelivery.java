@@ -0,0 +1,69 @@
+package com.esmcp.services.transfer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 外发投递
+ * 由投递线程调用，返回本次尝试的结果
+ */
+public interface MailDelivery {
+
+    /**
+     * 投递结果
+     */
+    enum Result {
+        /** 已送达 */
+        SENT,
+        /** 临时失败，稍后重试 */
+        RETRY,
+        /** 永久失败，不再重试 */
+        FAILED
+    }
+
+    Result deliver(TransferTask task) throws InterruptedException;
+
+    /**
+     * 投递同一目的域名的一批任务，返回与任务一一对应的结果
+     * 默认逐个投递；支持连接复用的实现在一个会话中连续发送
+     */
+    default List<Result> deliver(List<TransferTask> batch) throws InterruptedException {
+        List<Result> results = new ArrayList<>(batch.size());
+        for (TransferTask task : batch) {
+            results.add(deliver(task));
+        }
+        return results;
+    }
+
+    /**
+     * 异步投递一批任务，结果就绪时完成返回的future
+     * 默认在调用线程中同步投递；非阻塞实现提交后立即返回，投递线程不等待远端应答
+     */
+    default CompletableFuture<List<Result>> deliverAsync(List<TransferTask> batch) throws InterruptedException {
+        return CompletableFuture.completedFuture(deliver(batch));
+    }
+
+    /**
+     * 投递指标，合并到TRANSFER_STATS中
+     */
+    default Map<String, Object> snapshot() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * 释放投递使用的资源（如连接池），服务关闭时调用
+     */
+    default void close() {
+    }
+
+    /**
+     * 模拟投递（尚未连接真实SMTP服务器），每封耗时100ms
+     */
+    MailDelivery SIMULATED = task -> {
+        Thread.sleep(100);
+        return Result.SENT;
+    };
+}
@@ -1,36 +1,168 @@
 package com.esmcp.services.transfer;
 
+import com.esmcp.config.ServerConfig;
 import com.esmcp.kernel.Service;
 import com.esmcp.message.Message;
 import com.esmcp.message.MessageType;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 邮件传输服务
- * 负责邮件的发送、队列管理和重试机制
+ * 负责邮件的发送、队列管理和重试机制。
+ * 发送队列按发送方差额轮询、按目的域名分组（发送方权重由transfer.senderWeights配置），
+ * 由transfer.workers个投递线程阻塞等待并并行投递，
+ * 每个目的域名按transfer.rateLimits限速，并按临时失败和超时自适应调整同时在途的批次数（AIMD），
+ * 受限的域名的任务留在队列中等待，不占用投递线程，
+ * 每个线程一次取出同一域名最多transfer.batchSize个任务交给投递引擎；非阻塞引擎提交后立即返回，
+ * 同时在途的批次不超过transfer.maxInFlight。
+ * 新的发送请求在队列达到transfer.queueSize时被拒绝。
+ * 配置了transfer.relay或transfer.routes时通过SMTP中继投递，否则使用模拟投递。
+ * 临时失败的任务交给重试调度器按指数退避延迟后重新入队（不受队列上限限制，已被接收的任务不会丢弃），
+ * 最多重试transfer.retryAttempts次。
+ * 配置了transfer.spoolDir时任务写入磁盘暂存，入队记录刷盘后才入队并回复发送方，刷盘失败时回复错误，
+ * 重启后回放未完成的任务。
+ * 任务状态以不可变快照发布，终态在transfer.statusTtl后或超过transfer.statusCapacity条时从内存淘汰，
+ * 配置了transfer.statusIndex时淘汰的终态写入磁盘索引，仍可查询。
  */
 public class MailTransferService extends Service {
-    private final Queue<TransferTask> sendQueue = new ConcurrentLinkedQueue<>();
-    private final Map<String, TransferStatus> statusMap = new ConcurrentHashMap<>();
+    private final int queueSize;
+    private final int workerCount;
+    private final int retryAttempts;
+    private final int batchSize;
+    private final Semaphore inFlight;
+    private final DestinationQueue sendQueue;
+    private final RetryScheduler retryScheduler;
+    private final MailDelivery delivery;
+    private final ServerConfig config;
+    private TransferSpool spool;
+    private TransferStatusStore statuses;
     private final AtomicLong taskIdGenerator = new AtomicLong(1);
-    private Thread workerThread;
+    // 已写入暂存、等待刷盘确认的任务数
+    private final AtomicInteger spooling = new AtomicInteger();
+    private final MailBodySource bodySource = this::openStoredBody;
+    private final TransferMetrics metrics = new TransferMetrics();
+    private Thread[] workers;
     private volatile boolean processing = true;
     
     public MailTransferService() {
+        this(ServerConfig.empty());
+    }
+    
+    /**
+     * @param config services.transfer配置节
+     */
+    public MailTransferService(ServerConfig config) {
+        this(config, SmtpDelivery.isConfigured(config) ? new SmtpDelivery(config) : MailDelivery.SIMULATED);
+    }
+    
+    public MailTransferService(ServerConfig config, MailDelivery delivery) {
         super("MailTransferService");
+        this.queueSize = Math.max(1, config.getInt("queueSize", 10000));
+        this.workerCount = Math.max(1, config.getInt("workers", 4));
+        this.retryAttempts = Math.max(0, config.getInt("retryAttempts", 3));
+        this.batchSize = Math.max(1, config.getInt("batchSize", 20));
+        this.inFlight = new Semaphore(Math.max(1, config.getInt("maxInFlight", 1000)));
+        Map<String, Integer> weights = new HashMap<>();
+        for (Map.Entry<String, String> weight : config.getStringMap("senderWeights").entrySet()) {
+            weights.put(weight.getKey(), Integer.parseInt(weight.getValue().trim()));
+        }
+        Map<String, Double> rates = new HashMap<>();
+        for (Map.Entry<String, String> rate : config.getStringMap("rateLimits").entrySet()) {
+            rates.put(rate.getKey().toLowerCase(), Double.parseDouble(rate.getValue().trim()));
+        }
+        this.sendQueue = new DestinationQueue(weights, new DestinationLimiter(rates,
+            config.getDouble("defaultRateLimit", 0), config.getInt("maxConcurrencyPerDestination", 16)));
+        this.retryScheduler = new RetryScheduler(
+            config.getLong("retryDelay", 5000), config.getLong("maxRetryDelay", 3600000), this::requeue);
+        this.delivery = delivery;
+        this.config = config;
     }
     
     @Override
     public void initialize() {
-        // 启动发送工作线程
-        workerThread = new Thread(this::processQueue, "MailTransferWorker");
-        workerThread.start();
-        logger.info("MailTransferService initialized");
+        openStatusStore();
+        if (config.has("spoolDir")) {
+            openSpool();
+        }
+        retryScheduler.start();
+        // 启动投递线程，队列为空时阻塞等待，入队即被唤醒
+        workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Thread(this::processQueue, "MailTransferWorker-" + i);
+            workers[i].start();
+        }
+        logger.info("MailTransferService initialized, {} workers, queue size {}", workerCount, queueSize);
+    }
+    
+    /**
+     * 创建状态表，配置了磁盘索引时任务ID从索引中的最大ID之后继续分配
+     */
+    private void openStatusStore() {
+        long ttl = config.getLong("statusTtl", 3600000);
+        int capacity = Math.max(1, config.getInt("statusCapacity", 100000));
+        if (!config.has("statusIndex")) {
+            statuses = new TransferStatusStore(ttl, capacity);
+            return;
+        }
+        try {
+            statuses = new TransferStatusStore(ttl, capacity, Paths.get(config.getString("statusIndex", null)),
+                Math.max(1, config.getInt("statusIndexSlots", 1 << 20)));
+            taskIdGenerator.set(Math.max(taskIdGenerator.get(), statuses.maxSpilledTaskId() + 1));
+        } catch (IOException e) {
+            logger.error("Failed to open transfer status index", e);
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    /**
+     * 打开磁盘暂存，把未完成的任务放回发送队列，任务ID从回放出的最大ID之后继续分配
+     */
+    private void openSpool() {
+        try {
+            spool = createSpool(Paths.get(config.getString("spoolDir", "data/transfer")),
+                config.getLong("spoolSegmentSize", 16L * 1024 * 1024));
+            List<TransferTask> recovered = spool.open();
+            long maxTaskId = 0;
+            for (TransferTask task : recovered) {
+                task.bodySource = bodySource;
+                statuses.register(task.taskId);
+                sendQueue.add(task);
+                maxTaskId = Math.max(maxTaskId, Long.parseLong(task.taskId));
+            }
+            taskIdGenerator.set(Math.max(taskIdGenerator.get(), maxTaskId + 1));
+            if (!recovered.isEmpty()) {
+                logger.info("Recovered {} undelivered mails from transfer spool", recovered.size());
+            }
+        } catch (IOException e) {
+            logger.error("Failed to open transfer spool", e);
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    /**
+     * 创建磁盘暂存，子类可以替换暂存的实现
+     */
+    protected TransferSpool createSpool(Path directory, long segmentSize) throws IOException {
+        return new TransferSpool(directory, segmentSize);
     }
     
     @Override
@@ -42,41 +174,183 @@ public class MailTransferService extends Service {
                 return handleMailSend(message);
             case MessageType.MAIL_STATUS:
                 return handleMailStatus(message);
+            case MessageType.TRANSFER_STATS:
+                return handleTransferStats(message);
             default:
                 return createErrorResponse(message, "Unknown message type: " + type);
         }
     }
     
+    /**
+     * 接收外发邮件：to为单个收件人；或recipients为收件人列表，按域名拆成任务，
+     * 每个域名一个任务、在一个SMTP事务中发给该域名的全部收件人，各任务共用同一个正文。
+     * 没有body只有mailId时（落盘提交的大正文）任务只记录邮件ID，投递线程发送时再从存储服务读取正文
+     */
     private Message handleMailSend(Message message) {
         @SuppressWarnings("unchecked")
         Map<String, Object> mailData = (Map<String, Object>) message.getPayload();
+        String from = (String) mailData.get("from");
+        String subject = (String) mailData.get("subject");
+        String body = (String) mailData.get("body");
+        Object mailId = mailData.get("mailId");
+        long bodyRef = body == null && mailId instanceof Number ? ((Number) mailId).longValue() : -1;
         
-        String taskId = String.valueOf(taskIdGenerator.getAndIncrement());
-        TransferTask task = new TransferTask(
-            taskId,
-            (String) mailData.get("from"),
-            (String) mailData.get("to"),
-            (String) mailData.get("subject"),
-            (String) mailData.get("body")
-        );
-        
-        sendQueue.offer(task);
-        statusMap.put(taskId, new TransferStatus(taskId, "QUEUED"));
-        
-        logger.info("Mail queued for transfer: {}", taskId);
+        List<TransferTask> tasks = new ArrayList<>();
+        Object recipients = mailData.get("recipients");
+        if (recipients instanceof List) {
+            Map<String, List<String>> byDomain = new LinkedHashMap<>();
+            for (Object recipient : (List<?>) recipients) {
+                String address = String.valueOf(recipient);
+                byDomain.computeIfAbsent(TransferTask.domainOf(address), d -> new ArrayList<>()).add(address);
+            }
+            for (List<String> group : byDomain.values()) {
+                tasks.add(new TransferTask(String.valueOf(taskIdGenerator.getAndIncrement()), from,
+                    String.join(",", group), subject, body, bodyRef));
+            }
+            if (tasks.isEmpty()) {
+                return createErrorResponse(message, "No recipients");
+            }
+        } else {
+            tasks.add(new TransferTask(String.valueOf(taskIdGenerator.getAndIncrement()), from,
+                (String) mailData.get("to"), subject, body, bodyRef));
+        }
+        for (TransferTask task : tasks) {
+            task.bodySource = bodySource;
+        }
         
-        return Message.builder()
+        // 只有服务线程接收新任务，检查和入队之间队列不会被其他新任务填满；等待刷盘的任务也计入
+        if (sendQueue.size() + spooling.get() + tasks.size() > queueSize) {
+            metrics.rejected.add(tasks.size());
+            logger.warn("Transfer queue full ({} tasks), mail from {} rejected", queueSize, from);
+            return Message.builder()
+                .from(serviceName)
+                .to(message.getFrom())
+                .type(MessageType.MAIL_SEND)
+                .payload(Map.of("success", false, "error", "Transfer queue full", "status", "REJECTED"))
+                .header("replyTo", message.getMessageId())
+                .build();
+        }
+        List<String> taskIds = new ArrayList<>();
+        for (TransferTask task : tasks) {
+            taskIds.add(task.taskId);
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("success", true);
+        result.put("taskId", taskIds.get(0));
+        if (recipients instanceof List) {
+            result.put("taskIds", taskIds);
+        }
+        result.put("status", "QUEUED");
+        Message response = Message.builder()
             .from(serviceName)
             .to(message.getFrom())
             .type(MessageType.MAIL_SEND)
-            .payload(Map.of("success", true, "taskId", taskId, "status", "QUEUED"))
+            .payload(result)
             .header("replyTo", message.getMessageId())
             .build();
+        
+        if (spool == null) {
+            enqueue(tasks);
+            return response;
+        }
+        
+        // 先写暂存，全部任务持久化后才入队并回复；任一任务写入或刷盘失败则整封邮件不接收
+        spooling.addAndGet(tasks.size());
+        AtomicInteger pending = new AtomicInteger(tasks.size());
+        AtomicBoolean failed = new AtomicBoolean();
+        Runnable settle = () -> {
+            if (pending.decrementAndGet() > 0) {
+                return;
+            }
+            spooling.addAndGet(-tasks.size());
+            if (failed.get()) {
+                // 已持久化的任务不会入队，标记完成避免重启后被恢复
+                for (TransferTask task : tasks) {
+                    try {
+                        spool.markDone(task);
+                    } catch (IOException ignored) {
+                        // 暂存已经不可用
+                    }
+                }
+                reply(createErrorResponse(message, "Transfer spool unavailable"));
+            } else {
+                enqueue(tasks);
+                reply(response);
+            }
+        };
+        Runnable onFailed = () -> {
+            failed.set(true);
+            settle.run();
+        };
+        for (int i = 0; i < tasks.size(); i++) {
+            try {
+                spool.append(tasks.get(i), settle, onFailed);
+            } catch (IOException e) {
+                logger.error("Failed to spool mail transfer {}", tasks.get(i).taskId, e);
+                // 未写入的任务直接结算，已写入的任务等刷盘线程结算后统一回复错误
+                for (int j = i; j < tasks.size(); j++) {
+                    onFailed.run();
+                }
+                break;
+            }
+        }
+        
+        // 由刷盘线程在入队记录持久化后回复
+        return null;
+    }
+    
+    /**
+     * 登记状态并放入发送队列
+     */
+    private void enqueue(List<TransferTask> tasks) {
+        List<String> taskIds = new ArrayList<>();
+        // 先登记状态再入队，投递线程取到任务时状态一定存在
+        for (TransferTask task : tasks) {
+            statuses.register(task.taskId);
+            sendQueue.add(task);
+            metrics.queued.increment();
+            taskIds.add(task.taskId);
+        }
+        
+        logger.info("Mail queued for transfer: {}", taskIds);
+    }
+    
+    /**
+     * 打开已存储邮件的正文，不改变邮件的已读标志
+     * 由投递线程调用；大正文以流的形式返回，不在内存中组装
+     */
+    private InputStream openStoredBody(long mailId) throws IOException {
+        Message request = Message.builder()
+            .from(serviceName)
+            .to("MailStorageService")
+            .type(MessageType.MAIL_RETRIEVE)
+            .payload(mailId)
+            .header("peek", true)
+            .header("stream", true)
+            .build();
+        Message response;
+        try {
+            response = sendMessage(request);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading body of mail " + mailId);
+        }
+        if (response == null || !response.getType().equals(MessageType.MAIL_RETRIEVE)) {
+            throw new IOException("Failed to load body of mail " + mailId + ": "
+                + (response != null ? response.getPayload() : null));
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> mail = (Map<String, Object>) response.getPayload();
+        InputStream content = (InputStream) mail.get("content");
+        if (content != null) {
+            return content;
+        }
+        return new ByteArrayInputStream(String.valueOf(mail.get("body")).getBytes(StandardCharsets.UTF_8));
     }
     
     private Message handleMailStatus(Message message) {
         String taskId = (String) message.getPayload();
-        TransferStatus status = statusMap.get(taskId);
+        TransferStatus status = statuses.get(taskId);
         
         if (status == null) {
             return createErrorResponse(message, "Task not found: " + taskId);
@@ -86,12 +360,32 @@ public class MailTransferService extends Service {
             .from(serviceName)
             .to(message.getFrom())
             .type(MessageType.MAIL_STATUS)
-            .payload(Map.of(
-                "taskId", status.taskId,
-                "status", status.status,
-                "attempts", status.attempts,
-                "lastAttempt", status.lastAttempt
-            ))
+            .payload(status.toPayload())
+            .header("replyTo", message.getMessageId())
+            .build();
+    }
+    
+    private Message handleTransferStats(Message message) {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("workers", workerCount);
+        stats.put("queueSize", queueSize);
+        stats.put("queueDepth", sendQueue.size());
+        stats.put("destinations", sendQueue.destinations());
+        stats.put("senders", sendQueue.senders());
+        stats.put("deferred", retryScheduler.size());
+        stats.putAll(metrics.snapshot());
+        stats.putAll(sendQueue.throttleSnapshot());
+        stats.putAll(delivery.snapshot());
+        stats.putAll(statuses.snapshot());
+        if (spool != null) {
+            stats.putAll(spool.snapshot());
+        }
+        
+        return Message.builder()
+            .from(serviceName)
+            .to(message.getFrom())
+            .type(MessageType.TRANSFER_STATS)
+            .payload(stats)
             .header("replyTo", message.getMessageId())
             .build();
     }
@@ -99,27 +393,41 @@ public class MailTransferService extends Service {
     private void processQueue() {
         while (processing) {
             try {
-                TransferTask task = sendQueue.poll();
-                if (task == null) {
-                    Thread.sleep(100);
-                    continue;
+                // 先取得在途许可再取任务，异步投递时在途批次数不超过transfer.maxInFlight
+                inFlight.acquire();
+                List<TransferTask> batch;
+                try {
+                    batch = sendQueue.takeBatch(batchSize);
+                } catch (InterruptedException e) {
+                    inFlight.release();
+                    throw e;
                 }
                 
-                TransferStatus status = statusMap.get(task.taskId);
-                if (status != null) {
-                    status.status = "SENDING";
-                    status.attempts++;
-                    status.lastAttempt = System.currentTimeMillis();
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < batch.size(); i++) {
+                    TransferTask task = batch.get(i);
+                    if (task.attempts == 0) {
+                        metrics.firstAttempts.increment();
+                        metrics.queueWaitNanos.add(System.nanoTime() - task.enqueuedAt);
+                    }
+                    int attempts = ++task.attempts;
+                    statuses.update(task.taskId, status -> status.sending(attempts, now));
                 }
+                metrics.attempts.add(batch.size());
+                metrics.batches.increment();
                 
-                // 模拟邮件发送
-                boolean success = sendMail(task);
-                
-                if (status != null) {
-                    status.status = success ? "SENT" : "FAILED";
+                long startedAt = System.nanoTime();
+                CompletableFuture<List<MailDelivery.Result>> future;
+                try {
+                    future = delivery.deliverAsync(batch);
+                } catch (InterruptedException e) {
+                    sendQueue.release(batch.get(0).domain, startedAt, false);
+                    inFlight.release();
+                    throw e;
+                } catch (Exception e) {
+                    future = CompletableFuture.failedFuture(e);
                 }
-                
-                logger.info("Mail transfer {}: {}", task.taskId, success ? "SUCCESS" : "FAILED");
+                future.whenComplete((results, error) -> finish(batch, startedAt, results, error));
                 
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
@@ -130,25 +438,102 @@ public class MailTransferService extends Service {
         }
     }
     
-    private boolean sendMail(TransferTask task) {
+    /**
+     * 一批任务投递完毕（可能在投递引擎的线程中调用），逐个记录结果后归还在途许可
+     * 有临时失败或整批失败（连接超时等）时该域名的并发上限减半
+     * 服务关闭时不再记录，未完成的任务留在暂存中，重启后回放
+     */
+    private void finish(List<TransferTask> batch, long startedAt, List<MailDelivery.Result> results, Throwable error) {
         try {
-            // 模拟SMTP发送（实际应该连接SMTP服务器）
-            Thread.sleep(100);
-            logger.debug("Sending mail from {} to {}: {}", task.from, task.to, task.subject);
-            return true;
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            return false;
+            if (!processing) {
+                return;
+            }
+            if (error != null) {
+                logger.warn("Mail transfer batch of {} to '{}' failed", batch.size(), batch.get(0).domain, error);
+                results = Collections.nCopies(batch.size(), MailDelivery.Result.RETRY);
+            }
+            sendQueue.release(batch.get(0).domain, startedAt, results.contains(MailDelivery.Result.RETRY));
+            for (int i = 0; i < batch.size(); i++) {
+                complete(batch.get(i), results.get(i));
+            }
+        } catch (Exception e) {
+            logger.error("Error completing mail transfer batch", e);
+        } finally {
+            inFlight.release();
+        }
+    }
+    
+    /**
+     * 记录一次尝试的结果，临时失败且未用完重试次数时按退避延迟重新调度
+     */
+    private void complete(TransferTask task, MailDelivery.Result result) {
+        if (result == MailDelivery.Result.RETRY && task.attempts <= retryAttempts) {
+            long delay = retryScheduler.backoff(task.attempts);
+            long nextAttempt = System.currentTimeMillis() + delay;
+            statuses.update(task.taskId, status -> status.deferred(nextAttempt));
+            metrics.deferred.increment();
+            retryScheduler.schedule(task, delay);
+            logger.info("Mail transfer {} deferred, attempt {} of {}, retry in {} ms",
+                task.taskId, task.attempts, retryAttempts + 1, delay);
+            return;
         }
+        
+        boolean success = result == MailDelivery.Result.SENT;
+        statuses.finish(task.taskId, success);
+        (success ? metrics.sent : metrics.failed).increment();
+        if (spool != null) {
+            try {
+                spool.markDone(task);
+            } catch (IOException e) {
+                // 完成记录丢失只会导致重启后重复投递
+                logger.warn("Failed to record completion of mail transfer {}", task.taskId, e);
+            }
+        }
+        logger.info("Mail transfer {}: {}", task.taskId, success ? "SUCCESS" : "FAILED");
+    }
+    
+    /**
+     * 重试到期的任务重新入队（由重试调度线程调用）
+     */
+    private void requeue(TransferTask task) {
+        statuses.update(task.taskId, TransferStatus::requeued);
+        sendQueue.add(task);
     }
     
     @Override
     public void shutdown() {
         processing = false;
-        if (workerThread != null) {
-            workerThread.interrupt();
+        retryScheduler.stop();
+        if (workers != null) {
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+            for (Thread worker : workers) {
+                try {
+                    worker.join(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
         }
-        logger.info("MailTransferService shutdown, {} tasks in queue", sendQueue.size());
+        delivery.close();
+        if (spool != null) {
+            try {
+                spool.close();
+            } catch (IOException e) {
+                logger.error("Failed to close transfer spool", e);
+            }
+        }
+        if (statuses != null) {
+            try {
+                statuses.close();
+            } catch (IOException e) {
+                logger.error("Failed to close transfer status index", e);
+            }
+        }
+        logger.info("MailTransferService shutdown, {} tasks in queue, {} deferred",
+            sendQueue.size(), retryScheduler.size());
     }
     
     private Message createErrorResponse(Message request, String error) {
@@ -160,34 +545,4 @@ public class MailTransferService extends Service {
             .header("replyTo", request.getMessageId())
             .build();
     }
-    
-    private static class TransferTask {
-        final String taskId;
-        final String from;
-        final String to;
-        final String subject;
-        final String body;
-        
-        TransferTask(String taskId, String from, String to, String subject, String body) {
-            this.taskId = taskId;
-            this.from = from;
-            this.to = to;
-            this.subject = subject;
-            this.body = body;
-        }
-    }
-    
-    private static class TransferStatus {
-        final String taskId;
-        String status;
-        int attempts;
-        long lastAttempt;
-        
-        TransferStatus(String taskId, String status) {
-            this.taskId = taskId;
-            this.status = status;
-            this.attempts = 0;
-            this.lastAttempt = 0;
-        }
-    }
 }
@@ -0,0 +1,108 @@
+package com.esmcp.services.transfer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 重试调度器
+ * 失败的任务按指数退避加随机抖动延迟后重新交给投递队列。
+ * 延迟任务保存在按到期时间排序的DelayQueue中，调度线程阻塞到最早的任务到期，不轮询；
+ * 等待中的任务不占用发送队列和投递线程。
+ */
+public class RetryScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(RetryScheduler.class);
+
+    private final DelayQueue<Deferred> deferred = new DelayQueue<>();
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final Consumer<TransferTask> resubmit;
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * @param resubmit 任务到期后调用，把任务放回发送队列
+     */
+    public RetryScheduler(long baseDelayMillis, long maxDelayMillis, Consumer<TransferTask> resubmit) {
+        this.baseDelayMillis = Math.max(1, baseDelayMillis);
+        this.maxDelayMillis = Math.max(this.baseDelayMillis, maxDelayMillis);
+        this.resubmit = resubmit;
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this::run, "MailTransferRetry");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 第attempt次尝试失败后的重试延迟：base * 2^(attempt-1)，不超过上限，
+     * 取其后一半区间内的随机值，避免同时失败的任务同时重试
+     */
+    public long backoff(int attempt) {
+        int shift = Math.min(Math.max(attempt - 1, 0), 30);
+        long delay = Math.min(maxDelayMillis, baseDelayMillis << shift);
+        long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+    }
+
+    /**
+     * 延迟delayMillis后重新提交任务
+     */
+    public void schedule(TransferTask task, long delayMillis) {
+        deferred.put(new Deferred(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis)));
+    }
+
+    /**
+     * 等待重试的任务数
+     */
+    public int size() {
+        return deferred.size();
+    }
+
+    public void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                resubmit.accept(deferred.take().task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                logger.error("Error resubmitting deferred transfer", e);
+            }
+        }
+    }
+
+    private static final class Deferred implements Delayed {
+        final TransferTask task;
+        final long dueNanos;
+
+        Deferred(TransferTask task, long dueNanos) {
+            this.task = task;
+            this.dueNanos = dueNanos;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(dueNanos, ((Deferred) other).dueNanos);
+        }
+    }
+}
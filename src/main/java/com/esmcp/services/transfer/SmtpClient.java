@@ -0,0 +1,764 @@
+package com.esmcp.services.transfer;
+
+import com.esmcp.config.ServerConfig;
+import com.esmcp.services.protocol.DotStuffingOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 非阻塞SMTP客户端
+ * 一个选择器线程驱动任意数量的SMTP会话，每个会话是按服务器应答推进的状态机，等待应答时不占用线程。
+ * 服务器在EHLO应答中声明PIPELINING（RFC 2920）时，MAIL、RCPT、DATA一次写出，一轮往返后即可发送正文。
+ * 多收件人的任务在一个事务中逐个发送RCPT：部分收件人临时失败时正文照常发送，任务只对这些收件人重试；
+ * 永久拒绝的收件人被放弃。
+ * 连接按中继服务器组成连接池，同时打开的连接数不超过maxConnectionsPerDestination；
+ * 超出的批次在池中排队，会话发送完一批后接着发送下一批，没有待发批次时空闲保留，空闲超时后关闭。
+ * 会话和连接池的状态只由选择器线程访问，其他线程通过submit提交批次。
+ * 正文由提交批次的线程打开（可能要从存储服务读取），选择器线程在写队列排空后按块读取、点填充后写出，
+ * 不在内存中组装整封邮件；批次结束时关闭正文流。
+ */
+public class SmtpClient implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(SmtpClient.class);
+
+    private static final long TICK_MILLIS = 100;
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_REPLY_LINE = 4096;
+    private static final int BODY_CHUNK = 64 * 1024;
+
+    /**
+     * 已发出、等待应答的命令
+     */
+    private enum Stage { GREETING, EHLO, HELO, MAIL, RCPT, DATA, BODY, RSET }
+
+    private final String heloName;
+    private final int maxConnections;
+    private final int maxMessagesPerConnection;
+    private final long idleTimeoutNanos;
+    private final long connectTimeoutNanos;
+    private final long readTimeoutNanos;
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> commands = new ConcurrentLinkedQueue<>();
+    private final Map<InetSocketAddress, Destination> destinations = new HashMap<>();
+    private final Set<Session> sessions = new HashSet<>();
+    private volatile boolean running = true;
+
+    final LongAdder connectionsOpened = new LongAdder();
+    final LongAdder messages = new LongAdder();
+    final LongAdder pipelinedSessions = new LongAdder();
+    final AtomicInteger openConnections = new AtomicInteger();
+    final AtomicInteger idleConnections = new AtomicInteger();
+    final AtomicInteger waitingBatches = new AtomicInteger();
+
+    /**
+     * @param config services.transfer配置节
+     */
+    public SmtpClient(ServerConfig config, String threadName) throws IOException {
+        this.heloName = config.getString("heloName", "localhost");
+        this.maxConnections = Math.max(1, config.getInt("maxConnectionsPerDestination", 4));
+        this.maxMessagesPerConnection = Math.max(1, config.getInt("maxMessagesPerConnection", 100));
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getLong("connectionIdleTimeout", 30000));
+        this.connectTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getLong("connectTimeout", 10000));
+        this.readTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getLong("readTimeout", 60000));
+        this.selector = Selector.open();
+        this.thread = new Thread(this::run, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 提交发往同一中继服务器的一批邮件，结果与任务一一对应
+     * 会话异常中断时未得到应答的邮件结果为RETRY；客户端关闭时future以异常结束
+     */
+    public CompletableFuture<List<MailDelivery.Result>> submit(InetSocketAddress address, List<TransferTask> batch) {
+        Job job = new Job(batch);
+        if (!running) {
+            job.future.completeExceptionally(new IOException("SMTP client closed"));
+            return job.future;
+        }
+        job.openBodies();
+        waitingBatches.incrementAndGet();
+        commands.add(() -> destination(address).enqueue(job));
+        selector.wakeup();
+        return job.future;
+    }
+
+    /**
+     * 关闭所有连接，未完成的批次以异常结束
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select(TICK_MILLIS);
+                Runnable command;
+                while ((command = commands.poll()) != null) {
+                    command.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ((Session) key.attachment()).handle(key);
+                }
+                checkTimeouts();
+            } catch (IOException | RuntimeException e) {
+                logger.error("Error in SMTP client loop", e);
+            }
+        }
+
+        // 关闭时不再分配会话，已提交的批次留在队列中以异常结束
+        Runnable command;
+        while ((command = commands.poll()) != null) {
+            command.run();
+        }
+        IOException closed = new IOException("SMTP client closed");
+        for (Session session : new ArrayList<>(sessions)) {
+            session.close(true);
+            if (session.job != null) {
+                session.job.future.completeExceptionally(closed);
+            }
+        }
+        for (Destination destination : destinations.values()) {
+            for (Job job : destination.waiting) {
+                job.future.completeExceptionally(closed);
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close selector", e);
+        }
+    }
+
+    private Destination destination(InetSocketAddress address) {
+        return destinations.computeIfAbsent(address, Destination::new);
+    }
+
+    private void checkTimeouts() {
+        long now = System.nanoTime();
+        for (Session session : new ArrayList<>(sessions)) {
+            long idle = now - session.lastActivity;
+            if (!session.connected) {
+                if (idle > connectTimeoutNanos) {
+                    session.fail(new SocketTimeoutException("Connect timed out"));
+                }
+            } else if (!session.expected.isEmpty()) {
+                if (idle > readTimeoutNanos) {
+                    session.fail(new SocketTimeoutException("Relay did not reply in time"));
+                }
+            } else if (session.job == null && session.ready && idle > idleTimeoutNanos) {
+                session.destination.idle.remove(session);
+                idleConnections.decrementAndGet();
+                session.close(true);
+            }
+        }
+    }
+
+    private static MailDelivery.Result toResult(int code) {
+        if (code / 100 == 2) {
+            return MailDelivery.Result.SENT;
+        }
+        return code / 100 == 4 ? MailDelivery.Result.RETRY : MailDelivery.Result.FAILED;
+    }
+
+    private String sender(String from) {
+        if (from == null) {
+            return "";
+        }
+        return from.indexOf('@') >= 0 ? from : from + "@" + heloName;
+    }
+
+    /**
+     * 一批待发邮件及其结果
+     */
+    private static final class Job {
+        final List<TransferTask> batch;
+        final List<MailDelivery.Result> results;
+        final CompletableFuture<List<MailDelivery.Result>> future = new CompletableFuture<>();
+        final InputStream[] bodies;
+        boolean retried;
+
+        Job(List<TransferTask> batch) {
+            this.batch = batch;
+            this.results = new ArrayList<>(batch.size());
+            this.bodies = new InputStream[batch.size()];
+            future.whenComplete((results, error) -> closeBodies());
+        }
+
+        /**
+         * 在提交线程中打开各邮件的正文，打不开的邮件本次不发送，按临时失败处理
+         */
+        void openBodies() {
+            for (int i = 0; i < batch.size(); i++) {
+                try {
+                    bodies[i] = batch.get(i).openBody();
+                } catch (IOException e) {
+                    logger.warn("Failed to open body of mail transfer {}", batch.get(i).taskId, e);
+                }
+            }
+        }
+
+        private void closeBodies() {
+            for (InputStream body : bodies) {
+                if (body != null) {
+                    try {
+                        body.close();
+                    } catch (IOException e) {
+                        // 忽略
+                    }
+                }
+            }
+        }
+
+        void completeRemaining(MailDelivery.Result result) {
+            while (results.size() < batch.size()) {
+                results.add(result);
+            }
+            future.complete(results);
+        }
+    }
+
+    /**
+     * 一个中继服务器的连接池
+     */
+    private final class Destination {
+        final InetSocketAddress address;
+        final ArrayDeque<Job> waiting = new ArrayDeque<>();
+        final ArrayDeque<Session> idle = new ArrayDeque<>();
+        int open;
+
+        Destination(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        void enqueue(Job job) {
+            waiting.addLast(job);
+            dispatch();
+        }
+
+        /**
+         * 把排队的批次分配给空闲会话，连接数未满时为其打开新连接
+         */
+        void dispatch() {
+            while (running && !waiting.isEmpty()) {
+                Session session = idle.pollFirst();
+                if (session != null) {
+                    idleConnections.decrementAndGet();
+                    session.start(take(), true);
+                } else if (open < maxConnections) {
+                    open++;
+                    openConnections.incrementAndGet();
+                    Session opened = new Session(this);
+                    opened.job = take();
+                    opened.connect();
+                } else {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * 会话发送完一批后：继续发送排队的批次，或者空闲保留
+         */
+        void release(Session session) {
+            if (session.messagesSent >= maxMessagesPerConnection) {
+                session.close(true);
+            } else if (!waiting.isEmpty()) {
+                session.start(take(), false);
+            } else {
+                idle.addFirst(session);
+                idleConnections.incrementAndGet();
+            }
+            dispatch();
+        }
+
+        void closed(Session session) {
+            open--;
+            openConnections.decrementAndGet();
+            dispatch();
+        }
+
+        private Job take() {
+            waitingBatches.decrementAndGet();
+            return waiting.pollFirst();
+        }
+    }
+
+    /**
+     * 一个SMTP会话
+     */
+    private final class Session {
+        final Destination destination;
+        final ArrayDeque<Stage> expected = new ArrayDeque<>();
+        final ArrayDeque<ByteBuffer> writes = new ArrayDeque<>();
+        final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        final StringBuilder line = new StringBuilder();
+        final List<String> replyLines = new ArrayList<>();
+        SocketChannel channel;
+        SelectionKey key;
+        long lastActivity = System.nanoTime();
+        boolean connected;
+        boolean ready;
+        boolean closed;
+        boolean pipelining;
+        int messagesSent;
+        Job job;
+        boolean reused;
+        boolean replied;
+        int failure; // MAIL被拒绝时的应答码，此后整个事务放弃
+        List<String> rcpts;
+        int rcptReplies;
+        final List<String> accepted = new ArrayList<>();
+        final List<String> deferred = new ArrayList<>();
+        InputStream body; // 正在发送的正文，发送完毕后为null
+        ByteArrayOutputStream bodyBytes;
+        DotStuffingOutputStream bodyData;
+        byte[] bodyChunk;
+
+        Session(Destination destination) {
+            this.destination = destination;
+        }
+
+        void connect() {
+            sessions.add(this);
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+                if (channel.connect(destination.address)) {
+                    connected();
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        void handle(SelectionKey selected) {
+            try {
+                if (selected.isConnectable() && channel.finishConnect()) {
+                    connected();
+                }
+                if (!closed && selected.isValid() && selected.isWritable()) {
+                    flush();
+                }
+                if (!closed && selected.isValid() && selected.isReadable()) {
+                    read();
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * 开始发送一批邮件；reused表示从空闲池取出的连接，可能已被服务器关闭
+         */
+        void start(Job next, boolean reused) {
+            this.job = next;
+            this.reused = reused;
+            this.replied = false;
+            startMessage();
+        }
+
+        private void connected() {
+            connected = true;
+            connectionsOpened.increment();
+            lastActivity = System.nanoTime();
+            key.interestOps(SelectionKey.OP_READ);
+            expected.add(Stage.GREETING);
+        }
+
+        private void onReply(Stage stage, int code) throws IOException {
+            if (code == 421) {
+                // 服务器即将关闭连接
+                throw new IOException("Relay closing connection: " + String.join(" ", replyLines));
+            }
+            switch (stage) {
+                case GREETING:
+                    if (code != 220) {
+                        throw new IOException("Relay refused connection with " + code);
+                    }
+                    send(Stage.EHLO, "EHLO " + heloName);
+                    break;
+                case EHLO:
+                    if (code / 100 == 2) {
+                        for (String text : replyLines) {
+                            if (text.length() > 4 && text.substring(4).trim().equalsIgnoreCase("PIPELINING")) {
+                                pipelining = true;
+                                pipelinedSessions.increment();
+                            }
+                        }
+                        ready();
+                    } else {
+                        send(Stage.HELO, "HELO " + heloName);
+                    }
+                    break;
+                case HELO:
+                    if (code / 100 != 2) {
+                        throw new IOException("Relay rejected HELO with " + code);
+                    }
+                    ready();
+                    break;
+                case MAIL:
+                    if (code / 100 != 2) {
+                        failure = code;
+                    }
+                    if (!pipelining) {
+                        if (failure != 0) {
+                            finishMessage(failure, true);
+                        } else {
+                            send(Stage.RCPT, "RCPT TO:<" + rcpts.get(0) + ">");
+                        }
+                    }
+                    break;
+                case RCPT:
+                    String rcpt = rcpts.get(rcptReplies++);
+                    // MAIL被拒绝后流水线中的RCPT应答不反映收件人本身
+                    if (failure == 0) {
+                        if (code / 100 == 2) {
+                            accepted.add(rcpt);
+                        } else if (code / 100 == 4) {
+                            deferred.add(rcpt);
+                        } else {
+                            logger.warn("Relay rejected recipient {} with {}", rcpt, code);
+                        }
+                    }
+                    if (!pipelining) {
+                        if (rcptReplies < rcpts.size()) {
+                            send(Stage.RCPT, "RCPT TO:<" + rcpts.get(rcptReplies) + ">");
+                        } else if (accepted.isEmpty()) {
+                            finishMessage(outcome(code), true);
+                        } else {
+                            send(Stage.DATA, "DATA");
+                        }
+                    }
+                    break;
+                case DATA:
+                    if (code == 354) {
+                        // 前面的命令被拒绝时服务器仍可能接受DATA，此时只发送结束行放弃本封邮件
+                        boolean abort = failure != 0 || accepted.isEmpty();
+                        if (abort) {
+                            queue(ascii(".\r\n"));
+                        } else {
+                            startBody(job.results.size());
+                        }
+                        expected.add(Stage.BODY);
+                        flush();
+                    } else {
+                        finishMessage(outcome(code), true);
+                    }
+                    break;
+                case BODY:
+                    finishMessage(outcome(code), false);
+                    break;
+                case RSET:
+                    nextMessage();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void ready() {
+            ready = true;
+            if (job != null) {
+                startMessage();
+            } else {
+                destination.release(this);
+            }
+        }
+
+        private void startMessage() {
+            TransferTask task = job.batch.get(job.results.size());
+            if (job.bodies[job.results.size()] == null) {
+                // 正文无法读取，不发送本封邮件，稍后重试
+                job.results.add(MailDelivery.Result.RETRY);
+                nextMessage();
+                return;
+            }
+            failure = 0;
+            rcpts = task.remaining;
+            rcptReplies = 0;
+            accepted.clear();
+            deferred.clear();
+            String mail = "MAIL FROM:<" + sender(task.from) + ">";
+            if (pipelining) {
+                // 一次写出整组命令，按顺序等待MAIL、每个RCPT和DATA的应答
+                StringBuilder commands = new StringBuilder(mail).append("\r\n");
+                expected.add(Stage.MAIL);
+                for (String rcpt : rcpts) {
+                    commands.append("RCPT TO:<").append(rcpt).append(">\r\n");
+                    expected.add(Stage.RCPT);
+                }
+                commands.append("DATA\r\n");
+                expected.add(Stage.DATA);
+                queue(ascii(commands.toString()));
+                flushQuietly();
+            } else {
+                send(Stage.MAIL, mail);
+            }
+        }
+
+        /**
+         * 事务的结果码：MAIL被拒绝时为该应答码；没有收件人被接受时，有临时失败的收件人为451，否则为550
+         */
+        private int outcome(int code) {
+            if (failure != 0) {
+                return failure;
+            }
+            if (accepted.isEmpty()) {
+                return deferred.isEmpty() ? 550 : 451;
+            }
+            return code;
+        }
+
+        /**
+         * 记录一封邮件的结果；正文已送达但有收件人临时失败，或事务临时失败时，
+         * 任务只保留需要重试的收件人（永久拒绝的收件人不再重试）
+         */
+        private void finishMessage(int code, boolean reset) {
+            TransferTask task = job.batch.get(job.results.size());
+            MailDelivery.Result result = toResult(code);
+            if (code / 100 == 2) {
+                task.remaining = new ArrayList<>(deferred);
+                if (!deferred.isEmpty()) {
+                    result = MailDelivery.Result.RETRY;
+                }
+            } else if (code / 100 == 4 && failure == 0) {
+                List<String> retry = new ArrayList<>(accepted);
+                retry.addAll(deferred);
+                task.remaining = retry;
+            }
+            job.results.add(result);
+            messages.increment();
+            messagesSent++;
+            if (reset) {
+                send(Stage.RSET, "RSET");
+            } else {
+                nextMessage();
+            }
+        }
+
+        private void nextMessage() {
+            if (job.results.size() < job.batch.size()) {
+                startMessage();
+                return;
+            }
+            Job done = job;
+            job = null;
+            done.future.complete(done.results);
+            destination.release(this);
+        }
+
+        private void send(Stage stage, String command) {
+            queue(ascii(command + "\r\n"));
+            expected.add(stage);
+            flushQuietly();
+        }
+
+        private void queue(ByteBuffer buffer) {
+            writes.addLast(buffer);
+        }
+
+        private void flushQuietly() {
+            try {
+                flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void flush() throws IOException {
+            while (true) {
+                while (!writes.isEmpty()) {
+                    ByteBuffer head = writes.peekFirst();
+                    channel.write(head);
+                    if (head.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    writes.pollFirst();
+                }
+                if (body == null) {
+                    break;
+                }
+                nextBodyChunk();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        /**
+         * 写出信头，正文在写队列排空后由flush逐块读取
+         */
+        private void startBody(int index) {
+            TransferTask task = job.batch.get(index);
+            String headers = "From: <" + sender(task.from) + ">\r\nTo: <" + String.join(">, <", task.recipients)
+                + ">\r\nSubject: "
+                + (task.subject != null ? task.subject : "") + "\r\n\r\n";
+            queue(ascii(headers));
+            if (bodyChunk == null) {
+                bodyChunk = new byte[BODY_CHUNK];
+                bodyBytes = new ByteArrayOutputStream(BODY_CHUNK + BODY_CHUNK / 8);
+            }
+            bodyBytes.reset();
+            bodyData = new DotStuffingOutputStream(bodyBytes);
+            body = job.bodies[index];
+        }
+
+        /**
+         * 读取下一块正文，点填充后放入写队列；读完时写出结束行
+         */
+        private void nextBodyChunk() throws IOException {
+            int n = body.read(bodyChunk);
+            if (n < 0) {
+                bodyData.finish();
+                body = null;
+            } else {
+                bodyData.write(bodyChunk, 0, n);
+            }
+            queue(ByteBuffer.wrap(bodyBytes.toByteArray()));
+            bodyBytes.reset();
+        }
+
+        private void read() throws IOException {
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                throw new EOFException("Relay closed connection");
+            }
+            lastActivity = System.nanoTime();
+            readBuffer.flip();
+            while (readBuffer.hasRemaining() && !closed) {
+                byte b = readBuffer.get();
+                if (b != '\n') {
+                    if (line.length() >= MAX_REPLY_LINE) {
+                        throw new IOException("Reply line too long");
+                    }
+                    line.append((char) (b & 0xFF));
+                    continue;
+                }
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                String text = line.toString();
+                line.setLength(0);
+                processLine(text);
+            }
+            readBuffer.clear();
+        }
+
+        private void processLine(String text) throws IOException {
+            int code;
+            try {
+                code = Integer.parseInt(text.substring(0, 3));
+            } catch (RuntimeException e) {
+                throw new IOException("Malformed reply: " + text);
+            }
+            replyLines.add(text);
+            if (text.length() > 3 && text.charAt(3) == '-') {
+                return;
+            }
+            Stage stage = expected.pollFirst();
+            if (stage == null) {
+                throw new IOException("Unexpected reply: " + text);
+            }
+            replied = true;
+            onReply(stage, code);
+            replyLines.clear();
+        }
+
+        /**
+         * 会话失败：关闭连接，本批未得到应答的邮件稍后重试
+         * 从空闲池取出的连接在第一个应答之前失败时，换新连接重发本批
+         */
+        void fail(IOException e) {
+            if (closed) {
+                return;
+            }
+            Job failed = job;
+            job = null;
+            if (destination.idle.remove(this)) {
+                idleConnections.decrementAndGet();
+            }
+            if (failed != null) {
+                if (reused && !replied && !failed.retried) {
+                    failed.retried = true;
+                    destination.waiting.addFirst(failed);
+                    waitingBatches.incrementAndGet();
+                } else {
+                    logger.warn("SMTP session to {} failed: {}", destination.address, e.getMessage());
+                    failed.completeRemaining(MailDelivery.Result.RETRY);
+                }
+            }
+            close(false);
+        }
+
+        /**
+         * 关闭连接，graceful时先发送QUIT（不等待应答）
+         */
+        void close(boolean graceful) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            sessions.remove(this);
+            if (channel != null) {
+                if (graceful && ready) {
+                    try {
+                        channel.write(ascii("QUIT\r\n"));
+                    } catch (IOException e) {
+                        // 连接即将关闭，忽略
+                    }
+                }
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // 忽略
+                }
+            }
+            destination.closed(this);
+        }
+
+        private ByteBuffer ascii(String text) {
+            return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.esmcp.services.transfer;
+
+import com.esmcp.config.ServerConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * 通过SMTP中继投递
+ * 目的域名按transfer.routes映射到中继服务器，未列出的域名使用transfer.relay。
+ * 投递由transfer.ioThreads个非阻塞SmtpClient完成，每个中继服务器固定由其中一个客户端负责，
+ * 连接池和会话状态不跨线程共享。投递线程提交批次后立即返回，不等待SMTP应答。
+ */
+public class SmtpDelivery implements MailDelivery {
+    private static final Logger logger = LoggerFactory.getLogger(SmtpDelivery.class);
+
+    private final Map<String, InetSocketAddress> routes = new LinkedHashMap<>();
+    private final InetSocketAddress relay;
+    private final SmtpClient[] clients;
+
+    /**
+     * @param config services.transfer配置节
+     */
+    public SmtpDelivery(ServerConfig config) {
+        for (Map.Entry<String, String> route : config.getStringMap("routes").entrySet()) {
+            routes.put(route.getKey().toLowerCase(), parseAddress(route.getValue()));
+        }
+        this.relay = config.has("relay") ? parseAddress(config.getString("relay", null)) : null;
+        this.clients = new SmtpClient[Math.max(1, config.getInt("ioThreads", 1))];
+        try {
+            for (int i = 0; i < clients.length; i++) {
+                clients[i] = new SmtpClient(config, "MailTransferSmtp-" + i);
+            }
+        } catch (IOException e) {
+            close();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 是否配置了中继服务器
+     */
+    public static boolean isConfigured(ServerConfig config) {
+        return config.has("relay") || !config.getStringMap("routes").isEmpty();
+    }
+
+    @Override
+    public Result deliver(TransferTask task) throws InterruptedException {
+        return deliver(Collections.singletonList(task)).get(0);
+    }
+
+    @Override
+    public List<Result> deliver(List<TransferTask> batch) throws InterruptedException {
+        try {
+            return deliverAsync(batch).get();
+        } catch (ExecutionException e) {
+            logger.warn("Delivery of {} mails to '{}' failed", batch.size(), batch.get(0).domain, e.getCause());
+            return Collections.nCopies(batch.size(), Result.RETRY);
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<Result>> deliverAsync(List<TransferTask> batch) {
+        String domain = batch.get(0).domain;
+        InetSocketAddress address = routes.getOrDefault(domain, relay);
+        if (address == null) {
+            logger.warn("No relay configured for domain '{}'", domain);
+            return CompletableFuture.completedFuture(Collections.nCopies(batch.size(), Result.FAILED));
+        }
+        return clients[Math.floorMod(address.hashCode(), clients.length)].submit(address, batch);
+    }
+
+    @Override
+    public Map<String, Object> snapshot() {
+        long opened = 0;
+        long messages = 0;
+        long pipelined = 0;
+        int open = 0;
+        int idle = 0;
+        int waiting = 0;
+        for (SmtpClient client : clients) {
+            opened += client.connectionsOpened.sum();
+            messages += client.messages.sum();
+            pipelined += client.pipelinedSessions.sum();
+            open += client.openConnections.get();
+            idle += client.idleConnections.get();
+            waiting += client.waitingBatches.get();
+        }
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("connectionsOpened", opened);
+        values.put("openConnections", open);
+        values.put("idleConnections", idle);
+        values.put("pipelinedSessions", pipelined);
+        values.put("waitingBatches", waiting);
+        values.put("avgMessagesPerSession", opened > 0 ? (double) messages / opened : 0.0);
+        return values;
+    }
+
+    @Override
+    public void close() {
+        for (SmtpClient client : clients) {
+            if (client != null) {
+                client.close();
+            }
+        }
+    }
+
+    private static InetSocketAddress parseAddress(String value) {
+        String text = value.trim();
+        int colon = text.lastIndexOf(':');
+        if (colon < 0) {
+            return new InetSocketAddress(text, 25);
+        }
+        return new InetSocketAddress(text.substring(0, colon), Integer.parseInt(text.substring(colon + 1)));
+    }
+}
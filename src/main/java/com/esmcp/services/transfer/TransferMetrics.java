@@ -0,0 +1,41 @@
+package com.esmcp.services.transfer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 传输服务指标
+ * 计数器可被多个投递线程并发更新，通过TRANSFER_STATS消息查询快照
+ */
+public class TransferMetrics {
+    final LongAdder queued = new LongAdder();
+    final LongAdder rejected = new LongAdder(); // 队列已满被拒绝
+    final LongAdder attempts = new LongAdder();
+    final LongAdder batches = new LongAdder(); // 投递线程每次取出的同一域名任务批次
+    final LongAdder sent = new LongAdder();
+    final LongAdder failed = new LongAdder();
+    final LongAdder deferred = new LongAdder(); // 临时失败后安排重试的次数
+    final LongAdder firstAttempts = new LongAdder();
+    final LongAdder queueWaitNanos = new LongAdder(); // 入队到首次尝试的等待时间
+
+    /**
+     * 指标快照
+     */
+    public Map<String, Object> snapshot() {
+        long first = firstAttempts.sum();
+
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("queued", queued.sum());
+        values.put("rejected", rejected.sum());
+        values.put("attempts", attempts.sum());
+        long batchCount = batches.sum();
+        values.put("batches", batchCount);
+        values.put("avgBatchSize", batchCount > 0 ? (double) attempts.sum() / batchCount : 0.0);
+        values.put("sent", sent.sum());
+        values.put("failed", failed.sum());
+        values.put("retries", deferred.sum());
+        values.put("avgQueueWaitMillis", first > 0 ? queueWaitNanos.sum() / 1e6 / first : 0.0);
+        return values;
+    }
+}
@@ -0,0 +1,333 @@
+package com.esmcp.services.transfer;
+
+import com.esmcp.services.storage.MailLog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 外发队列的磁盘暂存
+ * 入队和完成分别追加ENQUEUED、DONE记录到分段日志，启动时回放出尚未完成的任务。
+ * 入队记录由刷盘线程成批force后再确认（组提交），刷盘失败时这一批任务全部按失败通知并标记完成，
+ * 不会被确认为已持久化。DONE记录不单独刷盘：崩溃时丢失的DONE只会导致任务重新投递一次。
+ * 从最旧的段开始回收任务全部完成的已封存段；最旧段只剩少量长期等待重试的任务时，
+ * 把它们重新追加到日志末尾后回收该段，避免个别任务拖住后面所有段。
+ */
+public class TransferSpool implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(TransferSpool.class);
+
+    private static final byte ENQUEUED = 1;
+    private static final byte DONE = 2;
+    private static final long RECLAIM_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int CARRY_FORWARD_LIMIT = 1024;
+
+    private final MailLog log;
+    private final ConcurrentSkipListMap<Integer, Set<TransferTask>> live = new ConcurrentSkipListMap<>();
+    private final Object flushLock = new Object();
+    private final LongAdder syncs = new LongAdder();
+    private final LongAdder carried = new LongAdder();
+    private List<Pending> pending = new ArrayList<>();
+    private long pendingAddress = -1;
+    private Thread flusher;
+    private volatile boolean running;
+
+    public TransferSpool(Path directory, long segmentSize) throws IOException {
+        // 刷盘由本类的组提交控制，日志本身不主动刷盘
+        this.log = new MailLog(directory, segmentSize, MailLog.FsyncPolicy.NEVER);
+    }
+
+    /**
+     * 回放日志并启动刷盘线程，返回尚未完成的任务（按入队顺序）
+     */
+    public List<TransferTask> open() throws IOException {
+        Map<String, TransferTask> tasks = new LinkedHashMap<>();
+        log.open((address, type, payload) -> {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            if (type == ENQUEUED) {
+                TransferTask task = decode(in);
+                task.spoolSegment = MailLog.segmentId(address);
+                // 转存过的任务以最新的记录为准
+                tasks.remove(task.taskId);
+                tasks.put(task.taskId, task);
+            } else if (type == DONE) {
+                tasks.remove(String.valueOf(in.readLong()));
+            }
+        });
+        for (TransferTask task : tasks.values()) {
+            segmentTasks(task.spoolSegment).add(task);
+        }
+        reclaim();
+
+        running = true;
+        flusher = new Thread(this::flushLoop, "MailTransferSpool");
+        flusher.setDaemon(true);
+        flusher.start();
+        logger.info("Transfer spool recovered {} pending tasks from {} segments", tasks.size(), log.segmentCount());
+        return new ArrayList<>(tasks.values());
+    }
+
+    /**
+     * 追加入队记录，记录刷盘后在刷盘线程中调用onDurable；
+     * 刷盘失败时任务被标记完成（重启后不回放），在刷盘线程中调用onFailed
+     */
+    public void append(TransferTask task, Runnable onDurable, Runnable onFailed) throws IOException {
+        long address = log.append(ENQUEUED, encode(task));
+        synchronized (task) {
+            task.spoolSegment = MailLog.segmentId(address);
+            segmentTasks(task.spoolSegment).add(task);
+        }
+        synchronized (flushLock) {
+            pending.add(new Pending(task, onDurable, onFailed));
+            pendingAddress = Math.max(pendingAddress, address);
+            flushLock.notify();
+        }
+    }
+
+    /**
+     * 记录任务已结束（送达或永久失败），不再在重启后回放
+     */
+    public void markDone(TransferTask task) throws IOException {
+        synchronized (task) {
+            if (task.spoolDone) {
+                return;
+            }
+            task.spoolDone = true;
+            log.append(DONE, ByteBuffer.allocate(8).putLong(Long.parseLong(task.taskId)).array());
+            Set<TransferTask> tasks = live.get(task.spoolSegment);
+            if (tasks != null) {
+                tasks.remove(task);
+            }
+        }
+    }
+
+    /**
+     * 暂存指标
+     */
+    public Map<String, Object> snapshot() {
+        long tasks = 0;
+        for (Set<TransferTask> segment : live.values()) {
+            tasks += segment.size();
+        }
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("spoolTasks", tasks);
+        values.put("spoolSegments", log.segmentCount());
+        values.put("spoolBytes", log.sizeOnDisk());
+        values.put("spoolSyncs", syncs.sum());
+        values.put("spoolCarriedForward", carried.sum());
+        return values;
+    }
+
+    /**
+     * 刷出所有等待确认的记录后关闭日志
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        if (flusher != null) {
+            synchronized (flushLock) {
+                flushLock.notify();
+            }
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        log.close();
+    }
+
+    /**
+     * 刷盘线程：有待确认的记录时立即刷盘，刷盘期间到达的记录合并到下一次
+     */
+    private void flushLoop() {
+        long nextReclaim = System.nanoTime() + RECLAIM_INTERVAL_NANOS;
+        while (true) {
+            List<Pending> batch;
+            long address;
+            synchronized (flushLock) {
+                long wait;
+                while (pending.isEmpty() && running && (wait = nextReclaim - System.nanoTime()) > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(flushLock, wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        running = false;
+                    }
+                }
+                if (pending.isEmpty() && !running) {
+                    return;
+                }
+                batch = pending;
+                address = pendingAddress;
+                pending = new ArrayList<>();
+            }
+
+            if (!batch.isEmpty()) {
+                boolean durable = false;
+                try {
+                    sync(address);
+                    syncs.increment();
+                    durable = true;
+                } catch (IOException e) {
+                    logger.error("Transfer spool sync failed, {} tasks not accepted", batch.size(), e);
+                }
+                for (Pending entry : batch) {
+                    if (durable) {
+                        entry.onDurable.run();
+                    } else {
+                        discard(entry.task);
+                        entry.onFailed.run();
+                    }
+                }
+            }
+
+            if (System.nanoTime() - nextReclaim >= 0) {
+                try {
+                    reclaim();
+                } catch (IOException e) {
+                    logger.error("Transfer spool reclamation failed", e);
+                }
+                nextReclaim = System.nanoTime() + RECLAIM_INTERVAL_NANOS;
+            }
+        }
+    }
+
+    /**
+     * 从最旧的已封存段开始回收
+     * 后面段中的DONE记录可能对应前面段中的任务，所以只能按顺序回收，遇到不能回收的段即停止
+     */
+    private void reclaim() throws IOException {
+        for (int id : log.sealedSegments()) {
+            Set<TransferTask> tasks = live.get(id);
+            if (tasks != null && !tasks.isEmpty()) {
+                if (tasks.size() > CARRY_FORWARD_LIMIT) {
+                    return;
+                }
+                for (TransferTask task : tasks.toArray(new TransferTask[0])) {
+                    carryForward(task, id);
+                }
+                // 转存的记录持久化后才能删除原记录所在的段
+                log.sync();
+            }
+            log.dropSegment(id);
+            live.remove(id);
+        }
+    }
+
+    private void carryForward(TransferTask task, int from) throws IOException {
+        synchronized (task) {
+            if (task.spoolDone || task.spoolSegment != from) {
+                return;
+            }
+            long address = log.append(ENQUEUED, encode(task));
+            task.spoolSegment = MailLog.segmentId(address);
+            segmentTasks(task.spoolSegment).add(task);
+            live.get(from).remove(task);
+            carried.increment();
+        }
+    }
+
+    private Set<TransferTask> segmentTasks(int segmentId) {
+        return live.computeIfAbsent(segmentId, id -> ConcurrentHashMap.newKeySet());
+    }
+
+    /**
+     * 刷盘到address为止的记录
+     */
+    protected void sync(long address) throws IOException {
+        log.sync(address);
+    }
+
+    /**
+     * 丢弃未能持久化的任务：尽量写入DONE记录，写入失败时至少不再由回收和转存处理它
+     */
+    private void discard(TransferTask task) {
+        try {
+            markDone(task);
+        } catch (IOException e) {
+            synchronized (task) {
+                Set<TransferTask> tasks = live.get(task.spoolSegment);
+                if (tasks != null) {
+                    tasks.remove(task);
+                }
+            }
+        }
+    }
+
+    private static byte[] encode(TransferTask task) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (task.body != null ? task.body.length() : 0));
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(Long.parseLong(task.taskId));
+        writeString(out, task.from);
+        writeString(out, task.to);
+        writeString(out, task.subject);
+        writeString(out, task.body);
+        out.writeLong(task.mailId);
+        return bytes.toByteArray();
+    }
+
+    private static TransferTask decode(DataInputStream in) throws IOException {
+        String taskId = String.valueOf(in.readLong());
+        String from = readString(in);
+        String to = readString(in);
+        String subject = readString(in);
+        String body = readString(in);
+        // 旧版本的记录没有邮件ID
+        long mailId = in.available() >= 8 ? in.readLong() : -1;
+        return new TransferTask(taskId, from, to, subject, body, mailId);
+    }
+
+    // writeUTF限制64KB，正文可能更长，使用长度前缀的UTF-8，-1表示null
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 等待刷盘确认的入队记录
+     */
+    private static final class Pending {
+        final TransferTask task;
+        final Runnable onDurable;
+        final Runnable onFailed;
+
+        Pending(TransferTask task, Runnable onDurable, Runnable onFailed) {
+            this.task = task;
+            this.onDurable = onDurable;
+            this.onFailed = onFailed;
+        }
+    }
+}
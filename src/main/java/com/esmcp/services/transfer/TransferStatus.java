@@ -0,0 +1,71 @@
+package com.esmcp.services.transfer;
+
+import java.util.Map;
+
+/**
+ * 传输任务的状态快照
+ * 不可变，状态转换生成新的快照并整体替换，查询线程读到的字段总是来自同一次转换
+ */
+public final class TransferStatus {
+    public static final String QUEUED = "QUEUED";
+    public static final String SENDING = "SENDING";
+    public static final String DEFERRED = "DEFERRED";
+    public static final String SENT = "SENT";
+    public static final String FAILED = "FAILED";
+
+    final String taskId;
+    final String status;
+    final int attempts;
+    final long lastAttempt;
+    final long nextAttempt;
+    final long updatedAt = System.currentTimeMillis();
+
+    TransferStatus(String taskId, String status, int attempts, long lastAttempt, long nextAttempt) {
+        this.taskId = taskId;
+        this.status = status;
+        this.attempts = attempts;
+        this.lastAttempt = lastAttempt;
+        this.nextAttempt = nextAttempt;
+    }
+
+    static TransferStatus queued(String taskId) {
+        return new TransferStatus(taskId, QUEUED, 0, 0, 0);
+    }
+
+    TransferStatus sending(int attempts, long now) {
+        return new TransferStatus(taskId, SENDING, attempts, now, 0);
+    }
+
+    TransferStatus deferred(long nextAttempt) {
+        return new TransferStatus(taskId, DEFERRED, attempts, lastAttempt, nextAttempt);
+    }
+
+    TransferStatus requeued() {
+        return new TransferStatus(taskId, QUEUED, attempts, lastAttempt, 0);
+    }
+
+    TransferStatus finished(boolean success) {
+        return new TransferStatus(taskId, success ? SENT : FAILED, attempts, lastAttempt, 0);
+    }
+
+    /**
+     * 已发送或已放弃，状态不会再变化
+     */
+    public boolean isTerminal() {
+        return status.equals(SENT) || status.equals(FAILED);
+    }
+
+    public String getTaskId() { return taskId; }
+    public String getStatus() { return status; }
+    public int getAttempts() { return attempts; }
+
+    Map<String, Object> toPayload() {
+        return Map.of(
+            "taskId", taskId,
+            "status", status,
+            "attempts", attempts,
+            "lastAttempt", lastAttempt,
+            "nextAttempt", nextAttempt
+        );
+    }
+}
@@ -0,0 +1,231 @@
+package com.esmcp.services.transfer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+
+/**
+ * 传输任务状态表
+ * 未完成任务的状态常驻内存；进入终态（SENT/FAILED）的状态按完成顺序排队，
+ * 超过ttl或终态条数超过capacity时从内存淘汰，内存占用有上限。
+ * 指定了索引文件时，淘汰的终态写入磁盘上按任务ID直接寻址的定长槽位（slots个，新任务覆盖旧任务），
+ * 内存未命中时读一个槽位即可，查询始终是O(1)。
+ */
+public class TransferStatusStore implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(TransferStatusStore.class);
+
+    // 槽位：taskId(8) lastAttempt(8) attempts(4) 状态(1) 填充(3)
+    private static final int SLOT_SIZE = 24;
+    private static final byte SLOT_SENT = 1;
+    private static final byte SLOT_FAILED = 2;
+
+    private final Map<String, TransferStatus> statuses = new ConcurrentHashMap<>();
+    private final Queue<TransferStatus> finished = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger finishedCount = new AtomicInteger();
+    private final long ttlMillis;
+    private final int capacity;
+    private final FileChannel index;
+    private final int slots;
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder spilled = new LongAdder();
+    private long maxSpilledTaskId;
+
+    /**
+     * 只在内存中保存状态
+     */
+    public TransferStatusStore(long ttlMillis, int capacity) {
+        this.ttlMillis = ttlMillis;
+        this.capacity = capacity;
+        this.index = null;
+        this.slots = 0;
+    }
+
+    /**
+     * @param indexFile 淘汰终态的磁盘索引，已存在时继续使用
+     * @param slots 索引槽位数，文件最大slots * 24字节
+     */
+    public TransferStatusStore(long ttlMillis, int capacity, Path indexFile, int slots) throws IOException {
+        this.ttlMillis = ttlMillis;
+        this.capacity = capacity;
+        this.slots = slots;
+        if (indexFile.getParent() != null) {
+            Files.createDirectories(indexFile.getParent());
+        }
+        this.index = FileChannel.open(indexFile,
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.maxSpilledTaskId = scanMaxTaskId();
+    }
+
+    /**
+     * 索引中最大的任务ID，任务ID从它之后分配，避免新任务查到上次运行留下的状态
+     */
+    public long maxSpilledTaskId() {
+        return maxSpilledTaskId;
+    }
+
+    /**
+     * 登记新任务
+     */
+    public void register(String taskId) {
+        statuses.put(taskId, TransferStatus.queued(taskId));
+    }
+
+    /**
+     * 原子地转换一个未完成任务的状态，任务不在表中时忽略
+     */
+    public void update(String taskId, UnaryOperator<TransferStatus> transition) {
+        statuses.computeIfPresent(taskId, (id, status) -> transition.apply(status));
+    }
+
+    /**
+     * 任务进入终态，之后可以被淘汰
+     */
+    public void finish(String taskId, boolean success) {
+        TransferStatus status = statuses.computeIfPresent(taskId, (id, current) -> current.finished(success));
+        if (status != null) {
+            finished.add(status);
+            finishedCount.incrementAndGet();
+        }
+        expire();
+    }
+
+    public TransferStatus get(String taskId) {
+        expire();
+        TransferStatus status = statuses.get(taskId);
+        if (status != null || index == null) {
+            return status;
+        }
+        try {
+            return readSlot(Long.parseLong(taskId));
+        } catch (NumberFormatException e) {
+            return null;
+        } catch (IOException e) {
+            logger.warn("Failed to read transfer status {} from index", taskId, e);
+            return null;
+        }
+    }
+
+    /**
+     * 淘汰过期或超出容量的终态
+     */
+    public void expire() {
+        long now = System.currentTimeMillis();
+        TransferStatus oldest;
+        while ((oldest = finished.peek()) != null
+               && (finishedCount.get() > capacity || now - oldest.updatedAt >= ttlMillis)) {
+            if (!finished.remove(oldest)) {
+                continue;
+            }
+            finishedCount.decrementAndGet();
+            // 先写入索引再移出内存，并发的查询不会在两者之间查不到
+            if (index != null) {
+                spill(oldest);
+            }
+            statuses.remove(oldest.taskId, oldest);
+            evicted.increment();
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("statusEntries", statuses.size());
+        values.put("statusEvicted", evicted.sum());
+        values.put("statusSpilled", spilled.sum());
+        return values;
+    }
+
+    /**
+     * 内存中的终态全部写入索引后关闭，下次启动时任务ID不会与它们重复
+     */
+    @Override
+    public void close() throws IOException {
+        if (index == null) {
+            return;
+        }
+        TransferStatus status;
+        while ((status = finished.poll()) != null) {
+            spill(status);
+        }
+        index.close();
+    }
+
+    private void spill(TransferStatus status) {
+        long taskId;
+        try {
+            taskId = Long.parseLong(status.taskId);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+        slot.putLong(taskId).putLong(status.lastAttempt).putInt(status.attempts)
+            .put(status.status.equals(TransferStatus.SENT) ? SLOT_SENT : SLOT_FAILED);
+        slot.clear();
+        try {
+            writeFully(slot, slotOffset(taskId));
+            spilled.increment();
+        } catch (IOException e) {
+            logger.warn("Failed to spill transfer status {} to index", status.taskId, e);
+        }
+    }
+
+    private TransferStatus readSlot(long taskId) throws IOException {
+        ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+        long position = slotOffset(taskId);
+        while (slot.hasRemaining()) {
+            if (index.read(slot, position + slot.position()) < 0) {
+                return null;
+            }
+        }
+        slot.flip();
+        if (slot.getLong() != taskId) {
+            // 槽位为空或已被更新的任务覆盖
+            return null;
+        }
+        long lastAttempt = slot.getLong();
+        int attempts = slot.getInt();
+        String state = slot.get() == SLOT_SENT ? TransferStatus.SENT : TransferStatus.FAILED;
+        return new TransferStatus(String.valueOf(taskId), state, attempts, lastAttempt, 0);
+    }
+
+    private long scanMaxTaskId() throws IOException {
+        long max = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(SLOT_SIZE * 4096);
+        long position = 0;
+        // 末尾不足一个槽位的残片忽略
+        while (index.read(buffer, position) >= SLOT_SIZE) {
+            buffer.flip();
+            while (buffer.remaining() >= SLOT_SIZE) {
+                max = Math.max(max, buffer.getLong());
+                buffer.position(buffer.position() + SLOT_SIZE - 8);
+                position += SLOT_SIZE;
+            }
+            buffer.clear();
+        }
+        return max;
+    }
+
+    private long slotOffset(long taskId) {
+        return Math.floorMod(taskId, (long) slots) * SLOT_SIZE;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += index.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.esmcp.services.transfer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 待投递的外发邮件
+ * 一个任务可以有同一域名的多个收件人，to为逗号分隔的收件人列表，在一个SMTP事务中投递。
+ * 正文已保存在存储服务中时任务只记录邮件ID（body为null），投递时通过bodySource读取。
+ * 任务内容不可变；尝试次数和尚未送达的收件人只由正在投递该任务的线程更新
+ */
+public class TransferTask {
+    final String taskId;
+    final String from;
+    final String to;
+    final String subject;
+    final String body;
+    final long mailId; // 正文所在的已存储邮件，-1表示正文在body中
+    final String domain;
+    final List<String> recipients;
+    final long enqueuedAt = System.nanoTime();
+    volatile int attempts;
+    volatile List<String> remaining; // 部分收件人临时失败时重试只发给它们
+    MailBodySource bodySource; // 由MailTransferService在入队前设置
+    int spoolSegment; // 任务记录所在的暂存段，由TransferSpool在任务锁内维护
+    boolean spoolDone;
+
+    public TransferTask(String taskId, String from, String to, String subject, String body) {
+        this(taskId, from, to, subject, body, -1);
+    }
+
+    public TransferTask(String taskId, String from, String to, String subject, String body, long mailId) {
+        this.taskId = taskId;
+        this.from = from;
+        this.to = to;
+        this.subject = subject;
+        this.body = body;
+        this.mailId = mailId;
+        this.domain = domainOf(to);
+        this.recipients = to != null ? Collections.unmodifiableList(Arrays.asList(to.split(","))) : List.of("");
+        this.remaining = recipients;
+    }
+
+    public TransferTask(String taskId, String from, List<String> recipients, String subject, String body) {
+        this(taskId, from, String.join(",", recipients), subject, body, -1);
+    }
+
+    /**
+     * 打开正文（UTF-8编码），由调用方关闭；正文保存在存储服务中时按邮件ID读取
+     */
+    public InputStream openBody() throws IOException {
+        if (mailId < 0) {
+            return new ByteArrayInputStream(body != null ? body.getBytes(StandardCharsets.UTF_8) : new byte[0]);
+        }
+        if (bodySource == null) {
+            throw new IOException("No body source for mail " + mailId);
+        }
+        return bodySource.open(mailId);
+    }
+
+    /**
+     * 收件人地址的域名（小写），没有域名时为空字符串
+     */
+    static String domainOf(String address) {
+        int at = address != null ? address.lastIndexOf('@') : -1;
+        return at >= 0 ? address.substring(at + 1).trim().toLowerCase() : "";
+    }
+
+    public String getTaskId() { return taskId; }
+    public String getFrom() { return from; }
+    public String getTo() { return to; }
+    public String getSubject() { return subject; }
+    public String getBody() { return body; }
+    public long getMailId() { return mailId; }
+    public String getDomain() { return domain; }
+    public List<String> getRecipients() { return recipients; }
+    public int getAttempts() { return attempts; }
+}
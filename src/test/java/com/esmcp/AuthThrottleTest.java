@@ -0,0 +1,76 @@
+package com.esmcp;
+
+import com.esmcp.services.protocol.AuthThrottle;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 认证限流器单元测试
+ */
+public class AuthThrottleTest {
+
+    @Test
+    public void testBurstThenReject() {
+        AuthThrottle throttle = new AuthThrottle(64, 3, 60000);
+
+        assertTrue(throttle.tryAcquire("user1"));
+        assertTrue(throttle.tryAcquire("user1"));
+        assertTrue(throttle.tryAcquire("user1"));
+        assertFalse(throttle.tryAcquire("user1"));
+
+        // 其他键不受影响
+        assertTrue(throttle.tryAcquire("user2"));
+    }
+
+    @Test
+    public void testReleaseRefundsAttempt() {
+        AuthThrottle throttle = new AuthThrottle(64, 1, 60000);
+
+        assertTrue(throttle.tryAcquire("user1"));
+        assertFalse(throttle.tryAcquire("user1"));
+
+        throttle.release("user1");
+        assertTrue(throttle.tryAcquire("user1"));
+    }
+
+    @Test
+    public void testRefillOverTime() throws InterruptedException {
+        AuthThrottle throttle = new AuthThrottle(64, 1, 50);
+
+        assertTrue(throttle.tryAcquire("user1"));
+        assertFalse(throttle.tryAcquire("user1"));
+
+        Thread.sleep(120);
+        assertTrue(throttle.tryAcquire("user1"));
+    }
+
+    @Test
+    public void testBoundedTableReusesIdleBuckets() throws InterruptedException {
+        AuthThrottle throttle = new AuthThrottle(8, 1, 50);
+
+        // 大量不同的键不会导致异常或无限增长，回满的桶被新键复用
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < 8; j++) {
+                throttle.tryAcquire("user" + i + "-" + j);
+            }
+            Thread.sleep(60);
+            assertTrue(throttle.tryAcquire("fresh" + i));
+        }
+    }
+
+    @Test
+    public void testChurnDoesNotEvictThrottledKey() {
+        AuthThrottle throttle = new AuthThrottle(8, 1, 60000);
+
+        assertTrue(throttle.tryAcquire("victim"));
+        assertFalse(throttle.tryAcquire("victim"));
+
+        // 大量其他键轮换时表满即拒绝，不会挤掉仍在限流中的桶
+        for (int i = 0; i < 10000; i++) {
+            throttle.tryAcquire("attacker" + i);
+        }
+        assertFalse(throttle.tryAcquire("victim"));
+        assertFalse(throttle.tryAcquire("attacker10000"));
+    }
+}
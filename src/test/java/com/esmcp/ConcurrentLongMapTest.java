@@ -0,0 +1,84 @@
+package com.esmcp;
+
+import com.esmcp.services.storage.ConcurrentLongMap;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * long键并发哈希表测试
+ */
+public class ConcurrentLongMapTest {
+
+    @Test
+    public void testMatchesHashMapUnderRandomOperations() {
+        ConcurrentLongMap<String> map = new ConcurrentLongMap<>(16);
+        Map<Long, String> expected = new HashMap<>();
+        Random random = new Random(42);
+
+        // 键范围较小，使插入、覆盖、删除频繁交错，覆盖扩容和删除回填
+        for (int i = 0; i < 200_000; i++) {
+            long key = 1 + random.nextInt(5000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                String value = "v" + i;
+                assertEquals(expected.put(key, value), map.put(key, value));
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+        for (long key = 1; key <= 5000; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+        assertEquals(expected.size(), map.values().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroKeyIsRejected() {
+        new ConcurrentLongMap<String>().put(0, "reserved");
+    }
+
+    @Test
+    public void testReadersSeeStableKeysDuringWrites() throws InterruptedException {
+        ConcurrentLongMap<Long> map = new ConcurrentLongMap<>(16);
+        for (long key = 1; key <= 1000; key++) {
+            map.put(key, key);
+        }
+
+        // 写线程不断插入删除其他键并触发扩容，读线程始终能读到稳定的键
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicInteger misses = new AtomicInteger();
+        Thread writer = new Thread(() -> {
+            long next = 1001;
+            while (running.get()) {
+                map.put(next, next);
+                map.remove(next - 500 > 1000 ? next - 500 : -1);
+                next++;
+            }
+        });
+        Thread reader = new Thread(() -> {
+            for (int round = 0; round < 200; round++) {
+                for (long key = 1; key <= 1000; key++) {
+                    Long value = map.get(key);
+                    if (value == null || value != key) {
+                        misses.incrementAndGet();
+                    }
+                }
+            }
+        });
+        writer.start();
+        reader.start();
+        reader.join();
+        running.set(false);
+        writer.join();
+
+        assertEquals(0, misses.get());
+    }
+}
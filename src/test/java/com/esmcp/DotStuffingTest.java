@@ -0,0 +1,48 @@
+package com.esmcp;
+
+import com.esmcp.services.protocol.DotStuffingOutputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * 多行数据点填充编码测试
+ */
+public class DotStuffingTest {
+
+    private static String stuff(String text, int chunk) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DotStuffingOutputStream data = new DotStuffingOutputStream(out);
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < bytes.length; i += chunk) {
+            data.write(bytes, i, Math.min(chunk, bytes.length - i));
+        }
+        data.finish();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testLeadingDotsAreDoubled() throws IOException {
+        assertEquals("..hidden\r\nplain.\r\n...\r\n.\r\n", stuff(".hidden\r\nplain.\r\n..", 64));
+    }
+
+    @Test
+    public void testBareLineFeedsBecomeCrlf() throws IOException {
+        assertEquals("a\r\nb\r\n.\r\n", stuff("a\nb\r\n", 64));
+        assertEquals("a\r\nb\r\n.\r\n", stuff("a\nb", 64));
+        assertEquals(".\r\n", stuff("", 64));
+    }
+
+    @Test
+    public void testChunkBoundariesDoNotChangeOutput() throws IOException {
+        String text = "first\n.second\r\n..third\nlast";
+        String expected = stuff(text, 1024);
+        for (int chunk = 1; chunk < 8; chunk++) {
+            assertEquals(expected, stuff(text, chunk));
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.esmcp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 测试用的本地SMTP服务器
+ * 监听回环地址的临时端口，记录收到的邮件和连接数。
+ * 收件人以"busy"开头时RCPT应答451，以"nobody"开头时应答550。
+ * 可以注入网络延迟：每个应答在收到命令latencyMillis毫秒后才发出，连续到达的流水线命令的应答几乎同时发出。
+ */
+public class FakeSmtpServer implements AutoCloseable {
+    private final ServerSocket serverSocket;
+    private final List<Received> messages = new CopyOnWriteArrayList<>();
+    private final List<Socket> clients = new CopyOnWriteArrayList<>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicInteger maxActiveConnections = new AtomicInteger();
+    private final AtomicInteger maxOutstanding = new AtomicInteger();
+    private final boolean pipelining;
+    private final long latencyMillis;
+    private final ScheduledExecutorService replies = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "FakeSmtpReplies");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public FakeSmtpServer() throws IOException {
+        this(true, 0);
+    }
+
+    /**
+     * @param pipelining 是否在EHLO应答中声明PIPELINING
+     * @param latencyMillis 每个应答的延迟
+     */
+    public FakeSmtpServer(boolean pipelining, long latencyMillis) throws IOException {
+        this.pipelining = pipelining;
+        this.latencyMillis = latencyMillis;
+        serverSocket = new ServerSocket(0, 1024);
+        Thread acceptor = new Thread(this::acceptLoop, "FakeSmtpServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public List<Received> getMessages() {
+        return messages;
+    }
+
+    /**
+     * 累计接受的连接数
+     */
+    public int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * 同时打开的最大连接数
+     */
+    public int getMaxActiveConnections() {
+        return maxActiveConnections.get();
+    }
+
+    /**
+     * 一个连接上已收到但尚未应答的最大命令数，客户端使用流水线时大于1
+     */
+    public int getMaxOutstanding() {
+        return maxOutstanding.get();
+    }
+
+    /**
+     * 断开所有客户端连接（模拟服务器关闭空闲连接）
+     */
+    public void dropConnections() throws IOException {
+        for (Socket client : clients) {
+            client.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        dropConnections();
+        replies.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket client = serverSocket.accept();
+                clients.add(client);
+                int id = connections.incrementAndGet();
+                maxActiveConnections.accumulateAndGet(activeConnections.incrementAndGet(), Math::max);
+                Thread handler = new Thread(() -> serve(client, id), "FakeSmtpClient-" + id);
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket client, int connectionId) {
+        try (Socket socket = client;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8)) {
+            AtomicInteger outstanding = new AtomicInteger(1);
+            reply(out, outstanding, "220 fake.smtp ready");
+            String from = null;
+            String to = null;
+            String line;
+            while ((line = in.readLine()) != null) {
+                maxOutstanding.accumulateAndGet(outstanding.incrementAndGet(), Math::max);
+                String command = line.toUpperCase();
+                if (command.startsWith("EHLO")) {
+                    reply(out, outstanding, pipelining ? "250-fake.smtp\r\n250-8BITMIME\r\n250 PIPELINING"
+                                                       : "250-fake.smtp\r\n250 8BITMIME");
+                } else if (command.startsWith("HELO")) {
+                    reply(out, outstanding, "250 fake.smtp");
+                } else if (command.startsWith("MAIL FROM:")) {
+                    from = address(line);
+                    to = null;
+                    reply(out, outstanding, "250 OK");
+                } else if (command.startsWith("RCPT TO:")) {
+                    String recipient = address(line);
+                    if (recipient.startsWith("busy")) {
+                        reply(out, outstanding, "451 Try again later");
+                    } else if (recipient.startsWith("nobody")) {
+                        reply(out, outstanding, "550 No such user");
+                    } else {
+                        to = to == null ? recipient : to + "," + recipient;
+                        reply(out, outstanding, "250 OK");
+                    }
+                } else if (command.equals("DATA")) {
+                    if (to == null) {
+                        reply(out, outstanding, "554 No valid recipients");
+                        continue;
+                    }
+                    reply(out, outstanding, "354 Go ahead");
+                    StringBuilder data = new StringBuilder();
+                    while ((line = in.readLine()) != null && !line.equals(".")) {
+                        data.append(line.startsWith(".") ? line.substring(1) : line).append("\r\n");
+                    }
+                    if (line == null) {
+                        break;
+                    }
+                    messages.add(new Received(connectionId, from, to, data.toString()));
+                    maxOutstanding.accumulateAndGet(outstanding.incrementAndGet(), Math::max);
+                    reply(out, outstanding, "250 Queued");
+                } else if (command.equals("RSET") || command.equals("NOOP")) {
+                    from = null;
+                    to = null;
+                    reply(out, outstanding, "250 OK");
+                } else if (command.equals("QUIT")) {
+                    reply(out, outstanding, "221 Bye");
+                    Thread.sleep(latencyMillis);
+                    break;
+                } else {
+                    reply(out, outstanding, "500 Unknown command");
+                }
+            }
+        } catch (IOException e) {
+            // 客户端断开
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            activeConnections.decrementAndGet();
+        }
+    }
+
+    private void reply(PrintWriter out, AtomicInteger outstanding, String text) {
+        Runnable write = () -> {
+            outstanding.decrementAndGet();
+            out.print(text + "\r\n");
+            out.flush();
+        };
+        if (latencyMillis > 0) {
+            replies.schedule(write, latencyMillis, TimeUnit.MILLISECONDS);
+        } else {
+            write.run();
+        }
+    }
+
+    private static String address(String line) {
+        int start = line.indexOf('<');
+        int end = line.indexOf('>');
+        return start >= 0 && end > start ? line.substring(start + 1, end) : line.substring(line.indexOf(':') + 1).trim();
+    }
+
+    /**
+     * 收到的一封邮件，to为被接受的收件人，多个时以逗号分隔
+     */
+    public static class Received {
+        public final int connectionId;
+        public final String from;
+        public final String to;
+        public final String data;
+
+        Received(int connectionId, String from, String to, String data) {
+            this.connectionId = connectionId;
+            this.from = from;
+            this.to = to;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.esmcp;
+
+import com.esmcp.config.ServerConfig;
+import com.esmcp.services.storage.Mail;
+import com.esmcp.services.storage.MailStore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 持久化邮件存储测试
+ */
+public class MailStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ServerConfig config(long segmentSize) {
+        return config(segmentSize, new HashMap<>());
+    }
+
+    private ServerConfig config(long segmentSize, Map<String, Object> values) {
+        values.put("dataDir", folder.getRoot().getAbsolutePath());
+        values.put("segmentSize", segmentSize);
+        values.put("fsyncPolicy", "ALWAYS");
+        return ServerConfig.of(values);
+    }
+
+    @Test
+    public void testRecoverAfterRestart() throws IOException {
+        long keptId;
+        long deletedId;
+        try (MailStore store = MailStore.open(config(1024 * 1024))) {
+            keptId = store.store("user1", "user2", "Kept", "Body kept", 1L).getMailId();
+            deletedId = store.store("user1", "user2", "Deleted", "Body deleted", 2L).getMailId();
+            store.delete(deletedId);
+        }
+
+        try (MailStore store = MailStore.open(config(1024 * 1024))) {
+            assertEquals(1, store.size());
+            Mail mail = store.get(keptId);
+            assertNotNull(mail);
+            assertEquals("Kept", mail.getSubject());
+            assertEquals("Body kept", store.readBody(mail));
+            assertNull(store.get(deletedId));
+
+            // 新邮件ID不会与已有邮件冲突
+            long nextId = store.store("user1", "user2", "Next", "Body", 3L).getMailId();
+            assertTrue(nextId > deletedId);
+        }
+    }
+
+    @Test
+    public void testTornTailIsTruncated() throws IOException {
+        long mailId;
+        try (MailStore store = MailStore.open(config(1024 * 1024))) {
+            mailId = store.store("user1", "user2", "Subject", "Body", 1L).getMailId();
+            store.store("user1", "user2", "Torn", "This record will be torn", 2L);
+        }
+
+        // 模拟写入中途崩溃：截掉最后一条记录的末尾
+        File[] segments = folder.getRoot().listFiles((dir, name) -> name.endsWith(".log"));
+        assertNotNull(segments);
+        Arrays.sort(segments);
+        try (RandomAccessFile file = new RandomAccessFile(segments[segments.length - 1], "rw")) {
+            file.setLength(file.length() - 5);
+        }
+
+        try (MailStore store = MailStore.open(config(1024 * 1024))) {
+            assertEquals(1, store.size());
+            assertEquals("Body", store.readBody(store.get(mailId)));
+
+            // 截断后可以继续追加
+            Mail mail = store.store("user1", "user2", "After", "After crash", 3L);
+            assertEquals("After crash", store.readBody(mail));
+        }
+    }
+
+    @Test
+    public void testTornSegmentHeaderIsRewritten() throws IOException {
+        long mailId;
+        try (MailStore store = MailStore.open(config(1024 * 1024))) {
+            mailId = store.store("user1", "user2", "Subject", "Body", 1L).getMailId();
+        }
+
+        // 模拟滚动后文件头落盘前崩溃：最新的段只有部分文件头
+        File[] segments = folder.getRoot().listFiles((dir, name) -> name.endsWith(".log"));
+        assertNotNull(segments);
+        Arrays.sort(segments);
+        String last = segments[segments.length - 1].getName();
+        int nextId = Integer.parseInt(last.substring(0, last.length() - 4)) + 1;
+        try (RandomAccessFile file = new RandomAccessFile(new File(folder.getRoot(), String.format("%08d.log", nextId)), "rw")) {
+            file.write(new byte[] {0x45, 0x53, 0x4D});
+        }
+
+        try (MailStore store = MailStore.open(config(1024 * 1024))) {
+            assertEquals(1, store.size());
+            assertEquals("Body", store.readBody(store.get(mailId)));
+            Mail mail = store.store("user1", "user2", "After", "After crash", 2L);
+            assertEquals("After crash", store.readBody(mail));
+        }
+        try (MailStore store = MailStore.open(config(1024 * 1024))) {
+            assertEquals(2, store.size());
+        }
+    }
+
+    @Test
+    public void testIdenticalBodiesAreStoredOnce() throws IOException {
+        String newsletter = "Monthly newsletter content";
+        long first;
+        long second;
+        try (MailStore store = MailStore.open(config(1024 * 1024))) {
+            first = store.store("news", "user1", "News", newsletter, 1L).getMailId();
+            second = store.store("news", "user2", "News", newsletter, 1L).getMailId();
+            long third = store.store("news", "user3", "News", newsletter, 1L).getMailId();
+            store.store("user1", "user2", "Other", "Different body", 2L);
+            assertEquals(2, store.uniqueBodies());
+
+            store.delete(third);
+            assertEquals(2, store.uniqueBodies());
+            assertEquals(newsletter, store.readBody(store.get(first)));
+        }
+
+        // 重启后引用计数恢复，全部删除后正文被回收
+        try (MailStore store = MailStore.open(config(1024 * 1024))) {
+            assertEquals(2, store.uniqueBodies());
+            assertEquals(newsletter, store.readBody(store.get(second)));
+            store.delete(first);
+            assertEquals(2, store.uniqueBodies());
+            store.delete(second);
+            assertEquals(1, store.uniqueBodies());
+        }
+    }
+
+    @Test
+    public void testLargeBodiesAreCompressed() throws IOException {
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            large.append("第").append(i).append("行：quarterly report line ").append(i).append('\n');
+        }
+        long largeId;
+        try (MailStore store = MailStore.open(config(1024 * 1024))) {
+            largeId = store.store("user1", "user2", "Report", large.toString(), 1L).getMailId();
+            Mail small = store.store("user1", "user2", "Hi", "short", 2L);
+
+            Map<String, Object> stats = store.metrics().snapshot();
+            assertEquals(2L, stats.get("bodiesStored"));
+            assertEquals(1L, stats.get("bodiesCompressed"));
+            assertTrue((Double) stats.get("compressionRatio") < 0.5);
+
+            assertEquals("short", store.readBody(small));
+            assertEquals(large.toString(), store.readBody(store.get(largeId)));
+        }
+
+        try (MailStore store = MailStore.open(config(1024 * 1024))) {
+            assertEquals(large.toString(), store.readBody(store.get(largeId)));
+        }
+    }
+
+    @Test
+    public void testRecentBodiesStayInMemory() throws IOException {
+        Map<String, Object> values = new HashMap<>();
+        values.put("bodyCacheSize", 2048);
+        try (MailStore store = MailStore.open(config(1024 * 1024, values))) {
+            Mail first = store.store("user1", "user2", "First", "a".repeat(400), 1L);
+            assertEquals("a".repeat(400), store.readBody(first));
+            assertEquals(1L, store.metrics().snapshot().get("cacheHits"));
+
+            // 写入更多正文后，最早的正文被淘汰到磁盘
+            for (int i = 0; i < 10; i++) {
+                Mail recent = store.store("user1", "user2", "Recent", i + "b".repeat(400), 2L);
+                assertEquals(i + "b".repeat(400), store.readBody(recent));
+            }
+            Map<String, Object> stats = store.metrics().snapshot();
+            assertEquals(11L, stats.get("cacheHits"));
+            assertTrue((Long) stats.get("cacheEvictions") > 0);
+            assertTrue(store.cachedBytes() <= 2048);
+
+            assertEquals("a".repeat(400), store.readBody(first));
+            assertEquals(1L, store.metrics().snapshot().get("cacheMisses"));
+        }
+    }
+
+    @Test
+    public void testBodyLargerThanSlabDoesNotFlushCache() throws IOException {
+        Map<String, Object> values = new HashMap<>();
+        values.put("bodyCacheSize", 8 * 1024 * 1024);
+        try (MailStore store = MailStore.open(config(16 * 1024 * 1024, values))) {
+            Mail small = store.store("user1", "user2", "Small", "a".repeat(400), 1L);
+            long cached = store.cachedBytes();
+
+            // 超过4MB slab的正文不进入缓存，也不淘汰已缓存的正文
+            Random random = new Random(7);
+            StringBuilder large = new StringBuilder();
+            while (large.length() < 5 * 1024 * 1024) {
+                large.append((char) ('a' + random.nextInt(26)));
+            }
+            Mail big = store.store("user1", "user2", "Large", large.toString(), 2L);
+            assertEquals(cached, store.cachedBytes());
+            assertEquals(0L, store.metrics().snapshot().get("cacheEvictions"));
+            assertEquals("a".repeat(400), store.readBody(small));
+            assertEquals(1L, store.metrics().snapshot().get("cacheHits"));
+            assertEquals(large.toString(), store.readBody(big));
+        }
+    }
+
+    @Test
+    public void testCompactionReclaimsDeletedMail() throws IOException {
+        long survivor;
+        try (MailStore store = MailStore.open(config(512))) {
+            survivor = store.store("user1", "user2", "Survivor", "Still here", 0L).getMailId();
+            for (int i = 0; i < 50; i++) {
+                long id = store.store("user1", "user2", "Subject " + i, "Body " + i, i).getMailId();
+                store.delete(id);
+            }
+            int before = folder.getRoot().listFiles((dir, name) -> name.endsWith(".log")).length;
+
+            store.compact();
+
+            int after = folder.getRoot().listFiles((dir, name) -> name.endsWith(".log")).length;
+            assertTrue("segments should be reclaimed", after < before);
+            assertEquals("Still here", store.readBody(store.get(survivor)));
+        }
+
+        // 压缩后重启，已删除邮件不会复活
+        try (MailStore store = MailStore.open(config(512))) {
+            assertEquals(1, store.size());
+            assertEquals("Still here", store.readBody(store.get(survivor)));
+        }
+    }
+
+    @Test
+    public void testStreamedBodyMatchesStoredBody() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        Random random = new Random(42);
+        StringBuilder noise = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            noise.append((char) ('!' + random.nextInt(90)));
+        }
+
+        long compressedId;
+        long plainId;
+        try (MailStore store = MailStore.open(config(1024 * 1024))) {
+            compressedId = store.store("user1", "user2", "Text", text.toString(), 1L).getMailId();
+            plainId = store.store("user1", "user2", "Noise", noise.toString(), 2L).getMailId();
+        }
+
+        // 重启后缓存为空，正文从日志文件流式读取
+        try (MailStore store = MailStore.open(config(1024 * 1024))) {
+            assertEquals(text.toString(), readStream(store.openBody(store.get(compressedId))));
+            assertEquals(noise.toString(), readStream(store.openBody(store.get(plainId))));
+        }
+    }
+
+    private static String readStream(InputStream in) throws IOException {
+        try (InputStream body = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[1000];
+            int n;
+            while ((n = body.read(chunk)) > 0) {
+                out.write(chunk, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,439 @@
+package com.esmcp;
+
+import com.esmcp.config.ServerConfig;
+import com.esmcp.kernel.MessageBus;
+import com.esmcp.kernel.Microkernel;
+import com.esmcp.message.Message;
+import com.esmcp.message.MessageType;
+import com.esmcp.services.transfer.DestinationLimiter;
+import com.esmcp.services.transfer.DestinationQueue;
+import com.esmcp.services.transfer.MailDelivery;
+import com.esmcp.services.transfer.MailTransferService;
+import com.esmcp.services.transfer.RetryScheduler;
+import com.esmcp.services.transfer.TransferSpool;
+import com.esmcp.services.transfer.TransferTask;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * 邮件传输服务测试
+ */
+public class MailTransferTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Microkernel kernel;
+
+    @Before
+    public void setUp() {
+        kernel = new MessageBus();
+        kernel.start();
+    }
+
+    @After
+    public void tearDown() {
+        kernel.shutdown();
+    }
+
+    private void register(Map<String, Object> config) {
+        register(config, MailDelivery.SIMULATED);
+    }
+
+    private void register(Map<String, Object> config, MailDelivery delivery) {
+        kernel.registerService("MailTransferService", new MailTransferService(ServerConfig.of(config), delivery));
+    }
+
+    @Test
+    public void testWorkersDeliverInParallel() throws InterruptedException {
+        Map<String, Object> config = new HashMap<>();
+        config.put("workers", 10);
+        register(config);
+
+        // 每次模拟投递耗时100ms，20封邮件串行需要2秒
+        long start = System.currentTimeMillis();
+        List<String> taskIds = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            taskIds.add((String) send("user" + i + "@example.com").get("taskId"));
+        }
+        for (String taskId : taskIds) {
+            assertTrue(awaitStatus(taskId, "SENT"));
+        }
+        assertTrue(System.currentTimeMillis() - start < 1500);
+
+        Map<String, Object> stats = stats();
+        assertEquals(20L, stats.get("sent"));
+        assertTrue((Double) stats.get("avgQueueWaitMillis") < 1000);
+    }
+
+    @Test
+    public void testQueueSizeIsHardBound() throws InterruptedException {
+        Map<String, Object> config = new HashMap<>();
+        config.put("workers", 1);
+        config.put("queueSize", 2);
+        config.put("batchSize", 1);
+        register(config);
+
+        // 一个任务正在投递，队列中最多再容纳2个
+        int accepted = 0;
+        int rejected = 0;
+        for (int i = 0; i < 6; i++) {
+            Map<String, Object> result = send("user" + i + "@example.com");
+            if (Boolean.TRUE.equals(result.get("success"))) {
+                accepted++;
+            } else {
+                assertEquals("REJECTED", result.get("status"));
+                rejected++;
+            }
+        }
+        assertTrue(accepted <= 3);
+        assertEquals(6 - accepted, rejected);
+        assertEquals((long) rejected, stats().get("rejected"));
+    }
+
+    @Test
+    public void testTemporaryFailuresAreRetried() throws InterruptedException {
+        Map<String, Object> config = new HashMap<>();
+        config.put("retryAttempts", 3);
+        config.put("retryDelay", 20);
+        register(config, task -> task.getAttempts() < 3 ? MailDelivery.Result.RETRY : MailDelivery.Result.SENT);
+
+        String taskId = (String) send("remote@example.com").get("taskId");
+        assertTrue(awaitStatus(taskId, "SENT"));
+        assertEquals(3, status(taskId).get("attempts"));
+        assertEquals(2L, stats().get("retries"));
+    }
+
+    @Test
+    public void testRetriesAreLimited() throws InterruptedException {
+        Map<String, Object> config = new HashMap<>();
+        config.put("retryAttempts", 2);
+        config.put("retryDelay", 10);
+        register(config, task -> MailDelivery.Result.RETRY);
+
+        String taskId = (String) send("remote@example.com").get("taskId");
+        assertTrue(awaitStatus(taskId, "FAILED"));
+        assertEquals(3, status(taskId).get("attempts"));
+    }
+
+    @Test
+    public void testDeferredRetriesDoNotBlockFreshSends() throws InterruptedException {
+        Map<String, Object> config = new HashMap<>();
+        config.put("workers", 1);
+        config.put("queueSize", 10);
+        config.put("retryDelay", 60000);
+        register(config, task -> task.getTo().startsWith("down")
+            ? MailDelivery.Result.RETRY : MailDelivery.Result.SENT);
+
+        // 大量延迟重试的任务不占用发送队列和投递线程
+        List<String> deferred = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            deferred.add((String) send("down" + i + "@example.com").get("taskId"));
+            assertTrue(awaitStatus(deferred.get(i), "DEFERRED"));
+        }
+        String fresh = (String) send("up@example.com").get("taskId");
+        assertTrue(awaitStatus(fresh, "SENT"));
+        assertEquals(20, stats().get("deferred"));
+    }
+
+    @Test
+    public void testBackoffGrowsExponentiallyWithJitter() {
+        RetryScheduler scheduler = new RetryScheduler(100, 1000, task -> { });
+        for (int i = 0; i < 100; i++) {
+            long first = scheduler.backoff(1);
+            assertTrue(first >= 50 && first <= 100);
+            long third = scheduler.backoff(3);
+            assertTrue(third >= 200 && third <= 400);
+            long capped = scheduler.backoff(20);
+            assertTrue(capped >= 500 && capped <= 1000);
+        }
+    }
+
+    @Test
+    public void testSendersAreServedByWeight() throws InterruptedException {
+        DestinationQueue queue = new DestinationQueue(Map.of("support", 2),
+            new DestinationLimiter(Map.of(), 0, 16));
+        for (int i = 0; i < 100; i++) {
+            queue.add(new TransferTask("b" + i, "bulk", "user" + i + "@example.com", "S", "B"));
+        }
+        for (int i = 0; i < 20; i++) {
+            queue.add(new TransferTask("s" + i, "support", "user" + i + "@example.org", "S", "B"));
+        }
+        queue.add(new TransferTask("a0", "alice", "bob@example.net", "S", "B"));
+        assertEquals(3, queue.senders());
+
+        // 每轮bulk取5个，support按权重取10个，alice不用等bulk的100个任务
+        List<String> order = new ArrayList<>();
+        while (order.size() < 16) {
+            for (TransferTask task : queue.takeBatch(5)) {
+                order.add(task.getTaskId());
+            }
+        }
+        assertEquals(List.of("b0", "b1", "b2", "b3", "b4", "s0", "s1", "s2", "s3", "s4",
+            "s5", "s6", "s7", "s8", "s9", "a0"), order);
+        assertEquals(2, queue.senders());
+        assertEquals(List.of("b5", "b6", "b7", "b8", "b9"), ids(queue.takeBatch(5)));
+    }
+
+    @Test
+    public void testRateLimitedDestinationDoesNotHoldWorkers() throws InterruptedException {
+        Map<String, Object> config = new HashMap<>();
+        config.put("workers", 1);
+        config.put("rateLimits", Map.of("slow.test", 10));
+        register(config, task -> MailDelivery.Result.SENT);
+
+        long start = System.currentTimeMillis();
+        List<String> slow = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            slow.add((String) send("user" + i + "@slow.test").get("taskId"));
+        }
+        List<String> fast = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            fast.add((String) send("user" + i + "@fast.test").get("taskId"));
+        }
+
+        // 唯一的投递线程在slow.test等待令牌时继续投递fast.test
+        for (String taskId : fast) {
+            assertTrue(awaitStatus(taskId, "SENT"));
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        // 每秒10封，突发10封，其余20封至少需要2秒
+        for (String taskId : slow) {
+            assertTrue(awaitStatus(taskId, "SENT"));
+        }
+        assertTrue(System.currentTimeMillis() - start >= 1800);
+        assertTrue((Long) stats().get("throttledWaits") > 0);
+    }
+
+    @Test
+    public void testConcurrencyAdaptsToCongestion() {
+        DestinationLimiter limiter = new DestinationLimiter(Map.of(), 0, 8);
+        long now = System.nanoTime();
+        for (int i = 0; i < 8; i++) {
+            assertEquals(0, limiter.delay("example.com", now));
+            limiter.acquire("example.com", 1, now);
+        }
+        assertEquals(Long.MAX_VALUE, limiter.delay("example.com", now));
+        assertEquals(0, limiter.delay("example.org", now));
+
+        // 同一次拥塞中返回的批次只减半一次
+        for (int i = 0; i < 8; i++) {
+            limiter.release("example.com", now, true, now + 10);
+        }
+        assertEquals(4, limiter.limit("example.com"));
+        limiter.acquire("example.com", 1, now + 20);
+        limiter.release("example.com", now + 20, true, now + 30);
+        assertEquals(2, limiter.limit("example.com"));
+
+        // 成功时每批加1/上限
+        for (int i = 0; i < 3; i++) {
+            limiter.acquire("example.com", 1, now + 40);
+            limiter.release("example.com", now + 40, false, now + 50);
+        }
+        assertEquals(3, limiter.limit("example.com"));
+    }
+
+    @Test
+    public void testSpooledTasksSurviveRestart() throws InterruptedException {
+        Map<String, Object> config = new HashMap<>();
+        config.put("spoolDir", folder.getRoot().getAbsolutePath());
+        config.put("retryDelay", 60000);
+        register(config, task -> MailDelivery.Result.RETRY);
+
+        List<String> taskIds = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            taskIds.add((String) send("user" + i + "@example.com").get("taskId"));
+        }
+        for (String taskId : taskIds) {
+            assertTrue(awaitStatus(taskId, "DEFERRED"));
+        }
+
+        // 重启后未送达的任务从暂存中恢复，新任务ID不与恢复的任务冲突
+        restart(config, MailDelivery.SIMULATED);
+        for (String taskId : taskIds) {
+            assertTrue(awaitStatus(taskId, "SENT"));
+        }
+        assertEquals("4", send("user3@example.com").get("taskId"));
+        assertTrue(awaitStatus("4", "SENT"));
+
+        restart(config, MailDelivery.SIMULATED);
+        assertEquals(0L, stats().get("spoolTasks"));
+    }
+
+    @Test
+    public void testSpoolSegmentsAreReclaimed() throws InterruptedException {
+        Map<String, Object> config = new HashMap<>();
+        config.put("spoolDir", folder.getRoot().getAbsolutePath());
+        config.put("spoolSegmentSize", 1024);
+        config.put("retryDelay", 60000);
+        register(config, task -> task.getTo().startsWith("down")
+            ? MailDelivery.Result.RETRY : MailDelivery.Result.SENT);
+
+        String down = (String) send("down@example.com").get("taskId");
+        assertTrue(awaitStatus(down, "DEFERRED"));
+        List<String> taskIds = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            taskIds.add((String) send("user" + i + "@example.com").get("taskId"));
+        }
+        for (String taskId : taskIds) {
+            assertTrue(awaitStatus(taskId, "SENT"));
+        }
+        assertTrue((Integer) stats().get("spoolSegments") > 2);
+
+        // 已完成的段被回收，等待重试的任务被转存到日志末尾
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((Integer) stats().get("spoolSegments") > 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Map<String, Object> stats = stats();
+        assertTrue((Integer) stats.get("spoolSegments") <= 2);
+        assertEquals(1L, stats.get("spoolTasks"));
+        assertEquals(1L, stats.get("spoolCarriedForward"));
+
+        restart(config, MailDelivery.SIMULATED);
+        assertTrue(awaitStatus(down, "SENT"));
+    }
+
+    @Test
+    public void testSpoolKeepsOnlyBodyReference() throws Exception {
+        TransferSpool spool = new TransferSpool(folder.getRoot().toPath(), 1024 * 1024);
+        spool.open();
+        CountDownLatch durable = new CountDownLatch(1);
+        spool.append(new TransferTask("1", "user1", "bob@example.com", "Large", null, 42L),
+            durable::countDown, durable::countDown);
+        assertTrue(durable.await(5, TimeUnit.SECONDS));
+        spool.close();
+
+        // 正文保存在存储服务中的任务只记录邮件ID，投递时再读取正文
+        TransferSpool reopened = new TransferSpool(folder.getRoot().toPath(), 1024 * 1024);
+        List<TransferTask> recovered = reopened.open();
+        reopened.close();
+        assertEquals(1, recovered.size());
+        assertEquals(42L, recovered.get(0).getMailId());
+        assertNull(recovered.get(0).getBody());
+    }
+
+    @Test
+    public void testFinishedStatusesAreEvictedToIndex() throws InterruptedException {
+        Map<String, Object> config = new HashMap<>();
+        config.put("statusCapacity", 5);
+        config.put("statusIndex", new File(folder.getRoot(), "status.idx").getAbsolutePath());
+        register(config, task -> task.getTo().startsWith("bad")
+            ? MailDelivery.Result.FAILED : MailDelivery.Result.SENT);
+
+        List<String> taskIds = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            taskIds.add((String) send((i % 4 == 0 ? "bad" : "user") + i + "@example.com").get("taskId"));
+        }
+        for (int i = 0; i < 20; i++) {
+            assertTrue(awaitStatus(taskIds.get(i), i % 4 == 0 ? "FAILED" : "SENT"));
+        }
+
+        // 内存中最多保留5条终态，其余从磁盘索引查到
+        Map<String, Object> stats = stats();
+        assertTrue((Integer) stats.get("statusEntries") <= 5);
+        assertTrue((Long) stats.get("statusSpilled") >= 15);
+        assertEquals(1, status(taskIds.get(0)).get("attempts"));
+
+        // 重启后旧状态仍可查询，新任务ID不与索引中的任务重复
+        restart(config, MailDelivery.SIMULATED);
+        assertEquals("SENT", status(taskIds.get(19)).get("status"));
+        assertEquals("21", send("user20@example.com").get("taskId"));
+    }
+
+    @Test
+    public void testFinishedStatusesExpireFromMemory() throws InterruptedException {
+        Map<String, Object> config = new HashMap<>();
+        config.put("statusTtl", 0);
+        register(config, task -> MailDelivery.Result.SENT);
+
+        String taskId = (String) send("user@example.com").get("taskId");
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((Long) stats().get("sent") < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, stats().get("statusEntries"));
+        Message response = kernel.sendMessage(Message.builder()
+            .from("TestClient")
+            .to("MailTransferService")
+            .type(MessageType.MAIL_STATUS)
+            .payload(taskId)
+            .build());
+        assertEquals(MessageType.ERROR, response.getType());
+    }
+
+    private void restart(Map<String, Object> config, MailDelivery delivery) {
+        kernel.shutdown();
+        kernel = new MessageBus();
+        kernel.start();
+        register(config, delivery);
+    }
+
+    private Map<String, Object> send(String to) throws InterruptedException {
+        Map<String, Object> mailData = new HashMap<>();
+        mailData.put("from", "user1");
+        mailData.put("to", to);
+        mailData.put("subject", "Subject");
+        mailData.put("body", "Body");
+        Message response = kernel.sendMessage(Message.builder()
+            .from("TestClient")
+            .to("MailTransferService")
+            .type(MessageType.MAIL_SEND)
+            .payload(mailData)
+            .build());
+        return payload(response);
+    }
+
+    private boolean awaitStatus(String taskId, String expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            if (expected.equals(status(taskId).get("status"))) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    private Map<String, Object> status(String taskId) throws InterruptedException {
+        return payload(kernel.sendMessage(Message.builder()
+            .from("TestClient")
+            .to("MailTransferService")
+            .type(MessageType.MAIL_STATUS)
+            .payload(taskId)
+            .build()));
+    }
+
+    private static List<String> ids(List<TransferTask> batch) {
+        List<String> ids = new ArrayList<>();
+        for (TransferTask task : batch) {
+            ids.add(task.getTaskId());
+        }
+        return ids;
+    }
+
+    private Map<String, Object> stats() throws InterruptedException {
+        return payload(kernel.sendMessage(Message.builder()
+            .from("TestClient")
+            .to("MailTransferService")
+            .type(MessageType.TRANSFER_STATS)
+            .build()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> payload(Message response) {
+        return (Map<String, Object>) response.getPayload();
+    }
+}
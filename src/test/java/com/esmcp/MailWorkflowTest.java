@@ -1,5 +1,6 @@
 package com.esmcp;
 
+import com.esmcp.config.ServerConfig;
 import com.esmcp.kernel.MessageBus;
 import com.esmcp.kernel.Microkernel;
 import com.esmcp.message.Message;
@@ -11,7 +12,10 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -91,7 +95,7 @@ public class MailWorkflowTest {
         @SuppressWarnings("unchecked")
         Map<String, Object> storeResult = (Map<String, Object>) storeResponse.getPayload();
         assertTrue((Boolean) storeResult.get("success"));
-        String mailId = (String) storeResult.get("mailId");
+        Long mailId = (Long) storeResult.get("mailId");
         assertNotNull(mailId);
         
         // 检索邮件
@@ -156,6 +160,530 @@ public class MailWorkflowTest {
         assertEquals(3, mails.size());
     }
     
+    @Test
+    public void testMailListPaging() throws InterruptedException {
+        for (int i = 0; i < 5; i++) {
+            Map<String, Object> mailData = new HashMap<>();
+            mailData.put("from", "user1");
+            mailData.put("to", "user3");
+            mailData.put("subject", "Subject " + i);
+            mailData.put("body", "Body " + i);
+            
+            kernel.sendMessage(Message.builder()
+                .from("TestClient")
+                .to("MailStorageService")
+                .type(MessageType.MAIL_STORE)
+                .payload(mailData)
+                .build());
+        }
+        
+        // 按最新在前的顺序，用游标逐页读取
+        List<String> subjects = new ArrayList<>();
+        Long cursor = null;
+        int pages = 0;
+        do {
+            Map<String, Object> params = new HashMap<>();
+            params.put("username", "user3");
+            params.put("limit", 2);
+            if (cursor != null) {
+                params.put("cursor", cursor);
+            }
+            
+            Message response = kernel.sendMessage(Message.builder()
+                .from("TestClient")
+                .to("MailStorageService")
+                .type(MessageType.MAIL_LIST)
+                .payload(params)
+                .build());
+            
+            @SuppressWarnings("unchecked")
+            Map<String, Object> result = (Map<String, Object>) response.getPayload();
+            assertEquals(5, result.get("total"));
+            @SuppressWarnings("unchecked")
+            List<Map<String, Object>> mails = (List<Map<String, Object>>) result.get("mails");
+            for (Map<String, Object> mail : mails) {
+                subjects.add((String) mail.get("subject"));
+            }
+            cursor = (Long) result.get("nextCursor");
+            pages++;
+        } while (cursor != null);
+        
+        assertEquals(3, pages);
+        assertEquals(List.of("Subject 4", "Subject 3", "Subject 2", "Subject 1", "Subject 0"), subjects);
+    }
+    
+    @Test
+    public void testLargeMailboxPagingAfterDeletes() throws InterruptedException {
+        Map<String, Object> storageConfig = new HashMap<>();
+        storageConfig.put("maxMailsPerUser", 5000);
+        kernel.unregisterService("MailStorageService");
+        kernel.registerService("MailStorageService", new MailStorageService(ServerConfig.of(storageConfig)));
+        
+        // 跨越多个索引块，删除三分之二后块被合并，分页顺序和总数保持正确
+        List<Long> kept = new ArrayList<>();
+        for (int i = 0; i < 1300; i++) {
+            long mailId = (Long) storeMail("user9", "Body " + i).get("mailId");
+            if (i % 3 == 0) {
+                kept.add(mailId);
+            } else {
+                kernel.sendMessage(Message.builder()
+                    .from("TestClient")
+                    .to("MailStorageService")
+                    .type(MessageType.MAIL_DELETE)
+                    .payload(mailId)
+                    .build());
+            }
+        }
+        assertEquals(kept.size(), stat("user9").get("total"));
+        
+        List<Long> listed = new ArrayList<>();
+        Long cursor = null;
+        do {
+            Map<String, Object> params = new HashMap<>();
+            params.put("username", "user9");
+            params.put("limit", 97);
+            if (cursor != null) {
+                params.put("cursor", cursor);
+            }
+            Message response = kernel.sendMessage(Message.builder()
+                .from("TestClient")
+                .to("MailStorageService")
+                .type(MessageType.MAIL_LIST)
+                .payload(params)
+                .build());
+            @SuppressWarnings("unchecked")
+            Map<String, Object> result = (Map<String, Object>) response.getPayload();
+            @SuppressWarnings("unchecked")
+            List<Map<String, Object>> mails = (List<Map<String, Object>>) result.get("mails");
+            for (Map<String, Object> mail : mails) {
+                listed.add((Long) mail.get("mailId"));
+            }
+            cursor = (Long) result.get("nextCursor");
+        } while (cursor != null);
+        
+        Collections.reverse(kept);
+        assertEquals(kept, listed);
+    }
+    
+    @Test
+    public void testMailSearch() throws InterruptedException {
+        String[][] mails = {
+            {"Meeting", "Lets meet at 3pm today"},
+            {"Lunch", "Meeting moved to the cafeteria"},
+            {"周报", "请在周五之前提交项目周报"}
+        };
+        List<Long> ids = new ArrayList<>();
+        for (String[] mail : mails) {
+            Map<String, Object> mailData = new HashMap<>();
+            mailData.put("from", "user1");
+            mailData.put("to", "user5");
+            mailData.put("subject", mail[0]);
+            mailData.put("body", mail[1]);
+            
+            Message response = kernel.sendMessage(Message.builder()
+                .from("TestClient")
+                .to("MailStorageService")
+                .type(MessageType.MAIL_STORE)
+                .payload(mailData)
+                .build());
+            @SuppressWarnings("unchecked")
+            Map<String, Object> result = (Map<String, Object>) response.getPayload();
+            ids.add((Long) result.get("mailId"));
+        }
+        
+        // 最新的邮件排在前面
+        assertEquals(List.of(ids.get(1), ids.get(0)), search("user5", "MEETING"));
+        assertEquals(List.of(ids.get(0)), search("user5", "meeting 3pm"));
+        assertEquals(List.of(ids.get(2)), search("user5", "项目周报"));
+        assertEquals(List.of(ids.get(2), ids.get(1), ids.get(0)), search("user5", "user1"));
+        assertTrue(search("user2", "meeting").isEmpty());
+        
+        kernel.sendMessage(Message.builder()
+            .from("TestClient")
+            .to("MailStorageService")
+            .type(MessageType.MAIL_DELETE)
+            .payload(ids.get(1))
+            .build());
+        assertEquals(List.of(ids.get(0)), search("user5", "meeting"));
+    }
+    
+    private List<Long> search(String username, String query) throws InterruptedException {
+        Map<String, Object> params = new HashMap<>();
+        params.put("username", username);
+        params.put("query", query);
+        
+        Message response = kernel.sendMessage(Message.builder()
+            .from("TestClient")
+            .to("MailStorageService")
+            .type(MessageType.MAIL_SEARCH)
+            .payload(params)
+            .build());
+        
+        @SuppressWarnings("unchecked")
+        Map<String, Object> result = (Map<String, Object>) response.getPayload();
+        @SuppressWarnings("unchecked")
+        List<Map<String, Object>> mails = (List<Map<String, Object>>) result.get("mails");
+        List<Long> ids = new ArrayList<>();
+        for (Map<String, Object> mail : mails) {
+            ids.add((Long) mail.get("mailId"));
+        }
+        return ids;
+    }
+    
+    @Test
+    public void testMailQuota() throws InterruptedException {
+        Map<String, Object> quotaConfig = new HashMap<>();
+        quotaConfig.put("maxMailsPerUser", 2);
+        quotaConfig.put("storageQuota", 1024);
+        kernel.unregisterService("MailStorageService");
+        kernel.registerService("MailStorageService", new MailStorageService(ServerConfig.of(quotaConfig)));
+        
+        assertEquals(Boolean.TRUE, storeMail("user6", "Hello").get("success"));
+        
+        // 超过字节配额
+        Map<String, Object> rejected = storeMail("user6", "x".repeat(2000));
+        assertEquals(Boolean.FALSE, rejected.get("success"));
+        assertEquals(Boolean.TRUE, rejected.get("quotaExceeded"));
+        
+        assertEquals(Boolean.TRUE, storeMail("user6", "World").get("success"));
+        
+        // 超过邮件数配额
+        assertEquals(Boolean.FALSE, storeMail("user6", "Again").get("success"));
+        
+        Message response = kernel.sendMessage(Message.builder()
+            .from("TestClient")
+            .to("MailStorageService")
+            .type(MessageType.MAIL_QUOTA)
+            .payload("user6")
+            .build());
+        @SuppressWarnings("unchecked")
+        Map<String, Object> quota = (Map<String, Object>) response.getPayload();
+        assertEquals(2, quota.get("count"));
+        assertEquals(10L, quota.get("bytes"));
+        assertEquals(2, quota.get("maxCount"));
+    }
+    
+    @Test
+    public void testRepeatedRecipientDoesNotExceedQuota() throws InterruptedException {
+        Map<String, Object> quotaConfig = new HashMap<>();
+        quotaConfig.put("maxMailsPerUser", 2);
+        kernel.unregisterService("MailStorageService");
+        kernel.registerService("MailStorageService", new MailStorageService(ServerConfig.of(quotaConfig)));
+        
+        assertEquals(Boolean.TRUE, storeMail("user7", "First").get("success"));
+        
+        // 同一收件人在一次请求中重复出现只存一封，不会越过配额
+        Map<String, Object> mailData = new HashMap<>();
+        mailData.put("from", "user1");
+        mailData.put("recipients", List.of("user7", "user7", "user7"));
+        mailData.put("subject", "Repeated");
+        mailData.put("body", "Body");
+        Message response = kernel.sendMessage(Message.builder()
+            .from("TestClient")
+            .to("MailStorageService")
+            .type(MessageType.MAIL_STORE)
+            .payload(mailData)
+            .build());
+        @SuppressWarnings("unchecked")
+        Map<String, Object> result = (Map<String, Object>) response.getPayload();
+        assertEquals(1, ((Map<?, ?>) result.get("mailIds")).size());
+        
+        Message quotaResponse = kernel.sendMessage(Message.builder()
+            .from("TestClient")
+            .to("MailStorageService")
+            .type(MessageType.MAIL_QUOTA)
+            .payload("user7")
+            .build());
+        @SuppressWarnings("unchecked")
+        Map<String, Object> quota = (Map<String, Object>) quotaResponse.getPayload();
+        assertEquals(2, quota.get("count"));
+    }
+    
+    @Test
+    public void testPartitionedStorage() throws InterruptedException {
+        Map<String, Object> partitionConfig = new HashMap<>();
+        partitionConfig.put("partitions", 4);
+        kernel.unregisterService("MailStorageService");
+        kernel.registerService("MailStorageService", new MailStorageService(ServerConfig.of(partitionConfig)));
+        
+        // 不同收件人落在不同分区，按ID检索和删除无需知道收件人
+        Map<String, Long> ids = new HashMap<>();
+        for (int i = 0; i < 8; i++) {
+            String user = "puser" + i;
+            ids.put(user, (Long) storeMail(user, "Body for " + user).get("mailId"));
+        }
+        assertEquals(8, ids.values().stream().distinct().count());
+        
+        for (Map.Entry<String, Long> entry : ids.entrySet()) {
+            Message response = kernel.sendMessage(Message.builder()
+                .from("TestClient")
+                .to("MailStorageService")
+                .type(MessageType.MAIL_RETRIEVE)
+                .payload(entry.getValue())
+                .build());
+            @SuppressWarnings("unchecked")
+            Map<String, Object> mail = (Map<String, Object>) response.getPayload();
+            assertEquals(entry.getKey(), mail.get("to"));
+            assertEquals("Body for " + entry.getKey(), mail.get("body"));
+        }
+        
+        Message deleted = kernel.sendMessage(Message.builder()
+            .from("TestClient")
+            .to("MailStorageService")
+            .type(MessageType.MAIL_DELETE)
+            .payload(ids.get("puser3"))
+            .build());
+        @SuppressWarnings("unchecked")
+        Map<String, Object> deleteResult = (Map<String, Object>) deleted.getPayload();
+        assertEquals(Boolean.TRUE, deleteResult.get("success"));
+        
+        Message response = kernel.sendMessage(Message.builder()
+            .from("TestClient")
+            .to("MailStorageService")
+            .type(MessageType.STORAGE_STATS)
+            .build());
+        @SuppressWarnings("unchecked")
+        Map<String, Object> stats = (Map<String, Object>) response.getPayload();
+        assertEquals(4, stats.get("partitions"));
+        assertEquals(7L, stats.get("mails"));
+    }
+    
+    @Test
+    public void testMultiRecipientStoreAcrossPartitions() throws InterruptedException {
+        Map<String, Object> partitionConfig = new HashMap<>();
+        partitionConfig.put("partitions", 4);
+        kernel.unregisterService("MailStorageService");
+        kernel.registerService("MailStorageService", new MailStorageService(ServerConfig.of(partitionConfig)));
+        
+        // 一次请求的收件人分布在各个分区，回复汇总全部分区的邮件ID
+        List<String> recipients = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            recipients.add("muser" + i);
+        }
+        Map<String, Object> mailData = new HashMap<>();
+        mailData.put("from", "user1");
+        mailData.put("recipients", recipients);
+        mailData.put("subject", "Team");
+        mailData.put("body", "Shared body");
+        Message response = kernel.sendMessage(Message.builder()
+            .from("TestClient")
+            .to("MailStorageService")
+            .type(MessageType.MAIL_STORE)
+            .payload(mailData)
+            .build());
+        @SuppressWarnings("unchecked")
+        Map<String, Object> result = (Map<String, Object>) response.getPayload();
+        assertEquals(Boolean.TRUE, result.get("success"));
+        @SuppressWarnings("unchecked")
+        Map<String, Object> mailIds = (Map<String, Object>) result.get("mailIds");
+        assertEquals(new HashSet<>(recipients), mailIds.keySet());
+        assertEquals(8, mailIds.values().stream().distinct().count());
+        
+        for (String recipient : recipients) {
+            Message retrieved = kernel.sendMessage(Message.builder()
+                .from("TestClient")
+                .to("MailStorageService")
+                .type(MessageType.MAIL_RETRIEVE)
+                .payload(mailIds.get(recipient))
+                .build());
+            @SuppressWarnings("unchecked")
+            Map<String, Object> mail = (Map<String, Object>) retrieved.getPayload();
+            assertEquals(recipient, mail.get("to"));
+            assertEquals("Shared body", mail.get("body"));
+        }
+        
+        // 每个分区最多保存一份正文
+        Message statsResponse = kernel.sendMessage(Message.builder()
+            .from("TestClient")
+            .to("MailStorageService")
+            .type(MessageType.STORAGE_STATS)
+            .build());
+        @SuppressWarnings("unchecked")
+        Map<String, Object> stats = (Map<String, Object>) statsResponse.getPayload();
+        assertEquals(8L, stats.get("mails"));
+        assertTrue((Long) stats.get("uniqueBodies") <= 4);
+    }
+    
+    @Test
+    public void testFlagsAndUnreadCounts() throws InterruptedException {
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            ids.add((Long) storeMail("user7", "Body " + i).get("mailId"));
+        }
+        assertEquals(3, stat("user7").get("unread"));
+        
+        // 读取邮件后未读数减少
+        kernel.sendMessage(Message.builder()
+            .from("TestClient")
+            .to("MailStorageService")
+            .type(MessageType.MAIL_RETRIEVE)
+            .payload(ids.get(0))
+            .build());
+        assertEquals(2, stat("user7").get("unread"));
+        
+        Map<String, Object> mark = new HashMap<>();
+        mark.put("mailId", ids.get(1));
+        mark.put("flagged", true);
+        kernel.sendMessage(Message.builder()
+            .from("TestClient")
+            .to("MailStorageService")
+            .type(MessageType.MAIL_MARK)
+            .payload(mark)
+            .build());
+        
+        // 全部标记为已读只改变尚未读的邮件
+        Map<String, Object> markAll = new HashMap<>();
+        markAll.put("username", "user7");
+        markAll.put("read", true);
+        Message response = kernel.sendMessage(Message.builder()
+            .from("TestClient")
+            .to("MailStorageService")
+            .type(MessageType.MAIL_MARK_ALL)
+            .payload(markAll)
+            .build());
+        @SuppressWarnings("unchecked")
+        Map<String, Object> result = (Map<String, Object>) response.getPayload();
+        assertEquals(2, result.get("changed"));
+        
+        Map<String, Object> stat = stat("user7");
+        assertEquals(3, stat.get("total"));
+        assertEquals(0, stat.get("unread"));
+        assertEquals(1, stat.get("flagged"));
+        
+        kernel.sendMessage(Message.builder()
+            .from("TestClient")
+            .to("MailStorageService")
+            .type(MessageType.MAIL_DELETE)
+            .payload(ids.get(1))
+            .build());
+        assertEquals(0, stat("user7").get("flagged"));
+        assertEquals(2, stat("user7").get("total"));
+    }
+    
+    @Test
+    public void testRetentionTrimsAndExpunges() throws InterruptedException {
+        Map<String, Object> retention = new HashMap<>();
+        retention.put("maxMailsPerUser", 3);
+        retention.put("expungeDeleted", true);
+        retention.put("interval", 50);
+        retention.put("sliceMillis", 1);
+        Map<String, Object> storageConfig = new HashMap<>();
+        storageConfig.put("partitions", 2);
+        storageConfig.put("retention", retention);
+        kernel.unregisterService("MailStorageService");
+        kernel.registerService("MailStorageService", new MailStorageService(ServerConfig.of(storageConfig)));
+        
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            ids.add((Long) storeMail("ruser", "Body " + i).get("mailId"));
+        }
+        
+        // 后台清理只保留最新的3封
+        assertTrue(awaitTotal("ruser", 3));
+        
+        // 标记为删除的邮件由下一轮清理回收
+        Map<String, Object> mark = new HashMap<>();
+        mark.put("mailId", ids.get(3));
+        mark.put("deleted", true);
+        kernel.sendMessage(Message.builder()
+            .from("TestClient")
+            .to("MailStorageService")
+            .type(MessageType.MAIL_MARK)
+            .payload(mark)
+            .build());
+        assertTrue(awaitTotal("ruser", 2));
+        
+        Message retrieved = kernel.sendMessage(Message.builder()
+            .from("TestClient")
+            .to("MailStorageService")
+            .type(MessageType.MAIL_RETRIEVE)
+            .payload(ids.get(4))
+            .build());
+        assertEquals(MessageType.MAIL_RETRIEVE, retrieved.getType());
+        
+        Message response = kernel.sendMessage(Message.builder()
+            .from("TestClient")
+            .to("MailStorageService")
+            .type(MessageType.STORAGE_STATS)
+            .build());
+        @SuppressWarnings("unchecked")
+        Map<String, Object> stats = (Map<String, Object>) response.getPayload();
+        assertEquals(3L, stats.get("retentionReclaimed"));
+        assertTrue((Long) stats.get("retentionPasses") > 0);
+    }
+    
+    @Test
+    public void testRetentionPagesThroughLargeMailboxes() throws InterruptedException {
+        Map<String, Object> retention = new HashMap<>();
+        retention.put("maxMailsPerUser", 300);
+        retention.put("interval", 50);
+        retention.put("sliceMillis", 1);
+        Map<String, Object> storageConfig = new HashMap<>();
+        storageConfig.put("retention", retention);
+        kernel.unregisterService("MailStorageService");
+        kernel.registerService("MailStorageService", new MailStorageService(ServerConfig.of(storageConfig)));
+        
+        // 邮箱跨越多页，清理逐页向前遍历，只保留最新的300封
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 700; i++) {
+            ids.add((Long) storeMail("rpuser", "Body " + i).get("mailId"));
+        }
+        assertTrue(awaitTotal("rpuser", 300));
+        assertEquals(MessageType.ERROR, retrieve(ids.get(399)).getType());
+        assertEquals(MessageType.MAIL_RETRIEVE, retrieve(ids.get(400)).getType());
+    }
+    
+    private Message retrieve(long mailId) throws InterruptedException {
+        return kernel.sendMessage(Message.builder()
+            .from("TestClient")
+            .to("MailStorageService")
+            .type(MessageType.MAIL_RETRIEVE)
+            .payload(mailId)
+            .build());
+    }
+    
+    private boolean awaitTotal(String username, int total) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            if (Integer.valueOf(total).equals(stat(username).get("total"))) {
+                return true;
+            }
+            Thread.sleep(20);
+        }
+        return false;
+    }
+    
+    private Map<String, Object> stat(String username) throws InterruptedException {
+        Message response = kernel.sendMessage(Message.builder()
+            .from("TestClient")
+            .to("MailStorageService")
+            .type(MessageType.MAIL_STAT)
+            .payload(username)
+            .build());
+        @SuppressWarnings("unchecked")
+        Map<String, Object> result = (Map<String, Object>) response.getPayload();
+        return result;
+    }
+    
+    private Map<String, Object> storeMail(String to, String body) throws InterruptedException {
+        Map<String, Object> mailData = new HashMap<>();
+        mailData.put("from", "user1");
+        mailData.put("to", to);
+        mailData.put("subject", "Subject");
+        mailData.put("body", body);
+        
+        Message response = kernel.sendMessage(Message.builder()
+            .from("TestClient")
+            .to("MailStorageService")
+            .type(MessageType.MAIL_STORE)
+            .payload(mailData)
+            .build());
+        
+        @SuppressWarnings("unchecked")
+        Map<String, Object> result = (Map<String, Object>) response.getPayload();
+        return result;
+    }
+    
     @Test
     public void testMailTransfer() throws InterruptedException {
         Map<String, Object> mailData = new HashMap<>();
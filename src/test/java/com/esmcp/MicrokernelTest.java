@@ -9,7 +9,11 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -85,6 +89,25 @@ public class MicrokernelTest {
         assertEquals("Processed: Test Message", response.getPayload());
     }
     
+    @Test
+    public void testLateReplyResourcesAreClosed() throws InterruptedException {
+        kernel.shutdown();
+        kernel = new MessageBus(100);
+        kernel.start();
+        CountDownLatch closed = new CountDownLatch(1);
+        kernel.registerService("SlowService", new SlowService(closed));
+        
+        Message response = kernel.sendMessage(Message.builder()
+            .from("TestClient")
+            .to("SlowService")
+            .type("READ")
+            .build());
+        assertEquals(MessageType.ERROR, response.getType());
+        
+        // 超时之后才到达的回复无人接收，其中的流由总线关闭
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+    }
+    
     // 测试服务
     private static class TestService extends Service {
         TestService(String name) {
@@ -157,6 +180,45 @@ public class MicrokernelTest {
         public void shutdown() {}
     }
     
+    // 超过超时时间才回复一个输入流
+    private static class SlowService extends Service {
+        private final CountDownLatch closed;
+        
+        SlowService(CountDownLatch closed) {
+            super("SlowService");
+            this.closed = closed;
+        }
+        
+        @Override
+        public void initialize() {}
+        
+        @Override
+        public Message handleMessage(Message message) {
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            InputStream content = new ByteArrayInputStream(new byte[16]) {
+                @Override
+                public void close() {
+                    closed.countDown();
+                }
+            };
+            return Message.builder()
+                .from(serviceName)
+                .to(message.getFrom())
+                .type("READ")
+                .payload(Map.of("content", content))
+                .header("replyTo", message.getMessageId())
+                .build();
+        }
+        
+        @Override
+        public void shutdown() {}
+    }
+    
     // 服务B - 处理消息
     private static class ServiceB extends Service {
         ServiceB() {
@@ -0,0 +1,77 @@
+package com.esmcp;
+
+import com.esmcp.services.storage.OffHeapArena;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * 堆外内存分配器测试
+ */
+public class OffHeapArenaTest {
+
+    private static byte[] content(int length, int seed) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) seed);
+        return bytes;
+    }
+
+    @Test
+    public void testFreedBlocksAreReused() {
+        OffHeapArena arena = new OffHeapArena(4096, 4096);
+        long first = arena.allocate(content(100, 1));
+        long second = arena.allocate(content(200, 2));
+        assertTrue(first >= 0 && second >= 0);
+        assertArrayEquals(content(100, 1), arena.read(first));
+        assertArrayEquals(content(200, 2), arena.read(second));
+
+        // 同一尺寸级别的空闲块被复用，不会增加预留内存
+        arena.free(first);
+        long third = arena.allocate(content(110, 3));
+        assertTrue(third >= 0);
+        assertArrayEquals(content(110, 3), arena.read(third));
+        assertEquals(4096, arena.reservedBytes());
+    }
+
+    @Test
+    public void testFullArenaRejectsAllocation() {
+        OffHeapArena arena = new OffHeapArena(1024, 1024);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(arena.allocate(content(256, i)) >= 0);
+        }
+        assertTrue(arena.allocate(content(256, 9)) < 0);
+        assertTrue(arena.allocate(content(2048, 9)) < 0);
+    }
+
+    @Test
+    public void testDefragmentCompactsLiveBlocks() {
+        OffHeapArena arena = new OffHeapArena(2048, 1024);
+        long[] handles = new long[8];
+        for (int i = 0; i < handles.length; i++) {
+            handles[i] = arena.allocate(content(256, i));
+        }
+        assertTrue(arena.allocate(content(256, 9)) < 0);
+
+        // 释放一半后空闲块分散在两个slab中，整理后存活块连续存放
+        long[] live = new long[4];
+        for (int i = 0; i < handles.length; i++) {
+            if (i % 2 == 0) {
+                arena.free(handles[i]);
+            } else {
+                live[i / 2] = handles[i];
+            }
+        }
+        assertTrue(arena.isFragmented(0.25));
+
+        arena.defragment(live);
+        assertFalse(arena.isFragmented(0.25));
+        for (int i = 0; i < live.length; i++) {
+            assertArrayEquals(content(256, i * 2 + 1), arena.read(live[i]));
+        }
+        for (int i = 0; i < 4; i++) {
+            assertTrue(arena.allocate(content(256, 10 + i)) >= 0);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package com.esmcp;
+
+import com.esmcp.config.ServerConfig;
+import com.esmcp.kernel.MessageBus;
+import com.esmcp.kernel.Microkernel;
+import com.esmcp.message.Message;
+import com.esmcp.message.MessageType;
+import com.esmcp.services.auth.AuthenticationService;
+import com.esmcp.services.protocol.ProtocolHandlerService;
+import com.esmcp.services.storage.MailStorageService;
+import com.esmcp.services.transfer.MailDelivery;
+import com.esmcp.services.transfer.MailTransferService;
+import com.esmcp.services.transfer.TransferSpool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * 协议层测试：通过TCP连接验证DATA多行提交和RETR多行回复
+ */
+public class ProtocolTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Microkernel kernel;
+    private Socket socket;
+    private BufferedReader in;
+    private OutputStream out;
+
+    @Before
+    public void setUp() throws IOException {
+        Map<String, Object> protocolConfig = new HashMap<>();
+        protocolConfig.put("port", 0);
+        protocolConfig.put("maxCommandLength", 1024);
+        protocolConfig.put("maxMessageSize", 200_000);
+        protocolConfig.put("spoolThreshold", 4096);
+        protocolConfig.put("spoolDir", folder.getRoot().getAbsolutePath());
+        protocolConfig.put("localDomains", "esmcp.test");
+        protocolConfig.put("authThrottle", Map.of("user", Map.of("burst", 2)));
+
+        kernel = new MessageBus();
+        kernel.start();
+        kernel.registerService("AuthenticationService", new AuthenticationService());
+        kernel.registerService("MailStorageService", new MailStorageService());
+        kernel.registerService("MailTransferService", new MailTransferService());
+        ProtocolHandlerService protocol = new ProtocolHandlerService(ServerConfig.of(protocolConfig));
+        kernel.registerService("ProtocolHandlerService", protocol);
+
+        socket = new Socket("localhost", protocol.getPort());
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        out = socket.getOutputStream();
+        assertTrue(in.readLine().startsWith("220"));
+        assertEquals("250 Authentication successful", command("AUTH user1 pass123"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        socket.close();
+        kernel.shutdown();
+    }
+
+    @Test
+    public void testDataRoundTrip() throws IOException {
+        StringBuilder body = new StringBuilder("first line\r\n.starts with a dot\r\n\r\n");
+        for (int i = 0; i < 2500; i++) {
+            body.append("line ").append(i).append(" of a body larger than the spool threshold\r\n");
+        }
+        body.append("last line");
+
+        long mailId = data("user1", "Report", body.toString());
+
+        // 暂存文件在存储完成后删除
+        assertEquals(0, folder.getRoot().list().length);
+
+        assertEquals(body.toString(), retrieve(mailId));
+    }
+
+    @Test
+    public void testSmallDataStaysInMemory() throws IOException {
+        long mailId = data("user1", "Short", "..\r\nshort body");
+        assertEquals("..\r\nshort body", retrieve(mailId));
+    }
+
+    @Test
+    public void testOversizedDataIsRejected() throws IOException {
+        send("DATA user1 Huge\r\n");
+        assertTrue(in.readLine().startsWith("354"));
+        String line = "x".repeat(1000) + "\r\n";
+        for (int i = 0; i < 300; i++) {
+            send(line);
+        }
+        send(".\r\n");
+        assertTrue(in.readLine().startsWith("552"));
+
+        // 连接仍然可用
+        assertTrue(command("STAT").startsWith("250 STAT TOTAL:0"));
+    }
+
+    @Test
+    public void testLongCommandIsRejected() throws IOException {
+        assertTrue(command("SEND user1 Subject " + "x".repeat(2000)).startsWith("500 Line too long"));
+        assertTrue(command("STAT").startsWith("250"));
+    }
+
+    @Test
+    public void testOnlyRemoteRecipientsAreQueued() throws Exception {
+        assertTrue(command("SEND user1 Local body").startsWith("250 Mail accepted"));
+        assertTrue(command("SEND user1@ESMCP.test Local body").startsWith("250 Mail accepted"));
+        assertTrue(command("SEND bob@example.com Remote body").startsWith("250 Mail accepted"));
+
+        // 带本地域名的收件人与不带域名的收件人是同一个邮箱
+        assertTrue(command("STAT").startsWith("250 STAT TOTAL:2"));
+        assertEquals(1L, transferStats().get("queued"));
+    }
+
+    @Test
+    public void testSpooledBodyReachesRemoteRecipient() throws Exception {
+        try (FakeSmtpServer server = new FakeSmtpServer()) {
+            Map<String, Object> transferConfig = new HashMap<>();
+            transferConfig.put("relay", "127.0.0.1:" + server.getPort());
+            transferConfig.put("workers", 1);
+            kernel.unregisterService("MailTransferService");
+            kernel.registerService("MailTransferService", new MailTransferService(ServerConfig.of(transferConfig)));
+
+            // 超过spoolThreshold的正文落盘提交，投递时从存储以流的形式读取、分块发出
+            StringBuilder body = new StringBuilder();
+            for (int i = 0; i < 5000; i++) {
+                body.append("remote line ").append(i).append(" of a spooled body\r\n");
+            }
+            body.append("last line");
+            assertTrue(body.length() > 4096);
+            data("bob@example.com", "Large", body.toString());
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (server.getMessages().isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, server.getMessages().size());
+            String received = server.getMessages().get(0).data;
+            assertTrue(received.endsWith("\r\n\r\n" + body + "\r\n"));
+        }
+    }
+
+    @Test
+    public void testSpoolFailureIsReportedToClient() throws Exception {
+        Map<String, Object> transferConfig = new HashMap<>();
+        transferConfig.put("spoolDir", folder.newFolder("transfer").getAbsolutePath());
+        kernel.unregisterService("MailTransferService");
+        kernel.registerService("MailTransferService", new MailTransferService(ServerConfig.of(transferConfig)) {
+            @Override
+            protected TransferSpool createSpool(Path directory, long segmentSize) throws IOException {
+                return new TransferSpool(directory, segmentSize) {
+                    @Override
+                    protected void sync(long address) throws IOException {
+                        throw new IOException("Simulated fsync failure");
+                    }
+                };
+            }
+        });
+
+        // 暂存刷盘失败时客户端收到错误，任务不入队，远程收件人的邮件被撤回
+        assertEquals("451 Mail transfer unavailable", command("SEND bob@example.com Remote body"));
+        String reply = command("SEND user1,bob@example.com Team body");
+        assertTrue(reply, reply.startsWith("451 Mail transfer unavailable, mail accepted for 1 of 2 recipients"));
+        assertEquals(0L, transferStats().get("queued"));
+        assertEquals(1L, storageStats().get("mails"));
+    }
+
+    @Test
+    public void testFullTransferQueueIsReportedToClient() throws Exception {
+        Map<String, Object> transferConfig = new HashMap<>();
+        transferConfig.put("workers", 1);
+        transferConfig.put("batchSize", 1);
+        transferConfig.put("queueSize", 1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        kernel.unregisterService("MailTransferService");
+        kernel.registerService("MailTransferService", new MailTransferService(ServerConfig.of(transferConfig), task -> {
+            started.countDown();
+            release.await();
+            return MailDelivery.Result.SENT;
+        }));
+
+        try {
+            // 第一个任务阻塞在投递中，队列中再容纳1个，之后的发送被拒绝
+            assertTrue(command("SEND bob0@example.com Remote body").startsWith("250"));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            assertTrue(command("SEND bob1@example.com Remote body").startsWith("250"));
+            assertEquals("452 Transfer queue full", command("SEND bob2@example.com Remote body"));
+            String reply = command("SEND user1,carol@example.com Team body");
+            assertTrue(reply, reply.startsWith("452 Transfer queue full, mail accepted for 1 of 2 recipients"));
+
+            // 被拒绝的邮件已撤回，只留下被接收的两封远程邮件和本地收件人的邮件
+            assertEquals(3L, storageStats().get("mails"));
+            assertEquals(2L, transferStats().get("rejected"));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testAuthThrottleIsConfigurable() throws IOException {
+        // 按配置每个用户名只允许2次连续失败
+        assertEquals("535 Authentication failed", command("AUTH user2 wrong"));
+        assertEquals("535 Authentication failed", command("AUTH user2 wrong"));
+        assertTrue(command("AUTH user2 wrong").startsWith("454"));
+    }
+
+    @Test
+    public void testMultiRecipientSendSharesOneBody() throws Exception {
+        String reply = command("SEND user1,user1@esmcp.test,user2,bob@example.com,carol@example.com Team shared-body");
+        assertTrue(reply, reply.startsWith("250 Mail accepted for 4 of 4 recipients, IDs: "));
+        assertEquals(4, reply.substring(reply.indexOf("IDs: ") + 5).split(",").length);
+
+        // 每个收件人一封邮件，正文只保存一份；两个远程收件人在同一域名，只排队一个传输任务
+        assertTrue(command("STAT").startsWith("250 STAT TOTAL:1"));
+        Map<String, Object> stats = storageStats();
+        assertEquals(4L, stats.get("mails"));
+        assertEquals(1L, stats.get("uniqueBodies"));
+        assertEquals(1L, transferStats().get("queued"));
+    }
+
+    private long data(String to, String subject, String body) throws IOException {
+        send("DATA " + to + " " + subject + "\r\n");
+        assertTrue(in.readLine().startsWith("354"));
+        StringBuilder stuffed = new StringBuilder();
+        for (String line : body.split("\r\n", -1)) {
+            stuffed.append(line.startsWith(".") ? "." : "").append(line).append("\r\n");
+        }
+        send(stuffed + ".\r\n");
+        String reply = in.readLine();
+        Matcher matcher = Pattern.compile("250 Mail accepted, ID: (\\d+)").matcher(reply);
+        assertTrue(reply, matcher.matches());
+        return Long.parseLong(matcher.group(1));
+    }
+
+    private String retrieve(long mailId) throws IOException {
+        send("RETR " + mailId + "\r\n");
+        assertTrue(in.readLine().startsWith("250 FROM:"));
+        StringBuilder body = new StringBuilder();
+        String line;
+        while (!(line = in.readLine()).equals(".")) {
+            body.append(line.startsWith(".") ? line.substring(1) : line).append("\r\n");
+        }
+        // 去掉最后一行的行尾
+        return body.substring(0, Math.max(0, body.length() - 2));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> storageStats() throws InterruptedException {
+        Message response = kernel.sendMessage(Message.builder()
+            .from("TestClient")
+            .to("MailStorageService")
+            .type(MessageType.STORAGE_STATS)
+            .build());
+        return (Map<String, Object>) response.getPayload();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> transferStats() throws InterruptedException {
+        Message response = kernel.sendMessage(Message.builder()
+            .from("TestClient")
+            .to("MailTransferService")
+            .type(MessageType.TRANSFER_STATS)
+            .build());
+        return (Map<String, Object>) response.getPayload();
+    }
+
+    private String command(String command) throws IOException {
+        send(command + "\r\n");
+        return in.readLine();
+    }
+
+    private void send(String text) throws IOException {
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+}
@@ -0,0 +1,295 @@
+package com.esmcp;
+
+import com.esmcp.config.ServerConfig;
+import com.esmcp.kernel.MessageBus;
+import com.esmcp.kernel.Microkernel;
+import com.esmcp.message.Message;
+import com.esmcp.message.MessageType;
+import com.esmcp.services.transfer.MailTransferService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * SMTP中继投递测试：传输服务连接本地的FakeSmtpServer
+ */
+public class SmtpDeliveryTest {
+    private Microkernel kernel;
+    private FakeSmtpServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeSmtpServer();
+        kernel = new MessageBus();
+        kernel.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        kernel.shutdown();
+        server.close();
+    }
+
+    private Map<String, Object> relayConfig() {
+        Map<String, Object> config = new HashMap<>();
+        config.put("relay", "127.0.0.1:" + server.getPort());
+        config.put("heloName", "esmcp.test");
+        config.put("retryDelay", 60000);
+        return config;
+    }
+
+    private void register(Map<String, Object> config) {
+        kernel.registerService("MailTransferService", new MailTransferService(ServerConfig.of(config)));
+    }
+
+    @Test
+    public void testBatchesShareOneSession() throws InterruptedException {
+        Map<String, Object> config = relayConfig();
+        config.put("workers", 1);
+        config.put("batchSize", 10);
+        config.put("maxConnectionsPerDestination", 1);
+        register(config);
+
+        List<String> taskIds = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            taskIds.add((String) send("user" + i + "@example.com", ".dotted line\r\nbody " + i).get("taskId"));
+        }
+        for (String taskId : taskIds) {
+            assertTrue(awaitStatus(taskId, "SENT"));
+        }
+
+        assertEquals(30, server.getMessages().size());
+        assertEquals(1, server.getConnections());
+        FakeSmtpServer.Received first = server.getMessages().get(0);
+        assertEquals("user1@esmcp.test", first.from);
+        assertEquals("user0@example.com", first.to);
+        assertTrue(first.data.contains("Subject: Subject\r\n\r\n.dotted line\r\nbody 0\r\n"));
+
+        Map<String, Object> stats = stats();
+        assertTrue((Double) stats.get("avgMessagesPerSession") > 1);
+        assertTrue((Long) stats.get("pipelinedSessions") > 0);
+    }
+
+    @Test
+    public void testPipeliningSavesRoundTrips() throws Exception {
+        long plain;
+        try (FakeSmtpServer slow = new FakeSmtpServer(false, 50)) {
+            plain = deliverAll(slow, 10);
+            assertEquals(1, slow.getMaxOutstanding());
+        }
+        kernel.unregisterService("MailTransferService");
+        long pipelined;
+        try (FakeSmtpServer slow = new FakeSmtpServer(true, 50)) {
+            pipelined = deliverAll(slow, 10);
+            // MAIL、RCPT、DATA一次写出，服务器同时看到三条未应答的命令
+            assertTrue(slow.getMaxOutstanding() >= 3);
+        }
+        assertTrue("pipelined " + pipelined + "ms, plain " + plain + "ms", pipelined < plain);
+    }
+
+    @Test
+    public void testOneIoThreadDrivesManyConnections() throws Exception {
+        try (FakeSmtpServer slow = new FakeSmtpServer(true, 100)) {
+            Map<String, Object> config = new HashMap<>();
+            config.put("relay", "127.0.0.1:" + slow.getPort());
+            config.put("ioThreads", 1);
+            config.put("workers", 2);
+            config.put("batchSize", 1);
+            config.put("maxConnectionsPerDestination", 100);
+            config.put("maxConcurrencyPerDestination", 100);
+            register(config);
+
+            long start = System.currentTimeMillis();
+            List<String> taskIds = new ArrayList<>();
+            for (int i = 0; i < 300; i++) {
+                taskIds.add((String) send("user" + i + "@example.com", "body").get("taskId"));
+            }
+            for (String taskId : taskIds) {
+                assertTrue(awaitStatus(taskId, "SENT"));
+            }
+            long elapsed = System.currentTimeMillis() - start;
+
+            // 逐封同步投递需要300 * 4个往返（约120秒），两个投递线程交出批次后不等待应答
+            assertEquals(300, slow.getMessages().size());
+            assertTrue(slow.getMaxActiveConnections() > 10);
+            assertTrue("took " + elapsed + "ms", elapsed < 20000);
+        }
+    }
+
+    @Test
+    public void testConnectionsPerDestinationAreBounded() throws InterruptedException {
+        Map<String, Object> config = relayConfig();
+        config.put("workers", 8);
+        config.put("batchSize", 1);
+        config.put("maxConnectionsPerDestination", 2);
+        register(config);
+
+        List<String> taskIds = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            taskIds.add((String) send("user" + i + "@example.com", "body").get("taskId"));
+        }
+        for (String taskId : taskIds) {
+            assertTrue(awaitStatus(taskId, "SENT"));
+        }
+
+        assertEquals(40, server.getMessages().size());
+        assertTrue(server.getMaxActiveConnections() <= 2);
+        assertTrue(server.getConnections() <= 2);
+    }
+
+    @Test
+    public void testReplyCodesMapToOutcome() throws InterruptedException {
+        Map<String, Object> config = relayConfig();
+        config.put("workers", 1);
+        config.put("maxConnectionsPerDestination", 1);
+        register(config);
+
+        String busy = (String) send("busy@example.com", "body").get("taskId");
+        String nobody = (String) send("nobody@example.com", "body").get("taskId");
+        String ok = (String) send("ok@example.com", "body").get("taskId");
+
+        assertTrue(awaitStatus(busy, "DEFERRED"));
+        assertTrue(awaitStatus(nobody, "FAILED"));
+        assertTrue(awaitStatus(ok, "SENT"));
+        // 被拒绝的事务以RSET结束，连接继续使用
+        assertEquals(1, server.getConnections());
+        assertEquals(1, server.getMessages().size());
+    }
+
+    @Test
+    public void testMultiRecipientTaskRetriesOnlyDeferredRecipients() throws Exception {
+        // example.org的中继不支持流水线，RCPT逐个发送
+        try (FakeSmtpServer other = new FakeSmtpServer(false, 0)) {
+            Map<String, Object> routes = new HashMap<>();
+            routes.put("example.com", "127.0.0.1:" + server.getPort());
+            routes.put("example.org", "127.0.0.1:" + other.getPort());
+            Map<String, Object> config = new HashMap<>();
+            config.put("routes", routes);
+            config.put("workers", 1);
+            register(config);
+
+            Map<String, Object> mailData = new HashMap<>();
+            mailData.put("from", "user1");
+            mailData.put("recipients", List.of("a@example.com", "busy@example.com", "nobody@example.com",
+                "c@example.org", "nobody@example.org", "d@example.org"));
+            mailData.put("subject", "Subject");
+            mailData.put("body", "shared");
+            @SuppressWarnings("unchecked")
+            List<String> taskIds = (List<String>) payload(kernel.sendMessage(Message.builder()
+                .from("TestClient")
+                .to("MailTransferService")
+                .type(MessageType.MAIL_SEND)
+                .payload(mailData)
+                .build())).get("taskIds");
+            assertEquals(2, taskIds.size());
+
+            // 正文送达被接受的收件人，临时失败的收件人留待重试，永久拒绝的被放弃
+            assertTrue(awaitStatus(taskIds.get(0), "DEFERRED"));
+            assertTrue(awaitStatus(taskIds.get(1), "SENT"));
+            assertEquals(1, server.getMessages().size());
+            assertEquals("a@example.com", server.getMessages().get(0).to);
+            assertTrue(server.getMessages().get(0).data.contains("To: <a@example.com>, <busy@example.com>"));
+            assertEquals(1, other.getMessages().size());
+            assertEquals("c@example.org,d@example.org", other.getMessages().get(0).to);
+        }
+    }
+
+    @Test
+    public void testRoutesAndStaleConnections() throws Exception {
+        try (FakeSmtpServer other = new FakeSmtpServer()) {
+            Map<String, Object> routes = new HashMap<>();
+            routes.put("a.test", "127.0.0.1:" + server.getPort());
+            routes.put("b.test", "127.0.0.1:" + other.getPort());
+            Map<String, Object> config = new HashMap<>();
+            config.put("routes", routes);
+            config.put("workers", 1);
+            register(config);
+
+            assertTrue(awaitStatus((String) send("x@a.test", "body").get("taskId"), "SENT"));
+            assertTrue(awaitStatus((String) send("y@b.test", "body").get("taskId"), "SENT"));
+            assertTrue(awaitStatus((String) send("z@c.test", "body").get("taskId"), "FAILED"));
+            assertEquals("x@a.test", server.getMessages().get(0).to);
+            assertEquals("y@b.test", other.getMessages().get(0).to);
+
+            // 服务器关闭了池中的空闲连接，投递时换新连接重发
+            server.dropConnections();
+            assertTrue(awaitStatus((String) send("w@a.test", "body").get("taskId"), "SENT"));
+            assertEquals(2, server.getMessages().size());
+            assertEquals(2, server.getConnections());
+        }
+    }
+
+    private long deliverAll(FakeSmtpServer target, int count) throws InterruptedException {
+        Map<String, Object> config = new HashMap<>();
+        config.put("relay", "127.0.0.1:" + target.getPort());
+        config.put("workers", 1);
+        config.put("maxConnectionsPerDestination", 1);
+        register(config);
+
+        long start = System.currentTimeMillis();
+        List<String> taskIds = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            taskIds.add((String) send("user" + i + "@example.com", "body").get("taskId"));
+        }
+        for (String taskId : taskIds) {
+            assertTrue(awaitStatus(taskId, "SENT", 20000));
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    private Map<String, Object> send(String to, String body) throws InterruptedException {
+        Map<String, Object> mailData = new HashMap<>();
+        mailData.put("from", "user1");
+        mailData.put("to", to);
+        mailData.put("subject", "Subject");
+        mailData.put("body", body);
+        return payload(kernel.sendMessage(Message.builder()
+            .from("TestClient")
+            .to("MailTransferService")
+            .type(MessageType.MAIL_SEND)
+            .payload(mailData)
+            .build()));
+    }
+
+    private boolean awaitStatus(String taskId, String expected) throws InterruptedException {
+        return awaitStatus(taskId, expected, 20000);
+    }
+
+    private boolean awaitStatus(String taskId, String expected, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (System.currentTimeMillis() < deadline) {
+            Message response = kernel.sendMessage(Message.builder()
+                .from("TestClient")
+                .to("MailTransferService")
+                .type(MessageType.MAIL_STATUS)
+                .payload(taskId)
+                .build());
+            if (expected.equals(payload(response).get("status"))) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    private Map<String, Object> stats() throws InterruptedException {
+        return payload(kernel.sendMessage(Message.builder()
+            .from("TestClient")
+            .to("MailTransferService")
+            .type(MessageType.TRANSFER_STATS)
+            .build()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> payload(Message response) {
+        return (Map<String, Object>) response.getPayload();
+    }
+}
@@ -0,0 +1,78 @@
+package com.esmcp.bench;
+
+import com.esmcp.services.storage.ConcurrentLongMap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 邮件表基准
+ * 比较以字符串ID为键的ConcurrentHashMap与long键开放寻址表的每条记录内存和查找吞吐量。
+ * 值使用同一个共享对象，只统计表本身的开销。不属于单元测试，手动运行：
+ *   mvn -q test-compile
+ *   java -Xmx4g -cp target/classes:target/test-classes com.esmcp.bench.MailTableBenchmark 5000000
+ */
+public class MailTableBenchmark {
+    private static final Object VALUE = new Object();
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        int lookups = 20_000_000;
+
+        for (int round = 0; round < 2; round++) {
+            System.out.println(round == 0 ? "warm-up:" : "measured:");
+            runStringMap(count, lookups);
+            runLongMap(count, lookups);
+        }
+    }
+
+    private static void runStringMap(int count, int lookups) {
+        long before = usedHeap();
+        Map<String, Object> map = new ConcurrentHashMap<>();
+        for (long id = 1; id <= count; id++) {
+            map.put(String.valueOf(id), VALUE);
+        }
+        long bytes = usedHeap() - before;
+
+        long start = System.nanoTime();
+        long found = 0;
+        for (int i = 0; i < lookups; i++) {
+            // 与原实现一致：每次查找先把数值ID转成字符串
+            if (map.get(String.valueOf(1 + (i * 7919L) % count)) != null) {
+                found++;
+            }
+        }
+        report("ConcurrentHashMap<String>", count, bytes, lookups, System.nanoTime() - start, found);
+    }
+
+    private static void runLongMap(int count, int lookups) {
+        long before = usedHeap();
+        ConcurrentLongMap<Object> map = new ConcurrentLongMap<>();
+        for (long id = 1; id <= count; id++) {
+            map.put(id, VALUE);
+        }
+        long bytes = usedHeap() - before;
+
+        long start = System.nanoTime();
+        long found = 0;
+        for (int i = 0; i < lookups; i++) {
+            if (map.get(1 + (i * 7919L) % count) != null) {
+                found++;
+            }
+        }
+        report("ConcurrentLongMap", count, bytes, lookups, System.nanoTime() - start, found);
+    }
+
+    private static void report(String name, int count, long bytes, int lookups, long nanos, long found) {
+        System.out.printf("  %-26s %6.1f bytes/mail  %6.1f M lookups/s  (%d hits)%n",
+            name, (double) bytes / count, lookups / (nanos / 1e3), found);
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
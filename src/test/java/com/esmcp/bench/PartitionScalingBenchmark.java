@@ -0,0 +1,106 @@
+package com.esmcp.bench;
+
+import com.esmcp.config.ServerConfig;
+import com.esmcp.kernel.MessageBus;
+import com.esmcp.message.Message;
+import com.esmcp.message.MessageType;
+import com.esmcp.services.storage.MailStorageService;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 存储分区扩展性基准
+ * 多个客户端线程经消息总线并发存储并检索邮件（收件人各不相同），
+ * 依次以1、2、4……直到CPU核数个分区运行，输出每秒完成的操作数。
+ * 不属于单元测试，手动运行：
+ *   mvn -q test-compile
+ *   java -cp target/classes:target/test-classes:$(mvn -q dependency:build-classpath -Dmdep.outputFile=/dev/stdout) \
+ *       com.esmcp.bench.PartitionScalingBenchmark 20000
+ */
+public class PartitionScalingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int opsPerClient = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int cores = Runtime.getRuntime().availableProcessors();
+        int clients = cores * 4;
+
+        for (int partitions = 1; partitions <= cores; partitions *= 2) {
+            double rate = run(partitions, clients, opsPerClient);
+            System.out.printf("%2d partitions: %,10.0f ops/s%n", partitions, rate);
+        }
+    }
+
+    private static double run(int partitions, int clients, int opsPerClient) throws Exception {
+        Map<String, Object> values = new HashMap<>();
+        values.put("partitions", partitions);
+        values.put("fsyncPolicy", "NEVER");
+        values.put("maxMailsPerUser", Integer.MAX_VALUE);
+        values.put("storageQuota", Long.MAX_VALUE);
+
+        MessageBus bus = new MessageBus();
+        bus.start();
+        bus.registerService("MailStorageService", new MailStorageService(ServerConfig.of(values)));
+
+        CountDownLatch done = new CountDownLatch(clients);
+        AtomicLong failures = new AtomicLong();
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            String user = "bench" + c;
+            new Thread(() -> {
+                try {
+                    for (int i = 0; i < opsPerClient / 2; i++) {
+                        Long id = store(bus, user, "Body " + i);
+                        if (id == null || !retrieve(bus, id)) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        bus.shutdown();
+
+        if (failures.get() > 0) {
+            System.out.println("  failures: " + failures.get());
+        }
+        return (double) clients * (opsPerClient / 2 * 2) / (elapsed / 1e9);
+    }
+
+    private static Long store(MessageBus bus, String user, String body) throws InterruptedException {
+        Map<String, Object> mailData = new HashMap<>();
+        mailData.put("from", "sender");
+        mailData.put("to", user);
+        mailData.put("subject", "Benchmark");
+        mailData.put("body", body);
+        Message response = bus.sendMessage(Message.builder()
+            .from("Bench")
+            .to("MailStorageService")
+            .type(MessageType.MAIL_STORE)
+            .payload(mailData)
+            .build());
+        if (!MessageType.MAIL_STORE.equals(response.getType())) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> result = (Map<String, Object>) response.getPayload();
+        return (Long) result.get("mailId");
+    }
+
+    private static boolean retrieve(MessageBus bus, long id) throws InterruptedException {
+        Message response = bus.sendMessage(Message.builder()
+            .from("Bench")
+            .to("MailStorageService")
+            .type(MessageType.MAIL_RETRIEVE)
+            .payload(id)
+            .build());
+        return MessageType.MAIL_RETRIEVE.equals(response.getType());
+    }
+}
@@ -0,0 +1,100 @@
+package com.esmcp.bench;
+
+import com.esmcp.config.ServerConfig;
+import com.esmcp.kernel.MessageBus;
+import com.esmcp.kernel.Microkernel;
+import com.esmcp.message.Message;
+import com.esmcp.message.MessageType;
+import com.esmcp.services.transfer.MailDelivery;
+import com.esmcp.services.transfer.MailTransferService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 发送方公平调度基准
+ * 一个账户一次提交大量群发邮件（收件人分布在1000个域名），随后十个交互账户每隔10ms各发一封；
+ * 投递模拟为每封1ms、4个投递线程。
+ * 分别统计交互邮件和群发邮件从提交到开始投递的等待时间。对照组把交互邮件也记在群发账户名下，
+ * 相当于原来不区分发送方、只按域名轮转的队列。不属于单元测试，手动运行：
+ *   mvn -q test-compile
+ *   java -cp target/classes:target/test-classes:$(mvn -q dependency:build-classpath -Dmdep.outputFile=/dev/stdout) \
+ *       com.esmcp.bench.SenderFairnessBenchmark 20000
+ */
+public class SenderFairnessBenchmark {
+    private static final int INTERACTIVE_SENDERS = 10;
+    private static final int INTERACTIVE_MAILS = 20;
+
+    public static void main(String[] args) throws Exception {
+        int bulk = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        for (int round = 0; round < 2; round++) {
+            System.out.println(round == 0 ? "warm-up:" : "measured:");
+            run("one account", bulk, false);
+            run("per sender ", bulk, true);
+        }
+    }
+
+    private static void run(String label, int bulk, boolean perSender) throws Exception {
+        List<Long> interactiveWaits = Collections.synchronizedList(new ArrayList<>());
+        List<Long> bulkWaits = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(bulk + INTERACTIVE_SENDERS * INTERACTIVE_MAILS);
+        // 正文记录提交时间，主题区分邮件类别
+        MailDelivery delivery = task -> {
+            long wait = System.nanoTime() - Long.parseLong(task.getBody());
+            (task.getSubject().equals("interactive") ? interactiveWaits : bulkWaits).add(wait);
+            Thread.sleep(1);
+            done.countDown();
+            return MailDelivery.Result.SENT;
+        };
+
+        Map<String, Object> config = new HashMap<>();
+        config.put("queueSize", bulk * 2);
+        config.put("workers", 4);
+        config.put("batchSize", 20);
+        Microkernel kernel = new MessageBus();
+        kernel.start();
+        kernel.registerService("MailTransferService", new MailTransferService(ServerConfig.of(config), delivery));
+        try {
+            for (int i = 0; i < bulk; i++) {
+                send(kernel, "newsletter", "reader" + i + "@d" + (i % 1000) + ".example.com", "bulk");
+            }
+            for (int round = 0; round < INTERACTIVE_MAILS; round++) {
+                for (int s = 0; s < INTERACTIVE_SENDERS; s++) {
+                    send(kernel, perSender ? "user" + s : "newsletter", "friend" + s + "@example.org", "interactive");
+                }
+                Thread.sleep(10);
+            }
+            done.await();
+        } finally {
+            kernel.shutdown();
+        }
+
+        System.out.printf("  %s  interactive wait p50 %7.1f ms p99 %7.1f ms   bulk wait p50 %7.1f ms p99 %7.1f ms%n",
+            label, percentile(interactiveWaits, 0.5), percentile(interactiveWaits, 0.99),
+            percentile(bulkWaits, 0.5), percentile(bulkWaits, 0.99));
+    }
+
+    private static void send(Microkernel kernel, String from, String to, String kind) throws InterruptedException {
+        Map<String, Object> mailData = new HashMap<>();
+        mailData.put("from", from);
+        mailData.put("to", to);
+        mailData.put("subject", kind);
+        mailData.put("body", String.valueOf(System.nanoTime()));
+        kernel.sendMessage(Message.builder()
+            .from("Benchmark")
+            .to("MailTransferService")
+            .type(MessageType.MAIL_SEND)
+            .payload(mailData)
+            .build());
+    }
+
+    private static double percentile(List<Long> nanos, double p) {
+        List<Long> sorted = new ArrayList<>(nanos);
+        Collections.sort(sorted);
+        return sorted.isEmpty() ? 0 : sorted.get((int) Math.min(sorted.size() - 1, sorted.size() * p)) / 1e6;
+    }
+}
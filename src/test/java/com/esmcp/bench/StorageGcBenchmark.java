@@ -0,0 +1,99 @@
+package com.esmcp.bench;
+
+import com.esmcp.config.ServerConfig;
+import com.esmcp.services.storage.MailStore;
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 存储层GC压力基准
+ * 向临时存储写入大量邮件，统计GC次数、总耗时、最大停顿和堆占用。
+ * 不属于单元测试，手动运行：
+ *   mvn -q test-compile
+ *   java -Xmx4g -cp target/classes:target/test-classes:$(mvn -q dependency:build-classpath -Dmdep.outputFile=/dev/stdout) \
+ *       com.esmcp.bench.StorageGcBenchmark 1000000 10000000
+ */
+public class StorageGcBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        long[] counts = args.length > 0 ? new long[args.length] : new long[] {1_000_000L, 10_000_000L};
+        for (int i = 0; i < args.length; i++) {
+            counts[i] = Long.parseLong(args[i]);
+        }
+        AtomicLong maxPause = installPauseListener();
+        for (long count : counts) {
+            run(count, maxPause);
+        }
+    }
+
+    private static void run(long count, AtomicLong maxPause) throws Exception {
+        Map<String, Object> values = new HashMap<>();
+        values.put("fsyncPolicy", "NEVER");
+        values.put("compactionInterval", 3_600_000L);
+        values.put("bodyCacheSize", 256L * 1024 * 1024);
+
+        System.gc();
+        long gcCountBefore = gcCount();
+        long gcTimeBefore = gcTime();
+        maxPause.set(0);
+        long start = System.nanoTime();
+
+        try (MailStore store = MailStore.open(ServerConfig.of(values))) {
+            for (long i = 0; i < count; i++) {
+                // 约十分之一的正文重复，其余为各不相同的短正文
+                String body = i % 10 == 0 ? "Weekly digest" : "Message body number " + i;
+                store.store("sender" + (i % 1000), "user" + (i % 10000), "Subject " + i, body, i);
+            }
+            long elapsed = System.nanoTime() - start;
+
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            System.out.printf("%,d mails in %.1fs (%.0f mails/s)%n",
+                count, elapsed / 1e9, count / (elapsed / 1e9));
+            System.out.printf("  GC: %d collections, %d ms total, %d ms max pause%n",
+                gcCount() - gcCountBefore, gcTime() - gcTimeBefore, maxPause.get());
+            System.out.printf("  heap used: %d MB, body cache: %d MB cached / %d MB off-heap reserved%n",
+                memory.getHeapMemoryUsage().getUsed() >> 20, store.cachedBytes() >> 20,
+                store.cacheOffHeapBytes() >> 20);
+        }
+    }
+
+    private static AtomicLong installPauseListener() {
+        AtomicLong maxPause = new AtomicLong();
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc instanceof NotificationEmitter) {
+                ((NotificationEmitter) gc).addNotificationListener((notification, handback) -> {
+                    if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                        GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+                            .from((CompositeData) notification.getUserData());
+                        maxPause.accumulateAndGet(info.getGcInfo().getDuration(), Math::max);
+                    }
+                }, null, null);
+            }
+        }
+        return maxPause;
+    }
+
+    private static long gcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionCount());
+        }
+        return total;
+    }
+
+    private static long gcTime() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+}
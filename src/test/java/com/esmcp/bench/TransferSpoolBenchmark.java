@@ -0,0 +1,89 @@
+package com.esmcp.bench;
+
+import com.esmcp.services.transfer.TransferSpool;
+import com.esmcp.services.transfer.TransferTask;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * 外发暂存基准
+ * 单线程入队（与传输服务线程一致），入队记录由组提交刷盘后确认；
+ * 统计从第一次入队到最后一次确认的吞吐量、刷盘次数，以及重启回放的耗时。不属于单元测试，手动运行：
+ *   mvn -q test-compile
+ *   java -cp target/classes:target/test-classes com.esmcp.bench.TransferSpoolBenchmark 500000 /path/on/local/disk
+ */
+public class TransferSpoolBenchmark {
+    private static final String BODY = "x".repeat(512);
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+        Path root = args.length > 1 ? Files.createTempDirectory(Path.of(args[1]), "spool")
+                                    : Files.createTempDirectory("esmcp-spool");
+        try {
+            for (int round = 0; round < 2; round++) {
+                System.out.println(round == 0 ? "warm-up:" : "measured:");
+                run(root.resolve("round" + round), count);
+            }
+        } finally {
+            delete(root);
+        }
+    }
+
+    private static void run(Path directory, int count) throws Exception {
+        List<TransferTask> tasks = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++) {
+            tasks.add(new TransferTask(String.valueOf(i), "user1", "user" + i + "@example.com", "Subject " + i, BODY));
+        }
+
+        TransferSpool spool = new TransferSpool(directory, 64L * 1024 * 1024);
+        spool.open();
+        CountDownLatch durable = new CountDownLatch(count);
+        AtomicInteger failed = new AtomicInteger();
+        long start = System.nanoTime();
+        for (TransferTask task : tasks) {
+            spool.append(task, durable::countDown, () -> {
+                failed.incrementAndGet();
+                durable.countDown();
+            });
+        }
+        durable.await();
+        if (failed.get() > 0) {
+            throw new IllegalStateException(failed.get() + " spool records failed to sync");
+        }
+        long enqueueNanos = System.nanoTime() - start;
+        Object syncs = spool.snapshot().get("spoolSyncs");
+
+        // 完成一半任务，剩下的一半在重启后回放
+        start = System.nanoTime();
+        for (int i = 0; i < count; i += 2) {
+            spool.markDone(tasks.get(i));
+        }
+        long doneNanos = System.nanoTime() - start;
+        spool.close();
+
+        TransferSpool reopened = new TransferSpool(directory, 64L * 1024 * 1024);
+        start = System.nanoTime();
+        int recovered = reopened.open().size();
+        long replayNanos = System.nanoTime() - start;
+        reopened.close();
+
+        System.out.printf("  enqueue %8.0f mails/s (%s fsyncs, %.1f mails/fsync)%n",
+            count / (enqueueNanos / 1e9), syncs, count / Double.parseDouble(syncs.toString()));
+        System.out.printf("  done    %8.0f mails/s%n", (count / 2) / (doneNanos / 1e9));
+        System.out.printf("  replay  %8.1f ms for %d pending mails%n", replayNanos / 1e6, recovered);
+    }
+
+    private static void delete(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}